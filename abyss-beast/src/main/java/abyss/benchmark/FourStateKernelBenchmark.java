@@ -0,0 +1,107 @@
+package abyss.benchmark;
+
+import abyss.substitutionmodel.ABySSubstitutionModel;
+import abyss.substitutionmodel.EquilibriumSolver;
+import abyss.substitutionmodel.FourStateKernel;
+import abyss.substitutionmodel.SpectralProjectors;
+import beast.base.evolution.substitutionmodel.ComplexColtEigenSystem;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.EigenSystem;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the closed-form 4-state kernel against the general path (Q set up, pi solved, Colt complex
+ * eigen decomposition, spectral projectors) for one rate update followed by P(t) for 4 rate categories.
+ * FourStateKernelTest checks both agree within 1e-12.
+ * Run with: java -cp ... abyss.benchmark.FourStateKernelBenchmark
+ * @author Jasmine Saghafifar
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FourStateKernelBenchmark {
+
+    private static final int NR_OF_STATES = 4;
+    private static final int NR_OF_RATE_VECTORS = 64;
+    private static final double[] DISTANCES = {0.02, 0.1, 0.4, 1.5};
+
+    private double[][] rates;
+    private int next = 0;
+
+    private FourStateKernel kernel;
+    private EquilibriumSolver solver;
+    private EigenSystem eigenSystem;
+    private SpectralProjectors projectors;
+    private double[] freqs;
+    private double[] matrices;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(127);
+        kernel = new FourStateKernel();
+        solver = new EquilibriumSolver(NR_OF_STATES);
+        eigenSystem = new ComplexColtEigenSystem(NR_OF_STATES);
+        projectors = new SpectralProjectors(NR_OF_STATES);
+        freqs = new double[NR_OF_STATES];
+        matrices = new double[DISTANCES.length * NR_OF_STATES * NR_OF_STATES];
+
+        rates = new double[NR_OF_RATE_VECTORS][];
+        for (int i = 0; i < NR_OF_RATE_VECTORS; i++) {
+            double[] r;
+            do {
+                r = new double[NR_OF_STATES * (NR_OF_STATES - 1)];
+                for (int j = 0; j < r.length; j++) {
+                    r[j] = Math.exp(random.nextGaussian());
+                }
+            } while (!kernel.update(r));
+            rates[i] = r;
+        }
+    }
+
+    @Benchmark
+    public void fourStateKernel(Blackhole blackhole) {
+        kernel.update(rates[next++ & (NR_OF_RATE_VECTORS - 1)]);
+        kernel.getTransitionProbabilities(DISTANCES, DISTANCES.length, matrices);
+        blackhole.consume(matrices);
+    }
+
+    @Benchmark
+    public void generalEigenDecomposition(Blackhole blackhole) {
+        generic(rates[next++ & (NR_OF_RATE_VECTORS - 1)], matrices);
+        blackhole.consume(matrices);
+    }
+
+    // the nonreversible path of ABySSubstitutionModel without the 4-state kernel
+    private void generic(double[] r, double[] out) {
+        double[][] Qm = ABySSubstitutionModel.setupUnnormNonrevQ(r, NR_OF_STATES);
+        solver.solve(Qm, freqs);
+        double subst = 0;
+        for (int i = 0; i < NR_OF_STATES; i++)
+            subst += -Qm[i][i] * freqs[i];
+        for (int i = 0; i < NR_OF_STATES; i++) {
+            for (int j = 0; j < NR_OF_STATES; j++) {
+                Qm[i][j] /= subst;
+            }
+        }
+        EigenDecomposition decomposition = eigenSystem.decomposeMatrix(Qm);
+        projectors.build(decomposition);
+        projectors.getTransitionProbabilities(DISTANCES, DISTANCES.length, out);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(FourStateKernelBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+
+}
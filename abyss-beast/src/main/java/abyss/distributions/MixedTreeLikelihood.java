@@ -1,19 +1,33 @@
 package abyss.distributions;
 
 
+import abyss.inference.CachedTreeLikelihood;
+import abyss.inference.MultiModelTreeLikelihood;
 import beast.base.core.*;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.spec.evolution.likelihood.TreeLikelihood;
+import beast.base.inference.CalculationNode;
 import beast.base.inference.Distribution;
 import beast.base.inference.State;
+import beast.base.inference.StateNode;
 import beast.base.spec.domain.NonNegativeReal;
 import beast.base.spec.inference.parameter.RealVectorParam;
 import org.apache.commons.math3.util.FastMath;
 
+import java.lang.ref.Cleaner;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Jasmine Saghafifar
@@ -23,6 +37,9 @@ import java.util.Random;
 public class MixedTreeLikelihood extends Distribution {
     final public Input<List<Distribution>> pLikelihoods =
             new Input<>("likelihood", "individual tree likelihoods", new ArrayList<>());
+    final public Input<MultiModelTreeLikelihood> multiModelLikelihoodInput = new Input<>("multiModelLikelihood",
+            "tree likelihood computing all components at once, one per component site model. " +
+                    "Alternative to individual likelihoods.", Input.Validate.OPTIONAL);
     final public Input<String> modeInput = new Input<>("mode",
             "how likelihoods should be handled. " +
                     "Site mixture (mix), model averaging (avg), or (both).", Input.Validate.REQUIRED);
@@ -32,16 +49,75 @@ public class MixedTreeLikelihood extends Distribution {
                             "if averaging, or uniform if mixing. Default uniform.", Input.Validate.OPTIONAL);
     final public Input<RealVectorParam<NonNegativeReal>> siteModelWeightsInput = new Input<>("siteModelWeights",
             "estimated site likelihood weights. Required for site mixture (one for each model)", Input.Validate.OPTIONAL);
+    final public Input<Integer> threadsInput = new Input<>("threads",
+            "number of threads evaluating the tree likelihoods concurrently (default 1, in turn). " +
+                    "0 or less uses one per likelihood, up to the number of processors. Shared calculation nodes " +
+                    "such as a relaxed clock update lazily and are not thread safe, so more than one thread is " +
+                    "refused unless the likelihoods share nothing but parameters, the tree and the data.", 1);
+
+    // shuts down the threads of likelihoods that are no longer used
+    private static final Cleaner CLEANER = Cleaner.create();
 
     protected String mode;
     protected RealVectorParam<NonNegativeReal> metaWeights;
     protected RealVectorParam<NonNegativeReal> siteModelWeights;
 
+    private MultiModelTreeLikelihood multiModelLikelihood;
+    private int nrOfComponents;
+    private ExecutorService executor;
+    private Cleaner.Cleanable cleanable;
+    private List<Callable<Double>> likelihoodTasks;
+    private List<Callable<Double>> dirtyTasks;
+
+    // site mixture work space: pattern log likelihoods of all components, model-major (model * nrOfPatterns + pattern),
+    // and per pattern the running maximum and sum of the log-sum-exp.
+    // Pattern log likelihoods are double buffered per component: component i is read from
+    // componentLogLikelihoodBuffers[componentBuffer[i]], and is written to the other buffer on its first update
+    // after a store, so store and restore copy one index per component instead of the patterns.
+    private int nrOfPatterns;
+    private double[] patternWeights;
+    private double[][] componentLogLikelihoodBuffers;
+    private int[] componentBuffer;
+    private int[] storedComponentBuffer;
+    private double[] logSiteModelWeights;
+    private double[] patternMax;
+    private double[] patternSum;
+
+    // component log likelihoods and, for site mixtures, their pattern log likelihoods and the mixture as of the
+    // last evaluation, so a move of the weights alone recombines them without touching the tree likelihoods
+    private double[] componentLogP;
+    private double[] storedComponentLogP;
+    private boolean[] componentDirty;
+    private boolean componentsValid = false;
+    private boolean storedComponentsValid = false;
+    private double siteMixtureLogP;
+    private double storedSiteMixtureLogP;
+    private boolean siteMixtureValid = false;
+    private boolean storedSiteMixtureValid = false;
+
+    // partial log likelihoods of the last evaluation and, computed on first request after each change of the
+    // site mixture, the posterior probability of each model per pattern (pattern * nrOfLikelihoods + model).
+    // Shared read-only with the loggers, so logging adds no likelihood work.
+    private double[] partialLogLikelihoods;
+    private double[] storedPartialLogLikelihoods;
+    private boolean partialsValid = false;
+    private boolean storedPartialsValid = false;
+    private double[] responsibilities;
+    private DoubleBuffer responsibilityView;
+    private boolean responsibilitiesValid = false;
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
 
-        if (pLikelihoods.get().isEmpty()) logP = 0;
+        multiModelLikelihood = multiModelLikelihoodInput.get();
+        if (multiModelLikelihood != null && !pLikelihoods.get().isEmpty())
+            throw new IllegalArgumentException("Either individual likelihoods or a multiModelLikelihood should be " +
+                    "given for MixedTreeLikelihood, not both");
+        nrOfComponents = multiModelLikelihood != null ?
+                multiModelLikelihood.getComponentCount() : pLikelihoods.get().size();
+
+        if (nrOfComponents == 0) logP = 0;
         if (pLikelihoods.get().size() > 1 &&
                 pLikelihoods.get().getFirst().getInput("data").get() instanceof Alignment alignment) {
             for (int i = 1; i < pLikelihoods.get().size(); i++) {
@@ -56,12 +132,12 @@ public class MixedTreeLikelihood extends Distribution {
             if (mode.equalsIgnoreCase("avg"))
                 throw new IllegalArgumentException("Model averaging does not support custom meta weights");
             metaWeights = metaWeightsInput.get();
-            if (mode.equalsIgnoreCase("mix") && metaWeights.size() != pLikelihoods.get().size())
+            if (mode.equalsIgnoreCase("mix") && metaWeights.size() != nrOfComponents)
                 throw new IllegalArgumentException(
                         "Site mixture model must have same number of meta weights as given tree likelihoods.");
-            if (mode.equalsIgnoreCase("both") && metaWeights.size() != (pLikelihoods.get().size() + 1))
+            if (mode.equalsIgnoreCase("both") && metaWeights.size() != (nrOfComponents + 1))
                 throw new IllegalArgumentException("Site mixture with model averaging must have "+
-                        (pLikelihoods.get().size() + 1)+" dimensions (site mixture model weight last).");
+                        (nrOfComponents + 1)+" dimensions (site mixture model weight last).");
             double sum = 0;
             for (int i = 0; i < metaWeights.size(); i++) {
                 sum += metaWeights.get(i);
@@ -69,14 +145,14 @@ public class MixedTreeLikelihood extends Distribution {
             if (Math.abs(sum - 1) > 1e-6) throw new IllegalArgumentException("Meta weights must sum to 1.");
         } else {
             double[] weights = mode.equalsIgnoreCase("both") ?
-                    new double[pLikelihoods.get().size() + 1] : new double[pLikelihoods.get().size()];
+                    new double[nrOfComponents + 1] : new double[nrOfComponents];
             Arrays.fill(weights, 1.0 / weights.length);
             metaWeights = new RealVectorParam<>(weights, NonNegativeReal.INSTANCE);
         }
 
         if (siteModelWeightsInput.get() != null) {
             siteModelWeights = siteModelWeightsInput.get();
-            if (siteModelWeights.size() != pLikelihoods.get().size())
+            if (siteModelWeights.size() != nrOfComponents)
                 throw new IllegalArgumentException("Site weights must have same dimensions as given tree likelihoods.");
             double sum = 0;
             for (int i = 0; i < siteModelWeights.size(); i++) {
@@ -86,13 +162,88 @@ public class MixedTreeLikelihood extends Distribution {
         } else if (!mode.equalsIgnoreCase("avg")) {
             throw new IllegalArgumentException("Site weights must be specified for site mixture model.");
         }
+
+        if (cleanable != null) {
+            // initialised again, e.g. by BEAUti
+            cleanable.clean();
+            cleanable = null;
+            executor = null;
+        }
+        int threads = threadsInput.get();
+        if (threads <= 0)
+            threads = Math.min(pLikelihoods.get().size(), Runtime.getRuntime().availableProcessors());
+        // a multiModelLikelihood evaluates its components in one traversal
+        if (threads > 1 && pLikelihoods.get().size() > 1) {
+            checkNothingShared(pLikelihoods.get());
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "MixedTreeLikelihood");
+                thread.setDaemon(true);
+                return thread;
+            });
+            cleanable = CLEANER.register(this, executor::shutdown);
+            likelihoodTasks = new ArrayList<>();
+            for (Distribution likelihood : pLikelihoods.get()) {
+                likelihoodTasks.add(likelihood::calculateLogP);
+            }
+            dirtyTasks = new ArrayList<>(likelihoodTasks.size());
+        }
+
+        if (!mode.equalsIgnoreCase("avg")) {
+            Alignment data = getData();
+            nrOfPatterns = data.getPatternCount();
+            patternWeights = new double[nrOfPatterns];
+            for (int j = 0; j < nrOfPatterns; j++) {
+                patternWeights[j] = data.getPatternWeight(j);
+            }
+            componentLogLikelihoodBuffers = new double[2][nrOfComponents * nrOfPatterns];
+            componentBuffer = new int[nrOfComponents];
+            storedComponentBuffer = new int[nrOfComponents];
+            logSiteModelWeights = new double[nrOfComponents];
+            patternMax = new double[nrOfPatterns];
+            patternSum = new double[nrOfPatterns];
+        }
+        componentLogP = new double[nrOfComponents];
+        storedComponentLogP = new double[nrOfComponents];
+        componentDirty = new boolean[nrOfComponents];
+        int nrOfPartials = mode.equalsIgnoreCase("mix") ? 1 :
+                mode.equalsIgnoreCase("both") ? nrOfComponents + 1 : nrOfComponents;
+        partialLogLikelihoods = new double[nrOfPartials];
+        storedPartialLogLikelihoods = new double[nrOfPartials];
+    }
+
+
+    /**
+     * Likelihoods evaluated concurrently may only share state nodes and data, which are read only during evaluation.
+     * @throws IllegalArgumentException if two likelihoods depend on the same calculation node
+     */
+    private void checkNothingShared(List<Distribution> likelihoods) {
+        Set<BEASTInterface> owned = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Distribution likelihood : likelihoods) {
+            Set<BEASTInterface> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+            collectDependencies(likelihood, nodes);
+            for (BEASTInterface node : nodes) {
+                if (node instanceof CalculationNode && !owned.add(node))
+                    throw new IllegalArgumentException("Tree likelihoods of " + getID() + " share " + node.getID() +
+                            ", which is not thread safe, so they cannot be evaluated with more than one thread.");
+            }
+        }
     }
 
+    // objects a likelihood depends on, not looking into state nodes and data
+    private static void collectDependencies(BEASTInterface beastObject, Set<BEASTInterface> nodes) {
+        for (BEASTInterface input : beastObject.listActiveBEASTObjects()) {
+            if (input instanceof StateNode || input instanceof Alignment)
+                continue;
+            if (nodes.add(input))
+                collectDependencies(input, nodes);
+        }
+    }
 
     @Override
     public double calculateLogP() {
         logP = 0;
-        double[] p = getPartialLogLikelihoods();
+        updatePartialLogLikelihoods();
+        double[] p = partialLogLikelihoods;
 
         for (double v : p) {
             if (Double.isInfinite(v) || Double.isNaN(v)) {
@@ -114,6 +265,7 @@ public class MixedTreeLikelihood extends Distribution {
     public List<String> getArguments() {
         List<String> arguments = new ArrayList<>();
         if (siteModelWeightsInput.get() != null) arguments.add(siteModelWeightsInput.get().getID());
+        if (multiModelLikelihood != null) arguments.addAll(multiModelLikelihood.getArguments());
         for (Distribution likelihood : pLikelihoods.get()) {
             arguments.addAll(likelihood.getArguments());
         }
@@ -124,6 +276,7 @@ public class MixedTreeLikelihood extends Distribution {
     public List<String> getConditions() {
         List<String> conditions = new ArrayList<>();
         if (metaWeightsInput.get() != null) conditions.add(metaWeightsInput.get().getID());
+        if (multiModelLikelihood != null) conditions.addAll(multiModelLikelihood.getConditions());
         for (Distribution likelihood : pLikelihoods.get()) {
             conditions.addAll(likelihood.getConditions());
         }
@@ -134,6 +287,8 @@ public class MixedTreeLikelihood extends Distribution {
 
     @Override
     public boolean isStochastic() {
+        if (multiModelLikelihood != null && multiModelLikelihood.isStochastic())
+            return true;
         for (Distribution likelihood : pLikelihoods.get()) {
             if (likelihood.isStochastic())
                 return true;
@@ -142,66 +297,343 @@ public class MixedTreeLikelihood extends Distribution {
         return false;
     }
 
+    /**
+     * @return number of site models (components), whether given as individual likelihoods or a multiModelLikelihood
+     */
+    public int getComponentCount() {
+        return nrOfComponents;
+    }
+
+    /**
+     * @return alignment shared by all components
+     */
+    public Alignment getData() {
+        if (multiModelLikelihood != null)
+            return multiModelLikelihood.dataInput.get();
+        return (Alignment) pLikelihoods.get().getFirst().getInput("data").get();
+    }
+
+    /**
+     * @return copy of the partial log likelihoods, see getPartialLogLikelihood(int)
+     */
     public double[] getPartialLogLikelihoods() {
-        double[] p;
-        int nrOfLikelihoods = pLikelihoods.get().size();
+        ensureUpToDate();
+        return partialLogLikelihoods.clone();
+    }
+
+    /**
+     * As getPartialLogLikelihoods(), but copies into out instead of allocating a new array,
+     * checking once that the current state was evaluated.
+     */
+    public void getPartialLogLikelihoods(double[] out) {
+        ensureUpToDate();
+        System.arraycopy(partialLogLikelihoods, 0, out, 0, partialLogLikelihoods.length);
+    }
+
+    /**
+     * @return number of partial log likelihoods: 1 for mix, one per likelihood for avg,
+     * and one more for the site mixture (last) for both
+     */
+    public int getPartialLogLikelihoodCount() {
+        return partialLogLikelihoods.length;
+    }
+
+    /**
+     * @return partial log likelihood i of the current state, including its meta weight unless in mix mode
+     */
+    public double getPartialLogLikelihood(int i) {
+        ensureUpToDate();
+        return partialLogLikelihoods[i];
+    }
+
+    /**
+     * @return site mixture log likelihood of the current state, without meta weight
+     */
+    public double getSiteMixtureLogLikelihood() {
+        if (componentLogLikelihoodBuffers == null)
+            throw new IllegalStateException("No site mixture models involved in 'avg' mode.");
+        ensureUpToDate();
+        return siteMixtureLogP;
+    }
+
+    /**
+     * Posterior probabilities of the site models under the site mixture for every pattern of the current state,
+     * pattern-major (pattern * number of components + model). Checks once that the current state was evaluated,
+     * so loggers call this once per sample rather than the per pattern accessors.
+     * @return read-only view, only valid until this likelihood is evaluated or restored again
+     */
+    public DoubleBuffer getResponsibilities() {
+        updateResponsibilities();
+        return responsibilityView.duplicate();
+    }
+
+    /**
+     * @return posterior probability of site model under the site mixture for the given pattern
+     * in the last evaluated state, a lookup unless the site mixture changed since the last request
+     */
+    public double getResponsibility(int pattern, int model) {
+        if (!responsibilitiesValid)
+            updateResponsibilities();
+        return responsibilities[pattern * nrOfComponents + model];
+    }
+
+    /**
+     * Copies the posterior probabilities of all site models for the given pattern in the last evaluated state
+     * into out, a lookup unless the site mixture changed since the last request.
+     */
+    public void getResponsibilities(int pattern, double[] out) {
+        if (!responsibilitiesValid)
+            updateResponsibilities();
+        System.arraycopy(responsibilities, pattern * nrOfComponents, out, 0, nrOfComponents);
+    }
+
+    // loggers may be called on a state that was never evaluated. somethingIsDirty() walks the inputs,
+    // so accessors called per element (e.g. per pattern) must not come through here.
+    private void ensureUpToDate() {
+        if (!partialsValid || somethingIsDirty())
+            updatePartialLogLikelihoods();
+    }
+
+    private void updatePartialLogLikelihoods() {
+        double[] p = partialLogLikelihoods;
+        int nrOfLikelihoods = nrOfComponents;
+        boolean componentsChanged = updateComponents();
 
         if (mode.equalsIgnoreCase("mix")) {
-            p = new double[1];
-            for (int i = 0; i < nrOfLikelihoods; i++) {
-                Distribution likelihood = pLikelihoods.get().get(i);
-                if (likelihood.somethingIsDirty()) likelihood.calculateLogP();
-            }
-            p[0] = calculateSiteMixtureLogP();
+            p[0] = getSiteMixtureLogP(componentsChanged);
 
         } else if (mode.equalsIgnoreCase("both")) {
-            p = new double[nrOfLikelihoods + 1];
             for (int i = 0; i < nrOfLikelihoods; i++) {
-                Distribution likelihood = pLikelihoods.get().get(i);
-                p[i] = likelihood.somethingIsDirty() ? likelihood.calculateLogP() : likelihood.getCurrentLogP();
+                p[i] = componentLogP[i];
                 p[i] += Math.log(metaWeights.get(i));
             }
 
-            p[nrOfLikelihoods] = calculateSiteMixtureLogP();
+            p[nrOfLikelihoods] = getSiteMixtureLogP(componentsChanged);
             p[nrOfLikelihoods] += Math.log(metaWeights.get(nrOfLikelihoods));
 
         } else if (mode.equalsIgnoreCase("avg")) {
-            p = new double[nrOfLikelihoods];
             for (int i = 0; i < nrOfLikelihoods; i++) {
-                Distribution likelihood = pLikelihoods.get().get(i);
-                p[i] = likelihood.somethingIsDirty() ? likelihood.calculateLogP() : likelihood.getCurrentLogP();
+                p[i] = componentLogP[i];
                 p[i] += Math.log(metaWeights.get(i));
             }
 
         } else throw new UnsupportedOperationException();
 
-        return p;
+        partialsValid = true;
+    }
+
+    private void updateResponsibilities() {
+        if (componentLogLikelihoodBuffers == null)
+            throw new IllegalStateException("No site mixture models involved in 'avg' mode.");
+        ensureUpToDate();
+        if (responsibilitiesValid)
+            return;
+
+        final int nrOfLikelihoods = nrOfComponents;
+        if (responsibilities == null) {
+            responsibilities = new double[nrOfPatterns * nrOfLikelihoods];
+            responsibilityView = DoubleBuffer.wrap(responsibilities).asReadOnlyBuffer();
+        }
+        for (int i = 0; i < nrOfLikelihoods; i++) {
+            logSiteModelWeights[i] = Math.log(siteModelWeights.get(i));
+        }
+        for (int j = 0; j < nrOfPatterns; j++) {
+            final int offset = j * nrOfLikelihoods;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < nrOfLikelihoods; i++) {
+                max = Math.max(max, componentLogLikelihood(i, j) + logSiteModelWeights[i]);
+            }
+            double sum = 0;
+            for (int i = 0; i < nrOfLikelihoods; i++) {
+                responsibilities[offset + i] = FastMath.exp(componentLogLikelihood(i, j) +
+                        logSiteModelWeights[i] - max);
+                sum += responsibilities[offset + i];
+            }
+            for (int i = 0; i < nrOfLikelihoods; i++) {
+                responsibilities[offset + i] /= sum;
+            }
+        }
+        responsibilitiesValid = true;
+    }
+
+    /**
+     * Recalculates the dirty tree likelihoods, concurrently when threads are available, and refreshes
+     * their cached log likelihoods once all of them are done.
+     * Components share data but not substitution models, so they are independent.
+     * @return whether any component changed, false on a move of the weights alone
+     */
+    private boolean updateComponents() {
+        if (multiModelLikelihood != null)
+            return updateMultiModelComponents();
+
+        List<Distribution> likelihoods = pLikelihoods.get();
+        int nrOfDirty = 0;
+        for (int i = 0; i < likelihoods.size(); i++) {
+            componentDirty[i] = !componentsValid || likelihoods.get(i).somethingIsDirty();
+            if (componentDirty[i]) nrOfDirty++;
+        }
+        if (nrOfDirty == 0)
+            return false;
+
+        if (executor != null && nrOfDirty > 1) {
+            dirtyTasks.clear();
+            for (int i = 0; i < likelihoods.size(); i++) {
+                if (componentDirty[i]) dirtyTasks.add(likelihoodTasks.get(i));
+            }
+            try {
+                // invokeAll only returns when every task is done
+                for (Future<Double> result : executor.invokeAll(dirtyTasks)) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        } else {
+            for (int i = 0; i < likelihoods.size(); i++) {
+                if (componentDirty[i]) likelihoods.get(i).calculateLogP();
+            }
+        }
+
+        for (int i = 0; i < likelihoods.size(); i++) {
+            if (!componentDirty[i]) continue;
+            Distribution likelihood = likelihoods.get(i);
+            componentLogP[i] = likelihood.getCurrentLogP();
+            if (componentLogLikelihoodBuffers != null) {
+                final double[] buffer = componentLogLikelihoodsForUpdate(i);
+                if (likelihood instanceof CachedTreeLikelihood cached) {
+                    cached.getPatternLogLikelihoods(buffer, i * nrOfPatterns);
+                } else {
+                    System.arraycopy(((TreeLikelihood) likelihood).getPatternLogLikelihoods(), 0,
+                            buffer, i * nrOfPatterns, nrOfPatterns);
+                }
+            }
+        }
+        componentsValid = true;
+        return true;
+    }
+
+    /**
+     * As updateComponents(), for components computed together by a multiModelLikelihood,
+     * which only recalculates the components that changed.
+     */
+    private boolean updateMultiModelComponents() {
+        if (componentsValid && !multiModelLikelihood.somethingIsDirty())
+            return false;
+
+        multiModelLikelihood.calculateLogP();
+        for (int i = 0; i < nrOfComponents; i++) {
+            componentLogP[i] = multiModelLikelihood.getComponentLogP(i);
+            if (componentLogLikelihoodBuffers != null)
+                multiModelLikelihood.getPatternLogLikelihoods(i, componentLogLikelihoodsForUpdate(i), i * nrOfPatterns);
+        }
+        componentsValid = true;
+        return true;
+    }
+
+    // buffer to write the pattern log likelihoods of component i to, leaving those of the stored state untouched
+    private double[] componentLogLikelihoodsForUpdate(int i) {
+        if (componentBuffer[i] == storedComponentBuffer[i])
+            componentBuffer[i] = 1 - componentBuffer[i];
+        return componentLogLikelihoodBuffers[componentBuffer[i]];
+    }
+
+    private double componentLogLikelihood(int i, int pattern) {
+        return componentLogLikelihoodBuffers[componentBuffer[i]][i * nrOfPatterns + pattern];
+    }
+
+    private double getSiteMixtureLogP(boolean componentsChanged) {
+        if (componentsChanged || !siteMixtureValid || siteModelWeights.somethingIsDirty()) {
+            siteMixtureLogP = calculateSiteMixtureLogP();
+            siteMixtureValid = true;
+            responsibilitiesValid = false;
+        }
+        return siteMixtureLogP;
     }
 
     public double[] getMetaWeights() {
         return metaWeights.getValues();
     }
 
+    /**
+     * Site mixture log likelihood, sum over patterns of weight * log(sum over models of w_i L_ij),
+     * from the component pattern log likelihoods cached in a flat buffer by updateComponents().
+     * The buffer is model-major, each component's patterns contiguous as copied from its likelihood, so the
+     * log-sum-exp runs as a max pass and an exp/sum pass over the contiguous patterns of one model at a time,
+     * accumulating into per-pattern work space, in linear time and without allocation.
+     */
     private double calculateSiteMixtureLogP() {
-        int nrOfLikelihoods = pLikelihoods.get().size();
-        int nrOfPatterns = ((TreeLikelihood) pLikelihoods.get().getFirst()).getPatternLogLikelihoods().length;
-        double[] pSite = new double[nrOfLikelihoods];
-        double logPMixture = 0;
-        Alignment data = ((TreeLikelihood) pLikelihoods.get().getFirst()).dataInput.get();
+        final int nrOfLikelihoods = nrOfComponents;
+        final int n = nrOfPatterns;
 
-        for (int j = 0; j < nrOfPatterns; j++) {
-            for (int i = 0; i < nrOfLikelihoods; i++) {
-                Distribution likelihood = pLikelihoods.get().get(i);
-                double[] patternLogLikelihoods = ((TreeLikelihood) likelihood).getPatternLogLikelihoods();
-                pSite[i] = patternLogLikelihoods[j];
-                pSite[i] += Math.log(siteModelWeights.get(i));
+        for (int i = 0; i < nrOfLikelihoods; i++) {
+            logSiteModelWeights[i] = Math.log(siteModelWeights.get(i));
+        }
+
+        Arrays.fill(patternMax, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < nrOfLikelihoods; i++) {
+            final double[] componentLogLikelihoods = componentLogLikelihoodBuffers[componentBuffer[i]];
+            final double logWeight = logSiteModelWeights[i];
+            final int offset = i * n;
+            for (int j = 0; j < n; j++) {
+                patternMax[j] = Math.max(patternMax[j], componentLogLikelihoods[offset + j] + logWeight);
             }
-            logPMixture += logSumExp(pSite) * data.getPatternWeight(j);
+        }
+
+        Arrays.fill(patternSum, 0.0);
+        for (int i = 0; i < nrOfLikelihoods; i++) {
+            final double[] componentLogLikelihoods = componentLogLikelihoodBuffers[componentBuffer[i]];
+            final double logWeight = logSiteModelWeights[i];
+            final int offset = i * n;
+            for (int j = 0; j < n; j++) {
+                // a pattern impossible under every model stays at sum 0, so log -infinity rather than NaN
+                if (patternMax[j] != Double.NEGATIVE_INFINITY)
+                    patternSum[j] += FastMath.exp(componentLogLikelihoods[offset + j] + logWeight - patternMax[j]);
+            }
+        }
+
+        double logPMixture = 0;
+        for (int j = 0; j < n; j++) {
+            logPMixture += (patternMax[j] + Math.log(patternSum[j])) * patternWeights[j];
         }
 
         return logPMixture;
     }
 
+    @Override
+    public void store() {
+        System.arraycopy(componentLogP, 0, storedComponentLogP, 0, componentLogP.length);
+        if (componentBuffer != null)
+            System.arraycopy(componentBuffer, 0, storedComponentBuffer, 0, nrOfComponents);
+        storedComponentsValid = componentsValid;
+        storedSiteMixtureLogP = siteMixtureLogP;
+        storedSiteMixtureValid = siteMixtureValid;
+        System.arraycopy(partialLogLikelihoods, 0, storedPartialLogLikelihoods, 0, partialLogLikelihoods.length);
+        storedPartialsValid = partialsValid;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        double[] tmp = componentLogP;
+        componentLogP = storedComponentLogP;
+        storedComponentLogP = tmp;
+        if (componentBuffer != null)
+            System.arraycopy(storedComponentBuffer, 0, componentBuffer, 0, nrOfComponents);
+        componentsValid = storedComponentsValid;
+        siteMixtureLogP = storedSiteMixtureLogP;
+        siteMixtureValid = storedSiteMixtureValid;
+        tmp = partialLogLikelihoods;
+        partialLogLikelihoods = storedPartialLogLikelihoods;
+        storedPartialLogLikelihoods = tmp;
+        partialsValid = storedPartialsValid;
+        // recomputed on request, as most restored states are not logged
+        responsibilitiesValid = false;
+        super.restore();
+    }
+
     private double logSumExp(double[] p) {
         double logP = 0;
         double max = Arrays.stream(p).max().getAsDouble();
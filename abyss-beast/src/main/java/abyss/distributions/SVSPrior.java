@@ -1,6 +1,7 @@
 package abyss.distributions;
 
 import abyss.inference.AbyssSVS;
+import abyss.inference.ConnectivityOracle;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.inference.Distribution;
@@ -14,7 +15,6 @@ import beast.base.spec.type.Simplex;
 import org.apache.commons.math3.util.FastMath;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -32,6 +32,10 @@ public class SVSPrior extends Distribution {
     final public Input<SimplexParam> empiricalQInput = new Input<>("empiricalQ", "empirical Q matrix informing bernoulli trials.", Input.Validate.OPTIONAL);
     final public Input<Boolean> isSymmetricInput = new Input<>("symmetric", "whether Q is reversible/symmetric rates.", Input.Validate.REQUIRED);
 
+    // indicator probabilities, and connectivity of the active rates kept up to date across states
+    private double[] p;
+    private ConnectivityOracle connectivity;
+
     public double calculateLogP() {
         this.logP = 0.0;
         double a = this.scaleInput.get().get();
@@ -40,51 +44,49 @@ public class SVSPrior extends Distribution {
             k = this.sensitivityInput.get().get();
         else k = 1.0;
 
-        Boolean[] indicators = this.indicatorsInput.get().getElements().toArray(new Boolean[0]);
+        BoolVectorParam indicators = this.indicatorsInput.get();
         int nrOfStates = this.nrOfStatesInput.get();
-        int nrOfRates = isSymmetricInput.get() ? (nrOfStates*nrOfStates-nrOfStates)/2 : nrOfStates*nrOfStates-nrOfStates;
-        Double[] rates = new Double[nrOfRates];
-        if (this.empiricalQInput.get() != null) {
-            if (this.empiricalQInput.get().size() != nrOfRates) throw new IllegalArgumentException("Number of empirical rates must be "+nrOfRates+".");
-            rates = this.empiricalQInput.get().getElements().toArray(new Double[0]);
-        }
-        else {
-            Arrays.fill(rates, (double) 1 /nrOfRates); // uninformed Bernoulli: each indicator will have equal probability of being active
-        }
+        int nrOfRates = indicators.size();
+        SimplexParam empiricalQ = this.empiricalQInput.get();
+        if (empiricalQ != null && empiricalQ.size() != nrOfRates)
+            throw new IllegalArgumentException("Number of empirical rates must be "+nrOfRates+".");
 
-        double[] p = new double[rates.length];
-        for (int i = 0; i < p.length; i++) {
-            double x = Math.log(p.length * rates[i]);
+        int sum = 0;
+        for (int i = 0; i < nrOfRates; i++) {
+            // uninformed Bernoulli: each indicator will have equal probability of being active
+            double rate = empiricalQ != null ? empiricalQ.get(i) : 1.0 / nrOfRates;
+            double x = Math.log(nrOfRates * rate);
             x *= -k; // sensitivity to empirical Q input is applied
             p[i] = a/(a + FastMath.exp(x)); // probability of indicator scaled
             if (p[i] < 0 || p[i] > 1)
                 return Double.NEGATIVE_INFINITY;
-        }
-        for (int i = 0; i < p.length; i++) {
-            logP += indicators[i] ? Math.log(p[i]) : Math.log(1-p[i]);
-        }
 
-        int sum = 0;
-        for (Boolean indicator : indicators) {
-            if (indicator) {
-                sum++;
-            }
+            boolean indicator = indicators.get(i);
+            logP += indicator ? Math.log(p[i]) : Math.log(1-p[i]);
+            if (indicator) sum++;
+            connectivity.setIndicator(i, indicator);
         }
         if (sum < nrOfStates)
             return Double.NEGATIVE_INFINITY;
 
-        Double[] indicatorValues = new Double[indicators.length];
-        for (int i = 0; i < indicators.length; i++) {
-            indicatorValues[i] = indicators[i] ? 1.0 : 0.0;
-        }
-        Boolean sym = this.isSymmetricInput.get();
-        if (!AbyssSVS.Utils.connectedAndWellConditioned(p) ||
-                !AbyssSVS.Utils.isStronglyConnected(indicatorValues, nrOfStates, sym))
+        if (!AbyssSVS.Utils.connectedAndWellConditioned(p) || !connectivity.isStronglyConnected())
             return Double.NEGATIVE_INFINITY;
 
         return logP;
     }
 
+    @Override
+    public void store() {
+        connectivity.store();
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        connectivity.restore();
+        super.restore();
+    }
+
     @Override
     public List<String> getArguments() {
         List<String> args = new ArrayList<>();
@@ -113,6 +115,8 @@ public class SVSPrior extends Distribution {
             throw new RuntimeException("Indicators must have " +
                     (nrOfStates * nrOfStates - nrOfStates)/symQ + " dimension, based on specified number of states.");
         }
+        p = new double[indicatorsInput.get().size()];
+        connectivity = new ConnectivityOracle(nrOfStates, isSymmetricInput.get());
 
         if (this.sensitivityInput.get() != null)
             if (this.empiricalQInput.get() == null) throw new RuntimeException("SVS probability sensitivity should" +
@@ -0,0 +1,97 @@
+package abyss.inference;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+
+import java.util.Arrays;
+
+/**
+ * Java likelihood core specialised for a fixed number of states, 4 (nucleotides) or 20 (amino acids).
+ * Subclasses prune partials with the state count as a constant, so that loops are unrolled and matrix entries
+ * kept in registers, and transition probability matrices are read as given (row = parent state), so
+ * the non-symmetric matrices of non-reversible models need no special care.
+ * Scaling reads the partials of a node once per pattern and the log scaling factors of all nodes are
+ * summed node by node before root integration, instead of striding over nodes per pattern.
+ * @author Jasmine Saghafifar
+ */
+public abstract class AbyssLikelihoodCore extends BeerLikelihoodCore {
+
+    // as BeerLikelihoodCore
+    protected static final double SCALING_THRESHOLD = 1.0E-100;
+
+    // sum over nodes of the log scaling factors, per pattern
+    protected double[] logScalingFactors;
+
+    protected AbyssLikelihoodCore(int nrOfStates) {
+        super(nrOfStates);
+    }
+
+    /**
+     * @return whether there is a specialised core for this number of states
+     */
+    public static boolean supports(int stateCount) {
+        return stateCount == 4 || stateCount == 20;
+    }
+
+    /**
+     * @return core specialised for the given number of states, see supports(int)
+     */
+    public static AbyssLikelihoodCore create(int stateCount) {
+        return switch (stateCount) {
+            case 4 -> new AbyssLikelihoodCore4();
+            case 20 -> new AbyssLikelihoodCore20();
+            default -> throw new IllegalArgumentException("No ABySS likelihood core for " + stateCount + " states");
+        };
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+        super.initialize(nodeCount, patternCount, matrixCount, integrateCategories, useAmbiguities);
+        logScalingFactors = new double[patternCount];
+    }
+
+    /**
+     * Sums the log scaling factors of all nodes per pattern into logScalingFactors,
+     * in the same order as getLogScalingFactor(int), so results are identical.
+     */
+    protected void accumulateLogScalingFactors() {
+        Arrays.fill(logScalingFactors, 0.0);
+        if (!useScaling)
+            return;
+        for (int i = 0; i < nrOfNodes; i++) {
+            final double[] nodeScalingFactors = scalingFactors[currentPartialsIndex[i]][i];
+            for (int k = 0; k < nrOfPatterns; k++) {
+                logScalingFactors[k] += nodeScalingFactors[k];
+            }
+        }
+    }
+
+    @Override
+    protected void scalePartials(int nodeIndex) {
+        final double[] nodePartials = partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+        final double[] nodeScalingFactors = scalingFactors[currentPartialsIndex[nodeIndex]][nodeIndex];
+        final int stateCount = nrOfStates;
+        final int block = nrOfPatterns * stateCount;
+
+        for (int k = 0, u = 0; k < nrOfPatterns; k++, u += stateCount) {
+            double scaleFactor = 0.0;
+            for (int l = 0, v = u; l < nrOfMatrices; l++, v += block) {
+                for (int i = 0; i < stateCount; i++) {
+                    if (nodePartials[v + i] > scaleFactor)
+                        scaleFactor = nodePartials[v + i];
+                }
+            }
+
+            if (scaleFactor < SCALING_THRESHOLD) {
+                for (int l = 0, v = u; l < nrOfMatrices; l++, v += block) {
+                    for (int i = 0; i < stateCount; i++) {
+                        nodePartials[v + i] /= scaleFactor;
+                    }
+                }
+                nodeScalingFactors[k] = Math.log(scaleFactor);
+            } else {
+                nodeScalingFactors[k] = 0.0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+package abyss.inference;
+
+/**
+ * Amino acid implementation of AbyssLikelihoodCore. The state count is a compile time constant,
+ * so the 20 x 20 matrix-vector products of pruning have fixed trip counts the JIT unrolls and vectorises,
+ * and both children are pruned in the same pass over a matrix row.
+ * @author Jasmine Saghafifar
+ */
+public class AbyssLikelihoodCore20 extends AbyssLikelihoodCore {
+
+    private static final int STATES = 20;
+    private static final int MATRIX_SIZE = STATES * STATES;
+
+    public AbyssLikelihoodCore20() {
+        super(STATES);
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have states.
+     */
+    @Override
+    protected void calculateStatesStatesPruning(int[] stateIndex1, double[] matrices1,
+                                                int[] stateIndex2, double[] matrices2,
+                                                double[] partials3) {
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            final int w = l * MATRIX_SIZE;
+            for (int k = 0; k < nrOfPatterns; k++, v += STATES) {
+                final int state1 = stateIndex1[k];
+                final int state2 = stateIndex2[k];
+
+                if (state1 < STATES && state2 < STATES) {
+                    for (int i = 0; i < STATES; i++) {
+                        partials3[v + i] = matrices1[w + i * STATES + state1] * matrices2[w + i * STATES + state2];
+                    }
+                } else if (state1 < STATES) {
+                    // child 2 has a gap or unknown state so don't use it
+                    for (int i = 0; i < STATES; i++) {
+                        partials3[v + i] = matrices1[w + i * STATES + state1];
+                    }
+                } else if (state2 < STATES) {
+                    // child 1 has a gap or unknown state so don't use it
+                    for (int i = 0; i < STATES; i++) {
+                        partials3[v + i] = matrices2[w + i * STATES + state2];
+                    }
+                } else {
+                    // both children have a gap or unknown state so set partials to 1
+                    for (int i = 0; i < STATES; i++) {
+                        partials3[v + i] = 1.0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when one child has states and one has partials.
+     */
+    @Override
+    protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matrices1,
+                                                  double[] partials2, double[] matrices2,
+                                                  double[] partials3) {
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            final int w = l * MATRIX_SIZE;
+            for (int k = 0; k < nrOfPatterns; k++, v += STATES) {
+                final int state1 = stateIndex1[k];
+                for (int i = 0; i < STATES; i++) {
+                    final int row = w + i * STATES;
+                    double sum = 0.0;
+                    for (int j = 0; j < STATES; j++) {
+                        sum += matrices2[row + j] * partials2[v + j];
+                    }
+                    // a gap or unknown state in child 1 contributes 1
+                    partials3[v + i] = state1 < STATES ? matrices1[row + state1] * sum : sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have partials.
+     */
+    @Override
+    protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+                                                    double[] partials2, double[] matrices2,
+                                                    double[] partials3) {
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            final int w = l * MATRIX_SIZE;
+            for (int k = 0; k < nrOfPatterns; k++, v += STATES) {
+                for (int i = 0; i < STATES; i++) {
+                    final int row = w + i * STATES;
+                    double sum1 = 0.0;
+                    double sum2 = 0.0;
+                    for (int j = 0; j < STATES; j++) {
+                        sum1 += matrices1[row + j] * partials1[v + j];
+                        sum2 += matrices2[row + j] * partials2[v + j];
+                    }
+                    partials3[v + i] = sum1 * sum2;
+                }
+            }
+        }
+    }
+
+    /**
+     * Integrates partials across categories.
+     */
+    @Override
+    protected void calculateIntegratePartials(double[] inPartials, double[] proportions, double[] outPartials) {
+        final int size = nrOfPatterns * STATES;
+        final double proportion0 = proportions[0];
+        for (int u = 0; u < size; u++) {
+            outPartials[u] = inPartials[u] * proportion0;
+        }
+        for (int l = 1, v = size; l < nrOfMatrices; l++, v += size) {
+            final double proportion = proportions[l];
+            for (int u = 0; u < size; u++) {
+                outPartials[u] += inPartials[v + u] * proportion;
+            }
+        }
+    }
+
+    /**
+     * Calculates pattern log likelihoods at a node.
+     */
+    @Override
+    public void calculateLogLikelihoods(double[] partials, double[] frequencies, double[] outLogLikelihoods) {
+        accumulateLogScalingFactors();
+        for (int k = 0, v = 0; k < nrOfPatterns; k++, v += STATES) {
+            double sum = 0.0;
+            for (int i = 0; i < STATES; i++) {
+                sum += frequencies[i] * partials[v + i];
+            }
+            outLogLikelihoods[k] = Math.log(sum) + logScalingFactors[k];
+        }
+    }
+
+}
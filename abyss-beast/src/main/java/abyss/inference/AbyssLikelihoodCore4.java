@@ -0,0 +1,162 @@
+package abyss.inference;
+
+/**
+ * Nucleotide implementation of AbyssLikelihoodCore. Loops over states are unrolled and the 16 entries
+ * of each transition probability matrix are read once per rate category rather than once per pattern.
+ * @author Jasmine Saghafifar
+ */
+public class AbyssLikelihoodCore4 extends AbyssLikelihoodCore {
+
+    public AbyssLikelihoodCore4() {
+        super(4);
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have states.
+     */
+    @Override
+    protected void calculateStatesStatesPruning(int[] stateIndex1, double[] matrices1,
+                                                int[] stateIndex2, double[] matrices2,
+                                                double[] partials3) {
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            final int w = l * 16;
+            for (int k = 0; k < nrOfPatterns; k++, v += 4) {
+                final int state1 = stateIndex1[k];
+                final int state2 = stateIndex2[k];
+
+                if (state1 < 4 && state2 < 4) {
+                    partials3[v] = matrices1[w + state1] * matrices2[w + state2];
+                    partials3[v + 1] = matrices1[w + 4 + state1] * matrices2[w + 4 + state2];
+                    partials3[v + 2] = matrices1[w + 8 + state1] * matrices2[w + 8 + state2];
+                    partials3[v + 3] = matrices1[w + 12 + state1] * matrices2[w + 12 + state2];
+                } else if (state1 < 4) {
+                    // child 2 has a gap or unknown state so don't use it
+                    partials3[v] = matrices1[w + state1];
+                    partials3[v + 1] = matrices1[w + 4 + state1];
+                    partials3[v + 2] = matrices1[w + 8 + state1];
+                    partials3[v + 3] = matrices1[w + 12 + state1];
+                } else if (state2 < 4) {
+                    // child 1 has a gap or unknown state so don't use it
+                    partials3[v] = matrices2[w + state2];
+                    partials3[v + 1] = matrices2[w + 4 + state2];
+                    partials3[v + 2] = matrices2[w + 8 + state2];
+                    partials3[v + 3] = matrices2[w + 12 + state2];
+                } else {
+                    // both children have a gap or unknown state so set partials to 1
+                    partials3[v] = 1.0;
+                    partials3[v + 1] = 1.0;
+                    partials3[v + 2] = 1.0;
+                    partials3[v + 3] = 1.0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when one child has states and one has partials.
+     */
+    @Override
+    protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matrices1,
+                                                  double[] partials2, double[] matrices2,
+                                                  double[] partials3) {
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            final int w = l * 16;
+            final double m00 = matrices2[w], m01 = matrices2[w + 1], m02 = matrices2[w + 2], m03 = matrices2[w + 3];
+            final double m10 = matrices2[w + 4], m11 = matrices2[w + 5], m12 = matrices2[w + 6], m13 = matrices2[w + 7];
+            final double m20 = matrices2[w + 8], m21 = matrices2[w + 9], m22 = matrices2[w + 10], m23 = matrices2[w + 11];
+            final double m30 = matrices2[w + 12], m31 = matrices2[w + 13], m32 = matrices2[w + 14], m33 = matrices2[w + 15];
+
+            for (int k = 0; k < nrOfPatterns; k++, v += 4) {
+                final double p0 = partials2[v], p1 = partials2[v + 1], p2 = partials2[v + 2], p3 = partials2[v + 3];
+                final double sum0 = m00 * p0 + m01 * p1 + m02 * p2 + m03 * p3;
+                final double sum1 = m10 * p0 + m11 * p1 + m12 * p2 + m13 * p3;
+                final double sum2 = m20 * p0 + m21 * p1 + m22 * p2 + m23 * p3;
+                final double sum3 = m30 * p0 + m31 * p1 + m32 * p2 + m33 * p3;
+
+                final int state1 = stateIndex1[k];
+                if (state1 < 4) {
+                    partials3[v] = matrices1[w + state1] * sum0;
+                    partials3[v + 1] = matrices1[w + 4 + state1] * sum1;
+                    partials3[v + 2] = matrices1[w + 8 + state1] * sum2;
+                    partials3[v + 3] = matrices1[w + 12 + state1] * sum3;
+                } else {
+                    // child 1 has a gap or unknown state so don't use it
+                    partials3[v] = sum0;
+                    partials3[v + 1] = sum1;
+                    partials3[v + 2] = sum2;
+                    partials3[v + 3] = sum3;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihoods at a node when both children have partials.
+     */
+    @Override
+    protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+                                                    double[] partials2, double[] matrices2,
+                                                    double[] partials3) {
+        int v = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            final int w = l * 16;
+            final double a00 = matrices1[w], a01 = matrices1[w + 1], a02 = matrices1[w + 2], a03 = matrices1[w + 3];
+            final double a10 = matrices1[w + 4], a11 = matrices1[w + 5], a12 = matrices1[w + 6], a13 = matrices1[w + 7];
+            final double a20 = matrices1[w + 8], a21 = matrices1[w + 9], a22 = matrices1[w + 10], a23 = matrices1[w + 11];
+            final double a30 = matrices1[w + 12], a31 = matrices1[w + 13], a32 = matrices1[w + 14], a33 = matrices1[w + 15];
+            final double b00 = matrices2[w], b01 = matrices2[w + 1], b02 = matrices2[w + 2], b03 = matrices2[w + 3];
+            final double b10 = matrices2[w + 4], b11 = matrices2[w + 5], b12 = matrices2[w + 6], b13 = matrices2[w + 7];
+            final double b20 = matrices2[w + 8], b21 = matrices2[w + 9], b22 = matrices2[w + 10], b23 = matrices2[w + 11];
+            final double b30 = matrices2[w + 12], b31 = matrices2[w + 13], b32 = matrices2[w + 14], b33 = matrices2[w + 15];
+
+            for (int k = 0; k < nrOfPatterns; k++, v += 4) {
+                final double p0 = partials1[v], p1 = partials1[v + 1], p2 = partials1[v + 2], p3 = partials1[v + 3];
+                final double q0 = partials2[v], q1 = partials2[v + 1], q2 = partials2[v + 2], q3 = partials2[v + 3];
+                partials3[v] = (a00 * p0 + a01 * p1 + a02 * p2 + a03 * p3) * (b00 * q0 + b01 * q1 + b02 * q2 + b03 * q3);
+                partials3[v + 1] = (a10 * p0 + a11 * p1 + a12 * p2 + a13 * p3) * (b10 * q0 + b11 * q1 + b12 * q2 + b13 * q3);
+                partials3[v + 2] = (a20 * p0 + a21 * p1 + a22 * p2 + a23 * p3) * (b20 * q0 + b21 * q1 + b22 * q2 + b23 * q3);
+                partials3[v + 3] = (a30 * p0 + a31 * p1 + a32 * p2 + a33 * p3) * (b30 * q0 + b31 * q1 + b32 * q2 + b33 * q3);
+            }
+        }
+    }
+
+    /**
+     * Integrates partials across categories.
+     */
+    @Override
+    protected void calculateIntegratePartials(double[] inPartials, double[] proportions, double[] outPartials) {
+        final int size = nrOfPatterns * 4;
+        final double proportion0 = proportions[0];
+        for (int u = 0; u < size; u += 4) {
+            outPartials[u] = inPartials[u] * proportion0;
+            outPartials[u + 1] = inPartials[u + 1] * proportion0;
+            outPartials[u + 2] = inPartials[u + 2] * proportion0;
+            outPartials[u + 3] = inPartials[u + 3] * proportion0;
+        }
+        for (int l = 1, v = size; l < nrOfMatrices; l++) {
+            final double proportion = proportions[l];
+            for (int u = 0; u < size; u += 4, v += 4) {
+                outPartials[u] += inPartials[v] * proportion;
+                outPartials[u + 1] += inPartials[v + 1] * proportion;
+                outPartials[u + 2] += inPartials[v + 2] * proportion;
+                outPartials[u + 3] += inPartials[v + 3] * proportion;
+            }
+        }
+    }
+
+    /**
+     * Calculates pattern log likelihoods at a node.
+     */
+    @Override
+    public void calculateLogLikelihoods(double[] partials, double[] frequencies, double[] outLogLikelihoods) {
+        accumulateLogScalingFactors();
+        final double f0 = frequencies[0], f1 = frequencies[1], f2 = frequencies[2], f3 = frequencies[3];
+        for (int k = 0, v = 0; k < nrOfPatterns; k++, v += 4) {
+            final double sum = f0 * partials[v] + f1 * partials[v + 1] + f2 * partials[v + 2] + f3 * partials[v + 3];
+            outLogLikelihoods[k] = Math.log(sum) + logScalingFactors[k];
+        }
+    }
+
+}
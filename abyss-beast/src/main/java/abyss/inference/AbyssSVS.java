@@ -4,7 +4,6 @@ import beast.base.core.Description;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.spec.inference.parameter.BoolVectorParam;
 import beast.base.util.Randomizer;
-import cern.colt.bitvector.BitVector;
 
 /**
  * ported from beast1 to BEAST_CLASSIC - author: Marc Suchard
@@ -47,16 +46,14 @@ public interface AbyssSVS {
 
         // unused methods - maybe implement as stateInitializer to make sure initial state is well connected
         public static void randomize(BoolVectorParam indicators,int dim, boolean reversible) {
-            Double[] indicatorValues = new Double[indicators.size()];
-            for (int i = 0; i < indicators.size(); i++) {
-                indicatorValues[i] = indicators.get(i) ? 1.0 : 0.0;
-            }
+            IndicatorGraph graph = new IndicatorGraph(dim, reversible);
             do {
-                for (int i = 0; i < indicators.size(); i++)
+                for (int i = 0; i < indicators.size(); i++) {
                     indicators.set(i,
                             !(Randomizer.nextDouble() < 0.5));
-            } while (!(isStronglyConnected(indicatorValues,
-                    dim, reversible)));
+                    graph.setIndicator(i, indicators.get(i));
+                }
+            } while (!graph.isStronglyConnected());
         }
 
         public static void setTolerance(double newTolerance) {
@@ -78,43 +75,18 @@ public interface AbyssSVS {
         * a directed path from any vertex to any other vertex
         *
         */
-        public static boolean isStronglyConnected(Double[] indicatorValues, int dim, boolean reversible) {
-            BitVector visited = new BitVector(dim);
-            boolean connected = true;
-            for (int i = 0; i < dim && connected; i++) {
-                visited.clear();
-                depthFirstSearch(i, visited, indicatorValues, dim, reversible);
-                connected = visited.cardinality() == dim;
-            }
-            return connected;
-        }
-
-        private static boolean hasEdge(int i, int j, Double[] indicatorValues,
-                                       int dim, boolean reversible) {
-            return i != j && indicatorValues[getEntry(i, j, dim, reversible)] == 1;
+        public static boolean isStronglyConnected(boolean[] indicatorValues, int dim, boolean reversible) {
+            IndicatorGraph graph = new IndicatorGraph(dim, reversible);
+            graph.setIndicators(indicatorValues);
+            return graph.isStronglyConnected();
         }
 
-        private static int getEntry(int i, int j, int dim, boolean reversible) {
-            if (reversible) {
-                if (j < i) {
-                    return getEntry(j,i,dim,reversible);
-                }
-                return i * dim - i * (i + 1) / 2 + j - 1 -i;
-            }
-
-            int entry = i * (dim - 1) + j;
-            if (j > i)
-                entry--;
-            return entry;
-        }
-
-        private static void depthFirstSearch(int node, BitVector visited, Double[] indicatorValues,
-                                             int dim, boolean reversible) {
-            visited.set(node);
-            for (int v = 0; v < dim; v++) {
-                if (hasEdge(node, v, indicatorValues, dim, reversible) && !visited.get(v))
-                    depthFirstSearch(v, visited, indicatorValues, dim, reversible);
+        public static boolean isStronglyConnected(Double[] indicatorValues, int dim, boolean reversible) {
+            boolean[] indicators = new boolean[indicatorValues.length];
+            for (int i = 0; i < indicators.length; i++) {
+                indicators[i] = indicatorValues[i] == 1;
             }
+            return isStronglyConnected(indicators, dim, reversible);
         }
 
         private static double defaultExpectedMutations = 1.0;
@@ -1,27 +1,85 @@
 package abyss.inference;
 
-import beagle.Beagle;
 import beast.base.spec.evolution.likelihood.BeagleTreeLikelihood;
 
+import java.util.Arrays;
+
 /**
+ * BeagleTreeLikelihood with restore in constant time. The log likelihood is restored by Distribution,
+ * the pattern log likelihoods by switching back to their stored buffer, so a rejected proposal makes no BEAGLE call.
+ * Pattern log likelihoods are only pulled from BEAGLE when requested, or on store, while BEAGLE still holds them.
+ * @author Jasmine Saghafifar
  * @author Remco Bouckaert
  */
 public class CachedBeagleTreeLikelihood extends BeagleTreeLikelihood {
 
+    // pattern log likelihoods are double buffered as in CachedTreeLikelihood: store marks the current buffer as
+    // stored, the next evaluation writes to the other one, and restore switches back, so neither copies.
+    // Each buffer carries the version (evaluation count) of the state it holds.
+    protected double[][] patternLogLikelihoodBuffers;
+    protected long[] patternLogLikelihoodVersions;
+    protected int currentBuffer = 0;
+    protected int storedBuffer = 1;
+    protected long currentVersion = 0;
+    protected long storedVersion = 0;
+    private long evaluationCount = 0;
+
     @Override
-    public void restore() {
-        super.restore();
-        
-        double[] sumLogLikelihoods = new double[1];
-        int rootIndex = partialBufferHelper.getOffsetIndex(treeInput.get().getRoot().getNr());
+    public void initAndValidate() {
+        super.initAndValidate();
+        patternLogLikelihoodBuffers = new double[2][patternCount];
+        patternLogLikelihoodVersions = new long[]{-1, -1};
+        patternLogLikelihoods = patternLogLikelihoodBuffers[currentBuffer];
+    }
 
-        int cumulateScaleBufferIndex = Beagle.NONE;
-        if (useScaleFactors) {
-           cumulateScaleBufferIndex = scaleBufferHelper.getOffsetIndex(internalNodeCount);
+    @Override
+    public double calculateLogP() {
+        currentVersion = ++evaluationCount;
+        if (currentBuffer == storedBuffer) {
+            // keep the stored state's pattern log likelihoods, write this state's to the other buffer
+            currentBuffer = 1 - storedBuffer;
+            patternLogLikelihoods = patternLogLikelihoodBuffers[currentBuffer];
         }
-        
-        getBeagle().calculateRootLogLikelihoods(new int[]{rootIndex}, new int[]{0}, new int[]{0},
-                new int[]{cumulateScaleBufferIndex}, 1, sumLogLikelihoods);
+        try {
+            logP = super.calculateLogP();
+        } catch (ArithmeticException e) {
+            // no rate matrix of the model could be decomposed yet: BEAGLE's site log likelihoods are not those of this state
+            logP = Double.NEGATIVE_INFINITY;
+            Arrays.fill(patternLogLikelihoods, Double.NEGATIVE_INFINITY);
+            patternLogLikelihoodVersions[currentBuffer] = currentVersion;
+        }
+        return logP;
+    }
+
+    // BEAGLE holds the current state's site log likelihoods unless it was restored, and restored states were pulled on store
+    private void updatePatternLogLikelihoods() {
+        if (patternLogLikelihoodVersions[currentBuffer] != currentVersion) {
+            getBeagle().getSiteLogLikelihoods(patternLogLikelihoods);
+            patternLogLikelihoodVersions[currentBuffer] = currentVersion;
+        }
+    }
+
+    @Override
+    public double[] getPatternLogLikelihoods() {
+        updatePatternLogLikelihoods();
+        return patternLogLikelihoods.clone();
+    }
+
+    @Override
+    public void store() {
+        super.store();
+        // BEAGLE only holds the last evaluated state, which may not come back after a restore
+        updatePatternLogLikelihoods();
+        storedBuffer = currentBuffer;
+        storedVersion = currentVersion;
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+        currentBuffer = storedBuffer;
+        currentVersion = storedVersion;
+        patternLogLikelihoods = patternLogLikelihoodBuffers[currentBuffer];
     }
 
 }
@@ -1,43 +1,289 @@
 package abyss.inference;
 
+import abyss.substitutionmodel.ABySSubstitutionModel;
+import beast.base.core.Input;
+import beast.base.evolution.likelihood.LikelihoodCore;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
 import beast.base.spec.evolution.likelihood.TreeLikelihood;
 
+import java.nio.DoubleBuffer;
+import java.util.List;
+
 /**
  * @author Jasmine Saghafifar
  * @author Remco Bouckaert
  */
 public class CachedTreeLikelihood extends TreeLikelihood {
 
-    protected double[] storedPatternLogLikelihoods;
+    final public Input<Boolean> abyssCoreInput = new Input<>("abyssCore",
+            "use the java likelihood core specialised for 4 and 20 states when BEAGLE is not used (default true)", true);
+
+    // pattern log likelihoods are double buffered: store marks the current buffer as stored, the next evaluation
+    // writes to the other one, and restore switches back, so neither copies. Each buffer carries the version
+    // (evaluation count) of the state it holds, so the pull from BEAGLE happens once per state, and only on request.
+    protected double[][] patternLogLikelihoodBuffers;
+    protected DoubleBuffer[] patternLogLikelihoodViews;
+    protected long[] patternLogLikelihoodVersions;
+    protected int currentBuffer = 0;
+    protected int storedBuffer = 1;
+    protected long currentVersion = 0;
+    protected long storedVersion = 0;
+    private long evaluationCount = 0;
+    private boolean rootUpdated;
+
+    // batched transition probabilities for ABySS substitution models (java likelihood core only)
+    protected ABySSubstitutionModel batchSubstitutionModel;
+    protected double[] batchDistances;
+    protected double[] batchMatrices;
 
     @Override
     public void initAndValidate() {
         super.initAndValidate();
-        patternLogLikelihoods = new double[alignment.getPatternCount()];
-        storedPatternLogLikelihoods = new double[alignment.getPatternCount()];
+        patternLogLikelihoodBuffers = new double[2][alignment.getPatternCount()];
+        patternLogLikelihoodViews = new DoubleBuffer[2];
+        for (int i = 0; i < 2; i++) {
+            patternLogLikelihoodViews[i] = DoubleBuffer.wrap(patternLogLikelihoodBuffers[i]).asReadOnlyBuffer();
+        }
+        patternLogLikelihoodVersions = new long[]{-1, -1};
+        patternLogLikelihoods = patternLogLikelihoodBuffers[currentBuffer];
+
+        if (beagle == null && substitutionModel instanceof ABySSubstitutionModel model) {
+            int stateCount = model.getStateCount();
+            batchSubstitutionModel = model;
+            batchDistances = new double[m_siteModel.getCategoryCount()];
+            batchMatrices = new double[m_siteModel.getCategoryCount() * stateCount * stateCount];
+        }
     }
 
-    
+
+    /**
+     * Large-state ABySS models propagate partials with expmv instead of transition matrices.
+     * Nucleotide and amino acid models use a core specialised for their state count unless abyssCore is false.
+     */
     @Override
-    public double[] getPatternLogLikelihoods() {
-        if (beagle != null && somethingIsDirty()) {
+    protected LikelihoodCore createLikelihoodCore(int stateCount) {
+        if (substitutionModel instanceof ABySSubstitutionModel model && model.usesExpmv()) {
+            return new ExpmvLikelihoodCore(stateCount, model);
+        }
+        if (abyssCoreInput.get() && AbyssLikelihoodCore.supports(stateCount)) {
+            return AbyssLikelihoodCore.create(stateCount);
+        }
+        return super.createLikelihoodCore(stateCount);
+    }
+
+    /**
+     * @return whether the likelihood is computed by BEAGLE rather than a java likelihood core
+     */
+    public boolean usesBeagle() {
+        return beagle != null;
+    }
+
+    /**
+     * Recalculates the log likelihood ignoring all cached partials and transition probabilities.
+     * For likelihoods evaluated outside the posterior (e.g. by ModelIndicatorGibbsOperator),
+     * which do not get to see what changed in the state. Java likelihood core only.
+     */
+    public double calculateLogPFromScratch() {
+        if (usesBeagle())
+            throw new IllegalStateException("Likelihood " + getID() + " must use the java likelihood core " +
+                    "to be evaluated from scratch");
+        hasDirt = Tree.IS_FILTHY;
+        return calculateLogP();
+    }
+
+    @Override
+    public double calculateLogP() {
+        final long previousVersion = currentVersion;
+        currentVersion = ++evaluationCount;
+        if (currentBuffer == storedBuffer) {
+            // keep the stored state's pattern log likelihoods, write this state's to the other buffer
+            currentBuffer = 1 - storedBuffer;
+            patternLogLikelihoods = patternLogLikelihoodBuffers[currentBuffer];
+        }
+        rootUpdated = false;
+        try {
+            logP = super.calculateLogP();
+        } catch (ArithmeticException e) {
+            // the expmv core of a rate matrix without exponential
+            logP = Double.NEGATIVE_INFINITY;
+        }
+        if (Double.isNaN(logP)) {
+            // NaN transition probabilities of a rate matrix without exponential
+            logP = Double.NEGATIVE_INFINITY;
+        }
+        if (beagle == null) {
+            if (!rootUpdated && patternLogLikelihoodVersions[currentBuffer] != previousVersion) {
+                // nothing changed below the root, so the pattern log likelihoods are those of the previous state
+                System.arraycopy(patternLogLikelihoodBuffers[1 - currentBuffer], 0, patternLogLikelihoods, 0,
+                        patternLogLikelihoods.length);
+            }
+            patternLogLikelihoodVersions[currentBuffer] = currentVersion;
+        }
+        return logP;
+    }
+
+    // the current state was the last one evaluated unless it was restored, and restored states were pulled on store
+    private void updatePatternLogLikelihoods() {
+        if (beagle != null && patternLogLikelihoodVersions[currentBuffer] != currentVersion) {
             System.arraycopy(beagle.getPatternLogLikelihoods(), 0, patternLogLikelihoods, 0, patternLogLikelihoods.length);
+            patternLogLikelihoodVersions[currentBuffer] = currentVersion;
         }
-		return patternLogLikelihoods.clone();
     }
-    
+
+    @Override
+    public double[] getPatternLogLikelihoods() {
+        updatePatternLogLikelihoods();
+        return patternLogLikelihoods.clone();
+    }
+
+    /**
+     * As getPatternLogLikelihoods(), but copies into out from offset instead of allocating a new array.
+     */
+    public void getPatternLogLikelihoods(double[] out, int offset) {
+        updatePatternLogLikelihoods();
+        System.arraycopy(patternLogLikelihoods, 0, out, offset, patternLogLikelihoods.length);
+    }
+
+    /**
+     * Read-only view of the pattern log likelihoods of the current state, without copying.
+     * Only valid until this likelihood is evaluated or restored again.
+     */
+    public DoubleBuffer getPatternLogLikelihoodView() {
+        updatePatternLogLikelihoods();
+        return patternLogLikelihoodViews[currentBuffer].duplicate();
+    }
+
+    /**
+     * @return log likelihood of the given pattern in the current state
+     */
+    public double getPatternLogLikelihood(int pattern) {
+        updatePatternLogLikelihoods();
+        return patternLogLikelihoods[pattern];
+    }
+
     @Override
     public void store() {
         super.store();
-        System.arraycopy(patternLogLikelihoods, 0, storedPatternLogLikelihoods, 0, patternLogLikelihoods.length);
+        if (beagle != null) {
+            // BEAGLE only holds the last evaluated state, which may not come back after a restore
+            updatePatternLogLikelihoods();
+        }
+        storedBuffer = currentBuffer;
+        storedVersion = currentVersion;
     }
 
     @Override
     public void restore() {
         super.restore();
-        double[] tmp = patternLogLikelihoods;
-        patternLogLikelihoods = storedPatternLogLikelihoods;
-        storedPatternLogLikelihoods = tmp;
+        currentBuffer = storedBuffer;
+        currentVersion = storedVersion;
+        patternLogLikelihoods = patternLogLikelihoodBuffers[currentBuffer];
+    }
+
+    @Override
+    protected int traverse(final Node node) {
+        final int update = batchSubstitutionModel == null ? super.traverse(node) : traverseBatch(node);
+        // as in TreeLikelihood.calculateLogP, pattern log likelihoods were recalculated iff the root is not clean
+        if (node.isRoot() && update != Tree.IS_CLEAN)
+            rootUpdated = true;
+        return update;
+    }
+
+    /**
+     * As TreeLikelihood.traverse, except that the transition probabilities of all rate categories
+     * of a branch are computed in one batch from the substitution model's shared eigen decomposition.
+     */
+    private int traverseBatch(final Node node) {
+        int update = (node.isDirty() | hasDirt);
+
+        final int nodeIndex = node.getNr();
+
+        final double branchRate = branchRateModel.getRateForBranch(node);
+        final double branchTime = node.getLength() * branchRate;
+
+        // First update the transition probability matrix(ices) for this branch
+        if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != m_branchLengths[nodeIndex])) {
+            m_branchLengths[nodeIndex] = branchTime;
+            final Node parent = node.getParent();
+            final double distance = parent.getHeight() - node.getHeight();
+            final int categoryCount = m_siteModel.getCategoryCount();
+            final int matrixSize = batchSubstitutionModel.getStateCount() * batchSubstitutionModel.getStateCount();
+            for (int i = 0; i < categoryCount; i++) {
+                batchDistances[i] = distance * m_siteModel.getRateForCategory(i, node) * branchRate;
+            }
+            if (likelihoodCore instanceof ExpmvLikelihoodCore core) {
+                // no matrices: the core applies exp(tQ) to the partials directly
+                core.setNodeMatrixForUpdate(nodeIndex);
+                for (int i = 0; i < categoryCount; i++) {
+                    core.setNodeDistance(nodeIndex, i, batchDistances[i]);
+                }
+            } else {
+                batchSubstitutionModel.getTransitionProbabilities(batchDistances, categoryCount, batchMatrices);
+
+                likelihoodCore.setNodeMatrixForUpdate(nodeIndex);
+                for (int i = 0; i < categoryCount; i++) {
+                    System.arraycopy(batchMatrices, i * matrixSize, probabilities, 0, matrixSize);
+                    likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
+                }
+            }
+            update |= Tree.IS_DIRTY;
+        }
+
+        // If the node is internal, update the partial likelihoods.
+        if (!node.isLeaf()) {
+
+            // Traverse down the two child nodes
+            final Node child1 = node.getLeft(); //Two children
+            final int update1 = traverse(child1);
+
+            final Node child2 = node.getRight();
+            final int update2 = traverse(child2);
+
+            // If either child node was updated then update this node too
+            if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN) {
+
+                final int childNum1 = child1.getNr();
+                final int childNum2 = child2.getNr();
+
+                likelihoodCore.setNodePartialsForUpdate(nodeIndex);
+                update |= (update1 | update2);
+                if (update >= Tree.IS_FILTHY) {
+                    likelihoodCore.setNodeStatesForUpdate(nodeIndex);
+                }
+
+                if (m_siteModel.integrateAcrossCategories()) {
+                    likelihoodCore.calculatePartials(childNum1, childNum2, nodeIndex);
+                } else {
+                    throw new RuntimeException("Error TreeLikelihood 201: Site categories not supported");
+                }
+
+                if (node.isRoot()) {
+                    // No parent this is the root of the beast.tree -
+                    // calculate the pattern likelihoods
+
+                    final double[] proportions = m_siteModel.getCategoryProportions(node);
+                    likelihoodCore.integratePartials(node.getNr(), proportions, m_fRootPartials);
+
+                    List<Integer> constantPattern = getConstantPattern();
+                    if (constantPattern != null) {
+                        proportionInvariant = m_siteModel.getProportionInvariant();
+                        // some portion of sites is invariant, so adjust root partials for this
+                        for (final int i : constantPattern) {
+                            m_fRootPartials[i] += proportionInvariant;
+                        }
+                    }
+
+                    double[] rootFrequencies = substitutionModel.getFrequencies();
+                    if (rootFrequenciesInput.get() != null) {
+                        rootFrequencies = rootFrequenciesInput.get().getFreqs();
+                    }
+                    likelihoodCore.calculateLogLikelihoods(m_fRootPartials, rootFrequencies, patternLogLikelihoods);
+                }
+
+            }
+        }
+        return update;
     }
 
 }
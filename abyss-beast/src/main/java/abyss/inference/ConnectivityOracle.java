@@ -0,0 +1,113 @@
+package abyss.inference;
+
+import java.util.Arrays;
+
+/**
+ * Strong connectivity of an SVS indicator graph maintained across MCMC states, for proposals that flip
+ * one indicator at a time. From a strongly connected state, adding a rate keeps it connected, O(1), and removing
+ * the rate i to j keeps it connected iff i still reaches j, a single reachability query that stops
+ * as soon as j is found. From a state that is not strongly connected, removing a rate keeps it so, O(1).
+ * Anything else falls back to a full check, on request.
+ * Flips since the last store are journalled, so restore undoes them without looking at the other indicators.
+ * @author Jasmine Saghafifar
+ */
+public class ConnectivityOracle {
+
+    private static final int UNKNOWN = 0;
+    private static final int CONNECTED = 1;
+    private static final int DISCONNECTED = 2;
+
+    private final IndicatorGraph graph;
+    private final boolean[] indicators;
+
+    private int status = UNKNOWN;
+    private int storedStatus = UNKNOWN;
+
+    // indicators flipped since the last store, in order
+    private int[] journal;
+    private int journalSize = 0;
+
+    public ConnectivityOracle(int dim, boolean reversible) {
+        graph = new IndicatorGraph(dim, reversible);
+        indicators = new boolean[graph.getIndicatorCount()];
+        journal = new int[Math.max(indicators.length, 1)];
+    }
+
+    public IndicatorGraph getGraph() {
+        return graph;
+    }
+
+    public int getIndicatorCount() {
+        return indicators.length;
+    }
+
+    public boolean getIndicator(int indicator) {
+        return indicators[indicator];
+    }
+
+    /**
+     * Sets one indicator, updating the connectivity status incrementally. Setting an unchanged value costs nothing,
+     * so all indicators of a state can be passed in to pick up the ones that flipped.
+     */
+    public void setIndicator(int indicator, boolean value) {
+        if (indicators[indicator] == value)
+            return;
+        flip(indicator);
+        if (journalSize == journal.length)
+            journal = Arrays.copyOf(journal, journal.length * 2);
+        journal[journalSize++] = indicator;
+
+        if (status == CONNECTED && !value) {
+            // every path through i -> j can go through a path from i to j instead, if there still is one
+            status = graph.reaches(graph.getSource(indicator), graph.getTarget(indicator)) ? CONNECTED : DISCONNECTED;
+        } else if (status == DISCONNECTED && value) {
+            status = UNKNOWN;
+        }
+        // adding to a connected graph or removing from a disconnected one changes nothing
+    }
+
+    /**
+     * Whether a single flip of the indicator would leave the graph strongly connected, without applying it.
+     * For proposals that only want to propose states with a connected graph.
+     */
+    public boolean isStronglyConnectedAfterFlip(int indicator) {
+        final boolean connected = isStronglyConnected();
+        if (connected) {
+            if (!indicators[indicator]) return true;
+            graph.setIndicator(indicator, false);
+            final boolean result = graph.reaches(graph.getSource(indicator), graph.getTarget(indicator));
+            graph.setIndicator(indicator, true);
+            return result;
+        }
+        if (indicators[indicator]) return false;
+        graph.setIndicator(indicator, true);
+        final boolean result = graph.isStronglyConnected();
+        graph.setIndicator(indicator, false);
+        return result;
+    }
+
+    public boolean isStronglyConnected() {
+        if (status == UNKNOWN)
+            status = graph.isStronglyConnected() ? CONNECTED : DISCONNECTED;
+        return status == CONNECTED;
+    }
+
+    public void store() {
+        journalSize = 0;
+        storedStatus = status;
+    }
+
+    public void restore() {
+        for (int k = journalSize - 1; k >= 0; k--) {
+            flip(journal[k]);
+        }
+        journalSize = 0;
+        status = storedStatus;
+    }
+
+    private void flip(int indicator) {
+        indicators[indicator] = !indicators[indicator];
+        graph.setIndicator(indicator, indicators[indicator]);
+    }
+
+}
@@ -0,0 +1,113 @@
+package abyss.inference;
+
+import abyss.substitutionmodel.ABySSubstitutionModel;
+import abyss.substitutionmodel.Expmv;
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+
+import java.util.Arrays;
+
+/**
+ * Likelihood core for large state spaces that never forms transition probability matrices.
+ * Each branch keeps only its distance (branch length x rate) per rate category, and partials are
+ * propagated as exp(tQ) v with the substitution model's {@link Expmv} engine, which works on the
+ * sparse Q left by the SVS indicators. Distances follow the same store/restore double buffering
+ * as the matrices of BeerLikelihoodCore.
+ * @author Jasmine Saghafifar
+ */
+public class ExpmvLikelihoodCore extends BeerLikelihoodCore {
+
+    private final ABySSubstitutionModel substitutionModel;
+
+    // [buffer][node][category], buffer indexed by currentMatrixIndex
+    private double[][][] distances;
+    private double[] childPartials1;
+    private double[] childPartials2;
+    private double[] tipPartials;
+
+    public ExpmvLikelihoodCore(int nrOfStates, ABySSubstitutionModel substitutionModel) {
+        super(nrOfStates);
+        this.substitutionModel = substitutionModel;
+    }
+
+    @Override
+    public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+        super.initialize(nodeCount, patternCount, matrixCount, integrateCategories, useAmbiguities);
+        distances = new double[2][nodeCount][matrixCount];
+        childPartials1 = new double[partialsSize];
+        childPartials2 = new double[partialsSize];
+        tipPartials = new double[nrOfPatterns * nrOfStates];
+    }
+
+    /**
+     * Sets the distance of a branch for one rate category; call setNodeMatrixForUpdate first.
+     */
+    public void setNodeDistance(int nodeIndex, int matrixIndex, double distance) {
+        distances[currentMatrixIndex[nodeIndex]][nodeIndex][matrixIndex] = distance;
+    }
+
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        calculatePartials(nodeIndex1, nodeIndex2, nodeIndex3, null);
+    }
+
+    /**
+     * @param matrixMap rate category of each pattern when not integrating across categories, otherwise null
+     * @throws ArithmeticException if Q is not valid, which TreeLikelihood reports as zero likelihood
+     */
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int[] matrixMap) {
+        final double[] parent = partials[currentPartialsIndex[nodeIndex3]][nodeIndex3];
+        final Expmv expmv = substitutionModel.getExpmv();
+        if (expmv == null)
+            throw new ArithmeticException("Rate matrix of " + substitutionModel.getID() + " is not valid");
+        propagate(expmv, nodeIndex1, matrixMap, childPartials1);
+        propagate(expmv, nodeIndex2, matrixMap, childPartials2);
+        for (int k = 0; k < partialsSize; k++) {
+            parent[k] = childPartials1[k] * childPartials2[k];
+        }
+        if (useScaling) {
+            scalePartials(nodeIndex3);
+        }
+    }
+
+    // out = exp(tQ) v for the partials (or tip states) of a child, per rate category,
+    // or per pattern with the distance of its category if matrixMap is not null
+    private void propagate(Expmv expmv, int nodeIndex, int[] matrixMap, double[] out) {
+        final double[] d = distances[currentMatrixIndex[nodeIndex]][nodeIndex];
+        final int block = nrOfPatterns * nrOfStates;
+        final double[] child;
+        if (states[nodeIndex] != null) {
+            final int[] tipStates = states[nodeIndex];
+            Arrays.fill(tipPartials, 0.0);
+            for (int k = 0; k < nrOfPatterns; k++) {
+                final int state = tipStates[k];
+                if (state < nrOfStates) {
+                    tipPartials[k * nrOfStates + state] = 1.0;
+                } else {
+                    // gap or unknown state
+                    Arrays.fill(tipPartials, k * nrOfStates, (k + 1) * nrOfStates, 1.0);
+                }
+            }
+            if (matrixMap == null) {
+                for (int c = 0; c < nrOfMatrices; c++) {
+                    expmv.apply(d[c], tipPartials, 0, out, c * block, nrOfPatterns);
+                }
+                return;
+            }
+            child = tipPartials;
+        } else {
+            child = partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+            if (matrixMap == null) {
+                for (int c = 0; c < nrOfMatrices; c++) {
+                    expmv.apply(d[c], child, c * block, out, c * block, nrOfPatterns);
+                }
+                return;
+            }
+        }
+        // one block of patterns, each under its own category
+        for (int k = 0; k < nrOfPatterns; k++) {
+            expmv.apply(d[matrixMap[k]], child, k * nrOfStates, out, k * nrOfStates, 1);
+        }
+    }
+
+}
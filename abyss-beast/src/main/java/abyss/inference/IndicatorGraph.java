@@ -0,0 +1,263 @@
+package abyss.inference;
+
+import java.util.Arrays;
+
+/**
+ * Directed graph of the active rates of an SVS indicator vector, one vertex per state and an edge i to j
+ * where the indicator of rate i to j is set (both directions for reversible models).
+ * Adjacency is kept as bitsets of 64 bit words, rows of successors and of predecessors, so a reachability
+ * sweep expands a whole frontier per word operation. Strong connectivity takes one forward and one reverse sweep
+ * from a single vertex, O(n^2 / 64) against O(n^3) for a depth first search from every vertex.
+ * Indicator indices follow AbyssSVS.Utils: row major off-diagonal entries, upper triangle if reversible.
+ * Not thread safe, as the sweeps share work space.
+ * @author Jasmine Saghafifar
+ */
+public class IndicatorGraph {
+
+    private final int dim;
+    private final boolean reversible;
+    private final int words;
+
+    // edge i -> j is bit j of row i of successors, and bit i of row j of predecessors
+    private final long[] successors;
+    private final long[] predecessors;
+
+    // vertices of each indicator
+    private final int[] source;
+    private final int[] target;
+
+    // work space of the sweeps
+    private final long[] reached;
+    private final long[] frontier;
+    private final long[] next;
+    private final long[] allowed;
+    private final long[] forward;
+
+    public IndicatorGraph(int dim, boolean reversible) {
+        if (dim < 1)
+            throw new IllegalArgumentException("Indicator graph needs at least one state");
+        this.dim = dim;
+        this.reversible = reversible;
+        this.words = (dim + 63) >>> 6;
+        successors = new long[dim * words];
+        predecessors = new long[dim * words];
+
+        int nrOfIndicators = reversible ? dim * (dim - 1) / 2 : dim * (dim - 1);
+        source = new int[nrOfIndicators];
+        target = new int[nrOfIndicators];
+        for (int i = 0; i < dim; i++) {
+            for (int j = reversible ? i + 1 : 0; j < dim; j++) {
+                if (i == j) continue;
+                int entry = getEntry(i, j, dim, reversible);
+                source[entry] = i;
+                target[entry] = j;
+            }
+        }
+
+        reached = new long[words];
+        frontier = new long[words];
+        next = new long[words];
+        allowed = new long[words];
+        forward = new long[words];
+    }
+
+    /**
+     * @return index of the indicator of rate i to j
+     */
+    public static int getEntry(int i, int j, int dim, boolean reversible) {
+        if (reversible) {
+            if (j < i) {
+                return getEntry(j, i, dim, reversible);
+            }
+            return i * dim - i * (i + 1) / 2 + j - 1 - i;
+        }
+
+        int entry = i * (dim - 1) + j;
+        if (j > i)
+            entry--;
+        return entry;
+    }
+
+    public int getDimension() {
+        return dim;
+    }
+
+    public boolean isReversible() {
+        return reversible;
+    }
+
+    public int getIndicatorCount() {
+        return source.length;
+    }
+
+    /**
+     * @return state the rate of the given indicator leaves (smaller state if reversible)
+     */
+    public int getSource(int indicator) {
+        return source[indicator];
+    }
+
+    /**
+     * @return state the rate of the given indicator enters (larger state if reversible)
+     */
+    public int getTarget(int indicator) {
+        return target[indicator];
+    }
+
+    /**
+     * Sets all edges from an indicator vector.
+     */
+    public void setIndicators(boolean[] indicators) {
+        if (indicators.length != source.length)
+            throw new IllegalArgumentException("Expected " + source.length + " indicators, not " + indicators.length);
+        Arrays.fill(successors, 0L);
+        Arrays.fill(predecessors, 0L);
+        for (int k = 0; k < indicators.length; k++) {
+            if (indicators[k]) setIndicator(k, true);
+        }
+    }
+
+    /**
+     * Sets or clears the edge(s) of one indicator.
+     */
+    public void setIndicator(int indicator, boolean value) {
+        setEdge(source[indicator], target[indicator], value);
+        if (reversible)
+            setEdge(target[indicator], source[indicator], value);
+    }
+
+    private void setEdge(int i, int j, boolean value) {
+        if (value) {
+            successors[i * words + (j >>> 6)] |= 1L << j;
+            predecessors[j * words + (i >>> 6)] |= 1L << i;
+        } else {
+            successors[i * words + (j >>> 6)] &= ~(1L << j);
+            predecessors[j * words + (i >>> 6)] &= ~(1L << i);
+        }
+    }
+
+    public boolean hasEdge(int i, int j) {
+        return (successors[i * words + (j >>> 6)] & (1L << j)) != 0;
+    }
+
+    /**
+     * Determines if the graph is strongly connected, such that there exists
+     * a directed path from any vertex to any other vertex: every vertex is reached from vertex 0,
+     * and reaches it.
+     */
+    public boolean isStronglyConnected() {
+        fillAll(allowed);
+        if (reach(0, successors) != dim)
+            return false;
+        return reversible || reach(0, predecessors) == dim;
+    }
+
+    /**
+     * @return whether there is a directed path from one vertex to another, stopping as soon as it is found
+     */
+    public boolean reaches(int from, int to) {
+        if (from == to)
+            return true;
+        fillAll(allowed);
+        Arrays.fill(reached, 0L);
+        Arrays.fill(frontier, 0L);
+        reached[from >>> 6] = frontier[from >>> 6] = 1L << from;
+        final int targetWord = to >>> 6;
+        final long targetBit = 1L << to;
+        boolean expanding = true;
+        while (expanding) {
+            expand(successors);
+            if ((next[targetWord] & targetBit) != 0)
+                return true;
+            expanding = advance() > 0;
+        }
+        return false;
+    }
+
+    /**
+     * Strongly connected components, by forward-backward reachability: the component of a vertex
+     * is the intersection of what it reaches and what reaches it among the vertices not yet assigned.
+     * @param components component of each vertex, filled in
+     * @return number of components
+     */
+    public int getComponents(int[] components) {
+        Arrays.fill(components, 0, dim, -1);
+        fillAll(allowed);
+        int count = 0;
+        for (int v = 0; v < dim; v++) {
+            if (components[v] >= 0) continue;
+            reach(v, successors);
+            System.arraycopy(reached, 0, forward, 0, words);
+            if (!reversible)
+                reach(v, predecessors);
+            for (int w = 0; w < words; w++) {
+                long component = forward[w] & reached[w];
+                allowed[w] &= ~component;
+                while (component != 0) {
+                    components[(w << 6) + Long.numberOfTrailingZeros(component)] = count;
+                    component &= component - 1;
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return strongly connected component of each vertex
+     */
+    public int[] getComponents() {
+        int[] components = new int[dim];
+        getComponents(components);
+        return components;
+    }
+
+    // marks in reached the allowed vertices reachable from start along rows, returns their number
+    private int reach(int start, long[] rows) {
+        Arrays.fill(reached, 0L);
+        Arrays.fill(frontier, 0L);
+        reached[start >>> 6] = frontier[start >>> 6] = 1L << start;
+        int count = 1;
+        int added = 1;
+        while (added > 0) {
+            expand(rows);
+            added = advance();
+            count += added;
+        }
+        return count;
+    }
+
+    // next = union of the rows of the frontier
+    private void expand(long[] rows) {
+        Arrays.fill(next, 0L);
+        for (int w = 0; w < words; w++) {
+            long bits = frontier[w];
+            while (bits != 0) {
+                final int row = ((w << 6) + Long.numberOfTrailingZeros(bits)) * words;
+                for (int x = 0; x < words; x++) {
+                    next[x] |= rows[row + x];
+                }
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    // moves the allowed, not yet reached vertices of next to the frontier and reached, returns their number
+    private int advance() {
+        int added = 0;
+        for (int w = 0; w < words; w++) {
+            final long bits = next[w] & allowed[w] & ~reached[w];
+            frontier[w] = bits;
+            reached[w] |= bits;
+            added += Long.bitCount(bits);
+        }
+        return added;
+    }
+
+    private void fillAll(long[] bits) {
+        Arrays.fill(bits, -1L);
+        if ((dim & 63) != 0)
+            bits[words - 1] = (1L << dim) - 1;
+    }
+
+}
@@ -0,0 +1,806 @@
+package abyss.inference;
+
+import abyss.substitutionmodel.ABySSubstitutionModel;
+import beagle.Beagle;
+import beagle.BeagleFactory;
+import beagle.BeagleFlag;
+import beagle.InstanceDetails;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.likelihood.LikelihoodCore;
+import beast.base.evolution.sitemodel.SiteModelInterface;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.CalculationNode;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tree likelihoods of one alignment under several substitution models, the components of a site mixture,
+ * computed together. With BEAGLE, all components live in a single instance: tip states are set once,
+ * each component has its own eigen, category, matrix and partials buffers, and all components are updated by
+ * one matrix update and one partials update per evaluation. Only components whose site model changed,
+ * or whose branches did, are recomputed. Without BEAGLE, a single java likelihood core holds the matrices of all
+ * components and rate categories, so tips and the traversal are still shared.
+ * The components are combined by MixedTreeLikelihood, which reads their log likelihoods and pattern log likelihoods.
+ * @author Jasmine Saghafifar
+ */
+@Description("Tree likelihoods of one alignment under each of a number of site models, sharing tree, tips and " +
+        "traversal, in a single BEAGLE instance if available. Used by MixedTreeLikelihood as its mixture components.")
+public class MultiModelTreeLikelihood extends GenericTreeLikelihood {
+
+    final public Input<List<SiteModelInterface.Base>> componentSiteModelsInput = new Input<>("componentSiteModel",
+            "site model of each component, in the order of the site model weights. " +
+                    "All must have the same number of rate categories.", new ArrayList<>());
+
+    private Alignment alignment;
+    private TreeInterface tree;
+    private BranchRateModel.Base branchRateModel;
+    private List<SiteModelInterface.Base> siteModels;
+    private SubstitutionModel[] substitutionModels;
+
+    private int componentCount;
+    private int categoryCount;
+    private int stateCount;
+    private int patternCount;
+    private int nodeCount;
+    private int tipCount;
+    private int internalNodeCount;
+
+    // pattern log likelihoods of all components, component-major (component * patternCount + pattern)
+    private double[] patternLogLikelihoods;
+    private double[] storedPatternLogLikelihoods;
+    private double[] componentLogP;
+    private double[] storedComponentLogP;
+    private double[] patternWeights;
+
+    private double[] branchLengths;
+    private double[] storedBranchLengths;
+    private int hasDirt = Tree.IS_FILTHY;
+    private boolean[] componentDirty;
+    // components whose rate matrix could not be exponentiated: zero likelihood, recomputed in full next time
+    private boolean[] componentFailed;
+    private boolean[] storedComponentFailed;
+
+    private double[] probabilities;
+    private double[] matrices;
+    private double[] distances;
+
+    // BEAGLE: buffers of component k and node (or internal node) i are 2 * (k * count + i) + offset,
+    // with partials buffers after the tipCount shared tip buffers
+    private Beagle beagle;
+    // per component whether BEAGLE exponentiates its eigen decomposition, otherwise matrices are set directly.
+    // Decided again whenever the substitution model changes, since ABySS models switch to explicit matrices
+    // while their decomposition is not trusted
+    private boolean[] useEigen;
+    private boolean[] storedUseEigen;
+    private int[] partialOffsets;
+    private int[] storedPartialOffsets;
+    private int[] matrixOffsets;
+    private int[] storedMatrixOffsets;
+    private int[] eigenOffsets;
+    private int[] storedEigenOffsets;
+    private int[] scaleOffsets;
+    private int[] storedScaleOffsets;
+    // buffers flipped during this evaluation, so a rescaling pass does not flip them back onto the stored state
+    private boolean[] partialFlipped;
+    private boolean[] matrixFlipped;
+    private boolean[] scaleFlipped;
+    private boolean[] eigenFlipped;
+    private boolean[] componentUpdated;
+
+    private int[] operations;
+    private int operationCount;
+    private int[] eigenUpdateIndices;
+    private int[] rateUpdateIndices;
+    private int[] matrixUpdateIndices;
+    private double[] edgeLengths;
+    private int matrixUpdateCount;
+    private int[] scaleIndices;
+    private boolean useScaleFactors = false;
+    private boolean storedUseScaleFactors = false;
+    private boolean rescaleAll = false;
+
+    // values last sent to BEAGLE, which are not double buffered
+    private double[][] currentRates;
+    private double[][] currentWeights;
+    private double[][] currentFreqs;
+    private final int[] rootIndex = new int[1];
+    private final int[] componentIndex = new int[1];
+    private final int[] cumulativeScaleIndex = new int[1];
+    private final double[] sumLogLikelihood = new double[1];
+    private double[] siteLogLikelihoods;
+
+    // java fallback: one core holding the matrices of all components, component-major (k * categoryCount + c)
+    private LikelihoodCore likelihoodCore;
+    private double[] rootPartials;
+    private double[] componentProportions;
+    private double scale = 1.0;
+
+    public MultiModelTreeLikelihood() {
+        siteModelInput.setRule(Input.Validate.OPTIONAL);
+    }
+
+    @Override
+    public void initAndValidate() {
+        alignment = dataInput.get();
+        tree = treeInput.get();
+        branchRateModel = branchRateModelInput.get();
+        if (branchRateModel == null)
+            branchRateModel = new StrictClockModel();
+        siteModels = componentSiteModelsInput.get();
+        if (siteModels.isEmpty())
+            throw new IllegalArgumentException("At least one componentSiteModel must be given.");
+        if (alignment.isAscertained)
+            throw new IllegalArgumentException("MultiModelTreeLikelihood does not support ascertained alignments.");
+
+        componentCount = siteModels.size();
+        categoryCount = siteModels.getFirst().getCategoryCount();
+        stateCount = alignment.getMaxStateCount();
+        patternCount = alignment.getPatternCount();
+        nodeCount = tree.getNodeCount();
+        tipCount = tree.getLeafNodeCount();
+        internalNodeCount = nodeCount - tipCount;
+
+        substitutionModels = new SubstitutionModel[componentCount];
+        for (int k = 0; k < componentCount; k++) {
+            SiteModelInterface.Base siteModel = siteModels.get(k);
+            siteModel.setDataType(alignment.getDataType());
+            if (siteModel.getCategoryCount() != categoryCount)
+                throw new IllegalArgumentException("All component site models must have the same number of categories.");
+            for (double rate : siteModel.getCategoryRates(null)) {
+                if (rate == 0)
+                    throw new IllegalArgumentException("MultiModelTreeLikelihood does not support invariant sites.");
+            }
+            substitutionModels[k] = siteModel.getSubstitutionModel();
+            if (substitutionModels[k].getStateCount() != stateCount)
+                throw new IllegalArgumentException("Substitution model " + k + " does not match the alignment's states.");
+        }
+
+        patternLogLikelihoods = new double[componentCount * patternCount];
+        storedPatternLogLikelihoods = new double[componentCount * patternCount];
+        componentLogP = new double[componentCount];
+        storedComponentLogP = new double[componentCount];
+        patternWeights = new double[patternCount];
+        for (int i = 0; i < patternCount; i++) {
+            patternWeights[i] = alignment.getPatternWeight(i);
+        }
+        branchLengths = new double[nodeCount];
+        storedBranchLengths = new double[nodeCount];
+        componentDirty = new boolean[componentCount];
+        Arrays.fill(componentDirty, true);
+        componentFailed = new boolean[componentCount];
+        storedComponentFailed = new boolean[componentCount];
+
+        probabilities = new double[stateCount * stateCount];
+        matrices = new double[categoryCount * stateCount * stateCount];
+        distances = new double[categoryCount];
+
+        boolean forceJava = Boolean.parseBoolean(System.getProperty("java.only"));
+        if (forceJava || !initBeagle()) {
+            initJavaCore();
+        }
+    }
+
+    private boolean initBeagle() {
+        long preferenceFlags = 0;
+        if (stateCount == 4 && patternCount < 10000)
+            preferenceFlags |= BeagleFlag.PROCESSOR_CPU.getMask();
+        try {
+            beagle = BeagleFactory.loadBeagleInstance(
+                    tipCount,
+                    tipCount + 2 * componentCount * internalNodeCount,
+                    tipCount,
+                    stateCount,
+                    patternCount,
+                    2 * componentCount,
+                    2 * componentCount * nodeCount,
+                    categoryCount,
+                    2 * componentCount * (internalNodeCount + 1),
+                    null,
+                    preferenceFlags,
+                    0
+            );
+        } catch (Exception | UnsatisfiedLinkError e) {
+            beagle = null;
+        }
+        if (beagle == null)
+            return false;
+        InstanceDetails instanceDetails = beagle.getDetails();
+        if (instanceDetails == null) {
+            beagle = null;
+            return false;
+        }
+        Log.info.println("  MultiModelTreeLikelihood: " + componentCount + " components in one BEAGLE instance " +
+                "with flags " + instanceDetails);
+
+        Node[] nodes = tree.getNodesAsArray();
+        for (int i = 0; i < tipCount; i++) {
+            beagle.setTipStates(i, getStates(getTaxonIndex(nodes[i].getID())));
+        }
+        beagle.setPatternWeights(patternWeights);
+
+        partialOffsets = new int[componentCount * internalNodeCount];
+        storedPartialOffsets = new int[componentCount * internalNodeCount];
+        matrixOffsets = new int[componentCount * nodeCount];
+        storedMatrixOffsets = new int[componentCount * nodeCount];
+        eigenOffsets = new int[componentCount];
+        storedEigenOffsets = new int[componentCount];
+        scaleOffsets = new int[componentCount * (internalNodeCount + 1)];
+        storedScaleOffsets = new int[componentCount * (internalNodeCount + 1)];
+        partialFlipped = new boolean[partialOffsets.length];
+        matrixFlipped = new boolean[matrixOffsets.length];
+        scaleFlipped = new boolean[scaleOffsets.length];
+        eigenFlipped = new boolean[componentCount];
+        componentUpdated = new boolean[componentCount];
+        useEigen = new boolean[componentCount];
+        storedUseEigen = new boolean[componentCount];
+
+        operations = new int[componentCount * internalNodeCount * Beagle.OPERATION_TUPLE_SIZE];
+        eigenUpdateIndices = new int[componentCount * nodeCount];
+        rateUpdateIndices = new int[componentCount * nodeCount];
+        matrixUpdateIndices = new int[componentCount * nodeCount];
+        edgeLengths = new double[componentCount * nodeCount];
+        scaleIndices = new int[internalNodeCount];
+        siteLogLikelihoods = new double[patternCount];
+
+        currentRates = new double[componentCount][];
+        currentWeights = new double[componentCount][];
+        currentFreqs = new double[componentCount][];
+        return true;
+    }
+
+    private void initJavaCore() {
+        Log.info.println("  MultiModelTreeLikelihood: " + componentCount + " components in one java likelihood core");
+        likelihoodCore = AbyssLikelihoodCore.supports(stateCount) ?
+                AbyssLikelihoodCore.create(stateCount) : new BeerLikelihoodCore(stateCount);
+        likelihoodCore.initialize(nodeCount, patternCount, componentCount * categoryCount, true, false);
+        Node[] nodes = tree.getNodesAsArray();
+        for (int i = 0; i < tipCount; i++) {
+            likelihoodCore.setNodeStates(i, getStates(getTaxonIndex(nodes[i].getID())));
+        }
+        for (int i = tipCount; i < nodeCount; i++) {
+            likelihoodCore.createNodePartials(i);
+        }
+        rootPartials = new double[patternCount * stateCount];
+        componentProportions = new double[componentCount * categoryCount];
+        siteLogLikelihoods = new double[patternCount];
+    }
+
+    private int[] getStates(int taxon) {
+        int[] states = new int[patternCount];
+        for (int i = 0; i < patternCount; i++) {
+            int code = alignment.getPattern(taxon, i);
+            int[] statesForCode = alignment.getDataType().getStatesForCode(code);
+            // ambiguous states are ignored
+            states[i] = statesForCode.length == 1 ? statesForCode[0] : code;
+        }
+        return states;
+    }
+
+    private int getTaxonIndex(String taxon) {
+        int taxonIndex = alignment.getTaxonIndex(taxon);
+        if (taxonIndex == -1 && (taxon.startsWith("'") || taxon.startsWith("\""))) {
+            taxonIndex = alignment.getTaxonIndex(taxon.substring(1, taxon.length() - 1));
+        }
+        if (taxonIndex == -1)
+            throw new RuntimeException("Could not find sequence " + taxon + " in the alignment");
+        return taxonIndex;
+    }
+
+    /**
+     * @return number of components, one per site model
+     */
+    public int getComponentCount() {
+        return componentCount;
+    }
+
+    /**
+     * @return log likelihood of the alignment under component k in the current state
+     */
+    public double getComponentLogP(int k) {
+        return componentLogP[k];
+    }
+
+    /**
+     * Copies the pattern log likelihoods of component k into out from offset.
+     */
+    public void getPatternLogLikelihoods(int k, double[] out, int offset) {
+        System.arraycopy(patternLogLikelihoods, k * patternCount, out, offset, patternCount);
+    }
+
+    /**
+     * Not a density of its own: the components only make sense combined, see MixedTreeLikelihood.
+     * @return sum of the component log likelihoods
+     */
+    @Override
+    public double calculateLogP() {
+        if (rescaleAll) {
+            hasDirt = Tree.IS_FILTHY;
+            rescaleAll = false;
+        }
+        if (beagle != null) {
+            calculateBeagle();
+        } else {
+            calculateJava();
+        }
+        Arrays.fill(componentDirty, false);
+
+        logP = 0;
+        for (int k = 0; k < componentCount; k++) {
+            logP += componentLogP[k];
+        }
+        return logP;
+    }
+
+    private void calculateBeagle() {
+        Arrays.fill(partialFlipped, false);
+        Arrays.fill(matrixFlipped, false);
+        Arrays.fill(scaleFlipped, false);
+        Arrays.fill(eigenFlipped, false);
+
+        boolean rescaled = false;
+        while (true) {
+            operationCount = 0;
+            matrixUpdateCount = 0;
+            for (int k = 0; k < componentCount; k++) {
+                final boolean changed = componentDirty[k] || componentFailed[k];
+                final int operationStart = operationCount;
+                final int matrixUpdateStart = matrixUpdateCount;
+                componentFailed[k] = false;
+                try {
+                    // the eigen buffer is flipped and filled before the traversal records its index
+                    setUpComponent(k, changed || hasDirt != Tree.IS_CLEAN);
+                    int update = hasDirt | (changed ? Tree.IS_DIRTY : Tree.IS_CLEAN);
+                    componentUpdated[k] = traverseBeagle(tree.getRoot(), k, update) != Tree.IS_CLEAN;
+                } catch (ArithmeticException e) {
+                    // rate matrix without exponential: drop what was queued for this component
+                    operationCount = operationStart;
+                    matrixUpdateCount = matrixUpdateStart;
+                    componentFailed[k] = true;
+                    componentUpdated[k] = false;
+                    componentLogP[k] = Double.NEGATIVE_INFINITY;
+                    Arrays.fill(patternLogLikelihoods, k * patternCount, (k + 1) * patternCount, Double.NEGATIVE_INFINITY);
+                }
+            }
+
+            // matrices of components without eigen decomposition were set during the traversal
+            if (matrixUpdateCount > 0) {
+                beagle.updateTransitionMatricesWithMultipleModels(eigenUpdateIndices, rateUpdateIndices,
+                        matrixUpdateIndices, null, null, edgeLengths, matrixUpdateCount);
+            }
+            if (operationCount > 0) {
+                beagle.updatePartials(operations, operationCount, Beagle.NONE);
+            }
+
+            boolean underflow = false;
+            final int rootNr = tree.getRoot().getNr();
+            for (int k = 0; k < componentCount; k++) {
+                if (!componentUpdated[k]) continue;
+                cumulativeScaleIndex[0] = Beagle.NONE;
+                if (useScaleFactors) {
+                    for (int i = 0; i < internalNodeCount; i++) {
+                        scaleIndices[i] = scaleIndex(k, i);
+                    }
+                    flipScale(k, internalNodeCount);
+                    cumulativeScaleIndex[0] = scaleIndex(k, internalNodeCount);
+                    beagle.resetScaleFactors(cumulativeScaleIndex[0]);
+                    beagle.accumulateScaleFactors(scaleIndices, internalNodeCount, cumulativeScaleIndex[0]);
+                }
+                rootIndex[0] = partialIndex(k, rootNr);
+                componentIndex[0] = k;
+                beagle.calculateRootLogLikelihoods(rootIndex, componentIndex, componentIndex,
+                        cumulativeScaleIndex, 1, sumLogLikelihood);
+                componentLogP[k] = sumLogLikelihood[0];
+                beagle.getSiteLogLikelihoods(siteLogLikelihoods);
+                System.arraycopy(siteLogLikelihoods, 0, patternLogLikelihoods, k * patternCount, patternCount);
+                if (Double.isNaN(componentLogP[k]) || Double.isInfinite(componentLogP[k]))
+                    underflow = true;
+            }
+
+            if (underflow && !useScaleFactors && !rescaled) {
+                // rescale every node from now on, recomputing all partials into this evaluation's buffers
+                Log.warning.println("MultiModelTreeLikelihood: turning on scaling to prevent numeric instability");
+                useScaleFactors = true;
+                rescaled = true;
+                hasDirt = Tree.IS_FILTHY;
+                continue;
+            }
+            for (int k = 0; k < componentCount; k++) {
+                if (Double.isNaN(componentLogP[k]))
+                    componentLogP[k] = Double.NEGATIVE_INFINITY;
+            }
+            return;
+        }
+    }
+
+    /**
+     * Sends eigen decomposition, category rates and weights and frequencies of component k to BEAGLE if changed.
+     * Complex or untrusted decompositions are not sent: those components get matrices during the traversal.
+     * @throws ArithmeticException if the rate matrix of component k cannot be exponentiated
+     */
+    private void setUpComponent(int k, boolean substitutionModelChanged) {
+        SiteModelInterface.Base siteModel = siteModels.get(k);
+        if (substitutionModelChanged) {
+            useEigen[k] = !substitutionModels[k].canReturnComplexDiagonalization();
+            if (useEigen[k]) {
+                EigenDecomposition eigenDecomposition = substitutionModels[k].getEigenDecomposition(null);
+                if (!eigenFlipped[k]) {
+                    eigenOffsets[k] = 1 - eigenOffsets[k];
+                    eigenFlipped[k] = true;
+                }
+                beagle.setEigenDecomposition(eigenIndex(k), eigenDecomposition.getEigenVectors(),
+                        eigenDecomposition.getInverseEigenVectors(), eigenDecomposition.getEigenValues());
+            }
+        }
+        if (useEigen[k]) {
+            double[] rates = siteModel.getCategoryRates(null);
+            if (!Arrays.equals(rates, currentRates[k])) {
+                beagle.setCategoryRatesWithIndex(k, rates);
+                currentRates[k] = rates.clone();
+            }
+        }
+        double[] weights = siteModel.getCategoryProportions(null);
+        if (!Arrays.equals(weights, currentWeights[k])) {
+            beagle.setCategoryWeights(k, weights);
+            currentWeights[k] = weights.clone();
+        }
+        double[] frequencies = substitutionModels[k].getFrequencies();
+        if (!Arrays.equals(frequencies, currentFreqs[k])) {
+            beagle.setStateFrequencies(k, frequencies);
+            currentFreqs[k] = frequencies.clone();
+        }
+    }
+
+    private int traverseBeagle(Node node, int k, int componentUpdate) {
+        final int nodeNr = node.getNr();
+        int update = node.isDirty() | componentUpdate;
+
+        final double branchRate = branchRateModel.getRateForBranch(node);
+        final double branchTime = node.getLength() * branchRate;
+        if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != branchLengths[nodeNr])) {
+            if (k == componentCount - 1)
+                branchLengths[nodeNr] = branchTime;
+            if (branchTime < 0.0)
+                throw new RuntimeException("Negative branch length: " + branchTime);
+            flipMatrix(k, nodeNr);
+            if (useEigen[k]) {
+                eigenUpdateIndices[matrixUpdateCount] = eigenIndex(k);
+                rateUpdateIndices[matrixUpdateCount] = k;
+                matrixUpdateIndices[matrixUpdateCount] = matrixIndex(k, nodeNr);
+                edgeLengths[matrixUpdateCount] = branchTime;
+                matrixUpdateCount++;
+            } else {
+                setMatrices(node, k, branchRate);
+                beagle.setTransitionMatrix(matrixIndex(k, nodeNr), matrices, 1.0);
+            }
+            update |= Tree.IS_DIRTY;
+        }
+
+        if (!node.isLeaf()) {
+            final Node child1 = node.getLeft();
+            final int update1 = traverseBeagle(child1, k, componentUpdate);
+            final Node child2 = node.getRight();
+            final int update2 = traverseBeagle(child2, k, componentUpdate);
+
+            if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN) {
+                final int x = operationCount * Beagle.OPERATION_TUPLE_SIZE;
+                flipPartials(k, nodeNr);
+                operations[x] = partialIndex(k, nodeNr);
+                if (useScaleFactors) {
+                    flipScale(k, nodeNr - tipCount);
+                    operations[x + 1] = scaleIndex(k, nodeNr - tipCount);
+                } else {
+                    operations[x + 1] = Beagle.NONE;
+                }
+                operations[x + 2] = Beagle.NONE;
+                operations[x + 3] = partialIndex(k, child1.getNr());
+                operations[x + 4] = matrixIndex(k, child1.getNr());
+                operations[x + 5] = partialIndex(k, child2.getNr());
+                operations[x + 6] = matrixIndex(k, child2.getNr());
+                operationCount++;
+                update |= (update1 | update2);
+            }
+        }
+        return update;
+    }
+
+    // transition probabilities of component k for all categories of the branch above node, category-major;
+    // throws ArithmeticException if its rate matrix has no exponential
+    private void setMatrices(Node node, int k, double branchRate) {
+        final SiteModelInterface.Base siteModel = siteModels.get(k);
+        final double distance = node.getParent().getHeight() - node.getHeight();
+        final int matrixSize = stateCount * stateCount;
+        if (substitutionModels[k] instanceof ABySSubstitutionModel model) {
+            for (int c = 0; c < categoryCount; c++) {
+                distances[c] = distance * siteModel.getRateForCategory(c, node) * branchRate;
+            }
+            model.getTransitionProbabilities(distances, categoryCount, matrices);
+            // NaN if Q has no exponential, which fails this component only
+            if (Double.isNaN(matrices[0]))
+                throw new ArithmeticException("Rate matrix of " + model.getID() + " cannot be exponentiated");
+        } else {
+            for (int c = 0; c < categoryCount; c++) {
+                final double jointBranchRate = siteModel.getRateForCategory(c, node) * branchRate;
+                substitutionModels[k].getTransitionProbabilities(node, node.getParent().getHeight(), node.getHeight(),
+                        jointBranchRate, probabilities);
+                System.arraycopy(probabilities, 0, matrices, c * matrixSize, matrixSize);
+            }
+        }
+    }
+
+    private int partialIndex(int k, int nodeNr) {
+        if (nodeNr < tipCount)
+            return nodeNr;
+        final int i = k * internalNodeCount + nodeNr - tipCount;
+        return tipCount + 2 * i + partialOffsets[i];
+    }
+
+    private int matrixIndex(int k, int nodeNr) {
+        final int i = k * nodeCount + nodeNr;
+        return 2 * i + matrixOffsets[i];
+    }
+
+    private int eigenIndex(int k) {
+        return 2 * k + eigenOffsets[k];
+    }
+
+    // j is the internal node index, or internalNodeCount for the cumulative scale factors
+    private int scaleIndex(int k, int j) {
+        final int i = k * (internalNodeCount + 1) + j;
+        return 2 * i + scaleOffsets[i];
+    }
+
+    private void flipPartials(int k, int nodeNr) {
+        final int i = k * internalNodeCount + nodeNr - tipCount;
+        if (!partialFlipped[i]) {
+            partialOffsets[i] = 1 - partialOffsets[i];
+            partialFlipped[i] = true;
+        }
+    }
+
+    private void flipMatrix(int k, int nodeNr) {
+        final int i = k * nodeCount + nodeNr;
+        if (!matrixFlipped[i]) {
+            matrixOffsets[i] = 1 - matrixOffsets[i];
+            matrixFlipped[i] = true;
+        }
+    }
+
+    private void flipScale(int k, int j) {
+        final int i = k * (internalNodeCount + 1) + j;
+        if (!scaleFlipped[i]) {
+            scaleOffsets[i] = 1 - scaleOffsets[i];
+            scaleFlipped[i] = true;
+        }
+    }
+
+    private void calculateJava() {
+        boolean anyComponentDirty = false;
+        for (int k = 0; k < componentCount; k++) {
+            anyComponentDirty |= componentDirty[k] || componentFailed[k];
+        }
+        // matrices of all components are flipped together, so any component change updates all of them
+        int update = hasDirt | (anyComponentDirty ? Tree.IS_DIRTY : Tree.IS_CLEAN);
+        if (update != Tree.IS_CLEAN)
+            Arrays.fill(componentFailed, false);
+        if (traverseJava(tree.getRoot(), update) == Tree.IS_CLEAN)
+            return;
+        integrateRoot();
+
+        // components without exponential are at -infinity whatever the scaling
+        boolean underflow = false;
+        for (int k = 0; k < componentCount; k++) {
+            if (componentFailed[k]) continue;
+            if (componentLogP[k] != Double.NEGATIVE_INFINITY) {
+                underflow = false;
+                break;
+            }
+            underflow = true;
+        }
+        if (underflow && scale < 10) {
+            scale *= 1.01;
+            Log.warning.println("MultiModelTreeLikelihood: turning on scaling to prevent numeric instability " + scale);
+            likelihoodCore.setUseScaling(scale);
+            likelihoodCore.unstore();
+            traverseJava(tree.getRoot(), Tree.IS_FILTHY);
+            integrateRoot();
+        }
+    }
+
+    private int traverseJava(Node node, int componentUpdate) {
+        final int nodeNr = node.getNr();
+        int update = node.isDirty() | componentUpdate;
+
+        final double branchRate = branchRateModel.getRateForBranch(node);
+        final double branchTime = node.getLength() * branchRate;
+        if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != branchLengths[nodeNr])) {
+            branchLengths[nodeNr] = branchTime;
+            if (branchTime < 0.0)
+                throw new RuntimeException("Negative branch length: " + branchTime);
+            final int matrixSize = stateCount * stateCount;
+            likelihoodCore.setNodeMatrixForUpdate(nodeNr);
+            for (int k = 0; k < componentCount; k++) {
+                try {
+                    setMatrices(node, k, branchRate);
+                } catch (ArithmeticException e) {
+                    // rate matrix without exponential: this component is at -infinity, and its
+                    // partials are left out of every other component's, so any finite matrices will do
+                    componentFailed[k] = true;
+                    Arrays.fill(matrices, 0.0);
+                }
+                for (int c = 0; c < categoryCount; c++) {
+                    System.arraycopy(matrices, c * matrixSize, probabilities, 0, matrixSize);
+                    likelihoodCore.setNodeMatrix(nodeNr, k * categoryCount + c, probabilities);
+                }
+            }
+            update |= Tree.IS_DIRTY;
+        }
+
+        if (!node.isLeaf()) {
+            final Node child1 = node.getLeft();
+            final int update1 = traverseJava(child1, componentUpdate);
+            final Node child2 = node.getRight();
+            final int update2 = traverseJava(child2, componentUpdate);
+
+            if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN) {
+                likelihoodCore.setNodePartialsForUpdate(nodeNr);
+                update |= (update1 | update2);
+                if (update >= Tree.IS_FILTHY) {
+                    likelihoodCore.setNodeStatesForUpdate(nodeNr);
+                }
+                likelihoodCore.calculatePartials(child1.getNr(), child2.getNr(), nodeNr);
+            }
+        }
+        return update;
+    }
+
+    // per component: integrate only its own block of matrices at the root
+    private void integrateRoot() {
+        final int rootNr = tree.getRoot().getNr();
+        for (int k = 0; k < componentCount; k++) {
+            Arrays.fill(componentProportions, 0.0);
+            System.arraycopy(siteModels.get(k).getCategoryProportions(null), 0,
+                    componentProportions, k * categoryCount, categoryCount);
+            likelihoodCore.integratePartials(rootNr, componentProportions, rootPartials);
+            likelihoodCore.calculateLogLikelihoods(rootPartials, substitutionModels[k].getFrequencies(),
+                    siteLogLikelihoods);
+            if (componentFailed[k])
+                Arrays.fill(siteLogLikelihoods, Double.NEGATIVE_INFINITY);
+            System.arraycopy(siteLogLikelihoods, 0, patternLogLikelihoods, k * patternCount, patternCount);
+            double logL = 0;
+            for (int i = 0; i < patternCount; i++) {
+                logL += siteLogLikelihoods[i] * patternWeights[i];
+            }
+            componentLogP[k] = Double.isNaN(logL) ? Double.NEGATIVE_INFINITY : logL;
+        }
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        hasDirt = Tree.IS_CLEAN;
+        boolean componentChanged = false;
+        for (int k = 0; k < componentCount; k++) {
+            componentDirty[k] = siteModels.get(k).isDirtyCalculation() ||
+                    (substitutionModels[k] instanceof CalculationNode node && node.isDirtyCalculation());
+            componentChanged |= componentDirty[k];
+        }
+        if (alignment.isDirtyCalculation()) {
+            hasDirt = Tree.IS_FILTHY;
+            return true;
+        }
+        if (componentChanged)
+            return true;
+        if (branchRateModel.isDirtyCalculation())
+            return true;
+        return tree.somethingIsDirty();
+    }
+
+    @Override
+    public void store() {
+        System.arraycopy(patternLogLikelihoods, 0, storedPatternLogLikelihoods, 0, patternLogLikelihoods.length);
+        System.arraycopy(componentLogP, 0, storedComponentLogP, 0, componentCount);
+        System.arraycopy(branchLengths, 0, storedBranchLengths, 0, nodeCount);
+        System.arraycopy(componentFailed, 0, storedComponentFailed, 0, componentCount);
+        if (beagle != null) {
+            System.arraycopy(partialOffsets, 0, storedPartialOffsets, 0, partialOffsets.length);
+            System.arraycopy(matrixOffsets, 0, storedMatrixOffsets, 0, matrixOffsets.length);
+            System.arraycopy(eigenOffsets, 0, storedEigenOffsets, 0, eigenOffsets.length);
+            System.arraycopy(scaleOffsets, 0, storedScaleOffsets, 0, scaleOffsets.length);
+            System.arraycopy(useEigen, 0, storedUseEigen, 0, componentCount);
+            storedUseScaleFactors = useScaleFactors;
+        } else {
+            likelihoodCore.store();
+        }
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        double[] tmp = patternLogLikelihoods;
+        patternLogLikelihoods = storedPatternLogLikelihoods;
+        storedPatternLogLikelihoods = tmp;
+        tmp = componentLogP;
+        componentLogP = storedComponentLogP;
+        storedComponentLogP = tmp;
+        tmp = branchLengths;
+        branchLengths = storedBranchLengths;
+        storedBranchLengths = tmp;
+        boolean[] tmpFlags = componentFailed;
+        componentFailed = storedComponentFailed;
+        storedComponentFailed = tmpFlags;
+        if (beagle != null) {
+            int[] tmpOffsets = partialOffsets;
+            partialOffsets = storedPartialOffsets;
+            storedPartialOffsets = tmpOffsets;
+            tmpOffsets = matrixOffsets;
+            matrixOffsets = storedMatrixOffsets;
+            storedMatrixOffsets = tmpOffsets;
+            tmpOffsets = eigenOffsets;
+            eigenOffsets = storedEigenOffsets;
+            storedEigenOffsets = tmpOffsets;
+            tmpOffsets = scaleOffsets;
+            scaleOffsets = storedScaleOffsets;
+            storedScaleOffsets = tmpOffsets;
+            tmpFlags = useEigen;
+            useEigen = storedUseEigen;
+            storedUseEigen = tmpFlags;
+            // rates, weights and frequencies in BEAGLE may belong to the rejected state
+            Arrays.fill(currentRates, null);
+            Arrays.fill(currentWeights, null);
+            Arrays.fill(currentFreqs, null);
+            // scaling switched on in the rejected state: the restored partials have no scale factors yet
+            if (useScaleFactors && !storedUseScaleFactors)
+                rescaleAll = true;
+        } else {
+            likelihoodCore.restore();
+        }
+        super.restore();
+    }
+
+    /**
+     * Logs the log likelihood of each component, as the separate tree likelihoods it replaces would.
+     */
+    @Override
+    public void init(PrintStream out) {
+        for (int k = 0; k < componentCount; k++) {
+            out.print(getID() + k + "\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (int k = 0; k < componentCount; k++) {
+            out.print(componentLogP[k] + "\t");
+        }
+    }
+
+    @Override
+    public List<String> getArguments() {
+        List<String> arguments = new ArrayList<>();
+        arguments.add(dataInput.get().getID());
+        return arguments;
+    }
+
+    @Override
+    public List<String> getConditions() {
+        List<String> conditions = new ArrayList<>();
+        for (SiteModelInterface.Base siteModel : siteModels) {
+            conditions.addAll(siteModel.getConditions());
+        }
+        return conditions;
+    }
+
+}
@@ -20,7 +20,6 @@ public class ABySSFrequencyLogger extends CalculationNode implements Loggable, S
     final public Input<String> keysInput;
     protected ABySSubstitutionModel model;
     protected List<String> keys;
-    private static final double DEFAULT_BRANCH_LENGTH = 100000;
 
     public ABySSFrequencyLogger() {
         this.modelInput = new Input<>("model", "ABYSS SVS general substitution model.", Input.Validate.REQUIRED);
@@ -58,33 +57,6 @@ public class ABySSFrequencyLogger extends CalculationNode implements Loggable, S
 
     }
 
-    private List<Double> getFrequencies(ABySSubstitutionModel model) {
-        int nrOfStates = this.model.getStateCount();
-        double t = DEFAULT_BRANCH_LENGTH;
-        boolean equilibrium = false;
-        double[] p;
-        double[] f = new double[nrOfStates];
-
-        while (!equilibrium) {
-            p = new double[nrOfStates * nrOfStates];
-            model.getTransitionProbabilities(null, 1.0, 0., t, p);
-            boolean reached = true;
-            for (int i = 0; i < nrOfStates; i++) {
-                f[i] = p[i];
-                for (int j = 1; j < nrOfStates; j++) {
-                    if (p[i] - p[j * nrOfStates + i] > 1e-6) {
-                        reached = false;
-                        break;
-                    }
-                }
-                if (!reached) break;
-            }
-            if (reached) equilibrium = true;
-            t *= 10;
-        }
-        return DoubleStream.of(f).boxed().toList();
-    }
-
     public void close(PrintStream close) {
     }
 
@@ -95,12 +67,13 @@ public class ABySSFrequencyLogger extends CalculationNode implements Loggable, S
 
     @Override
     public List<Double> getElements() {
-        return getFrequencies(this.model);
+        // shares the model's cached equilibrium frequencies rather than recomputing them
+        return DoubleStream.of(this.model.getEquilibriumFrequencies()).boxed().toList();
     }
 
     @Override
     public double get(int i) {
-        return getElements().get(i);
+        return this.model.getEquilibriumFrequencies()[i];
     }
 
     @Override
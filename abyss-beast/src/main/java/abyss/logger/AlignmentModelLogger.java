@@ -9,7 +9,6 @@ import beast.base.util.Randomizer;
 import org.apache.commons.math3.util.FastMath;
 
 import java.io.PrintStream;
-import java.util.Arrays;
 
 /**
  * @author Jasmine Saghafifar
@@ -21,10 +20,12 @@ public class AlignmentModelLogger extends BEASTObject implements Loggable {
             "Mixed tree likelihoods", Input.Validate.REQUIRED);
 
     int modelCount;
+    double[] posteriorOfEachModel;
 
     @Override
     public void initAndValidate() {
-        this.modelCount = mixedLikelihoodsInput.get().pLikelihoods.get().size();
+        this.modelCount = mixedLikelihoodsInput.get().getComponentCount();
+        this.posteriorOfEachModel = new double[mixedLikelihoodsInput.get().getPartialLogLikelihoodCount()];
     }
 
 
@@ -36,13 +37,15 @@ public class AlignmentModelLogger extends BEASTObject implements Loggable {
     @Override
     public void log(long sample, PrintStream out) {
         // sample from models posteriors
-        double[] partialLogLikelihoods = mixedLikelihoodsInput.get().getPartialLogLikelihoods();
-        double[] posteriorOfEachModel = new double[partialLogLikelihoods.length];
-
-        double max = Arrays.stream(partialLogLikelihoods).max().getAsDouble();
+        MixedTreeLikelihood mixedLikelihoods = mixedLikelihoodsInput.get();
+        mixedLikelihoods.getPartialLogLikelihoods(posteriorOfEachModel);
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < posteriorOfEachModel.length; i++) {
+            max = Math.max(max, posteriorOfEachModel[i]);
+        }
         double pSum = 0;
-        for (int i = 0; i < partialLogLikelihoods.length; i++) {
-            posteriorOfEachModel[i] = FastMath.exp(partialLogLikelihoods[i]-max);
+        for (int i = 0; i < posteriorOfEachModel.length; i++) {
+            posteriorOfEachModel[i] = FastMath.exp(posteriorOfEachModel[i]-max);
             pSum += posteriorOfEachModel[i];
         }
         for (int i = 0; i < posteriorOfEachModel.length; i++) {
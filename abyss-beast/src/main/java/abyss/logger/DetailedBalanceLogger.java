@@ -34,7 +34,7 @@ public class DetailedBalanceLogger extends CalculationNode implements Loggable,
 
     public void initAndValidate() {
         this.model = this.modelInput.get();
-        this.equilibriumFreqs = model.getFrequencies();
+        this.equilibriumFreqs = model.getEquilibriumFrequencies();
 
         if (this.keysInput.get() != null) {
             String[] keysArr = keysInput.get().split(" ");
@@ -68,7 +68,7 @@ public class DetailedBalanceLogger extends CalculationNode implements Loggable,
         int nrOfStates = model.getStateCount();
         double[] d = new double[(nrOfStates*nrOfStates-nrOfStates)/2];
         model.setupRateMatrix();
-        this.equilibriumFreqs = model.getFrequencies();
+        this.equilibriumFreqs = model.getEquilibriumFrequencies();
         double[][] Q = model.getRateMatrix();
 
         // deviations in the detailed balance property (Q_ij*pi_i=Q_ji*pi_j)
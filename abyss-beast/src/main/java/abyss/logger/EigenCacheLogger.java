@@ -0,0 +1,44 @@
+package abyss.logger;
+
+import abyss.substitutionmodel.ABySSubstitutionModel;
+import abyss.substitutionmodel.EigenDecompositionCache;
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+
+import java.io.PrintStream;
+
+/**
+ * @author Jasmine Saghafifar
+ */
+@Description("Logs hits and misses of a substitution model's eigen decomposition cache, for sizing the cache.")
+public class EigenCacheLogger extends BEASTObject implements Loggable {
+
+    final public Input<ABySSubstitutionModel> modelInput = new Input<>("model",
+            "ABYSS SVS general substitution model.", Input.Validate.REQUIRED);
+
+    @Override
+    public void initAndValidate() {
+        if (modelInput.get().getEigenCache() == null)
+            throw new IllegalArgumentException("Eigen decomposition cache is disabled for model " +
+                    modelInput.get().getID() + " (eigenCacheSize=0).");
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        String id = getID() != null ? getID() : "eigenCache";
+        out.print(id + ".hits\t" + id + ".misses\t" + id + ".size\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        EigenDecompositionCache cache = modelInput.get().getEigenCache();
+        out.print(cache.getHits() + "\t" + cache.getMisses() + "\t" + cache.size() + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+
+    }
+}
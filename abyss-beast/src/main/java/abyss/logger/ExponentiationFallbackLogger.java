@@ -0,0 +1,43 @@
+package abyss.logger;
+
+import abyss.substitutionmodel.ABySSubstitutionModel;
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+
+import java.io.PrintStream;
+
+/**
+ * @author Jasmine Saghafifar
+ */
+@Description("Logs how often a substitution model fell back on scaling and squaring because its eigen " +
+        "decomposition failed or was ill-conditioned, and how often its rate matrix had no finite exponential.")
+public class ExponentiationFallbackLogger extends BEASTObject implements Loggable {
+
+    final public Input<ABySSubstitutionModel> modelInput = new Input<>("model",
+            "ABYSS SVS general substitution model.", Input.Validate.REQUIRED);
+
+    @Override
+    public void initAndValidate() {
+
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        String id = getID() != null ? getID() : "exponentiation";
+        out.print(id + ".decompositionFailures\t" + id + ".illConditioned\t" + id + ".nonExponentiable\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        ABySSubstitutionModel model = modelInput.get();
+        out.print(model.getDecompositionFailureCount() + "\t" + model.getIllConditionedCount() + "\t" +
+                model.getNonExponentiableCount() + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+
+    }
+}
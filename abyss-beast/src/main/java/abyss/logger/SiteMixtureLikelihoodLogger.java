@@ -17,14 +17,10 @@ public class SiteMixtureLikelihoodLogger extends BEASTObject implements Loggable
     final public Input<MixedTreeLikelihood> mixedLikelihoodsInput = new Input<>("mixedLikelihoods",
             "Mixed tree likelihoods", Input.Validate.REQUIRED);
 
-    int siteMixtureIndex;
-
     @Override
     public void initAndValidate() {
         if (mixedLikelihoodsInput.get().modeInput.get().equals("avg"))
             throw new IllegalArgumentException("No site mixture models involved in 'avg' mode.");
-        this.siteMixtureIndex = mixedLikelihoodsInput.get().modeInput.get().equals("both") ?
-                mixedLikelihoodsInput.get().pLikelihoods.get().size() : 0;
     }
 
 
@@ -35,11 +31,8 @@ public class SiteMixtureLikelihoodLogger extends BEASTObject implements Loggable
 
     @Override
     public void log(long sample, PrintStream out) {
-        // get site mixture log likelihood
-        double likelihood = mixedLikelihoodsInput.get().getPartialLogLikelihoods()[this.siteMixtureIndex];
-        // if model averaging involved, need to remove meta weight
-        if (mixedLikelihoodsInput.get().modeInput.get().equals("both"))
-            likelihood -= Math.log(mixedLikelihoodsInput.get().getMetaWeights()[this.siteMixtureIndex]);
+        // site mixture log likelihood without meta weight, as evaluated for the current state
+        double likelihood = mixedLikelihoodsInput.get().getSiteMixtureLogLikelihood();
         out.print(likelihood + "\t");
 
     }
@@ -6,13 +6,11 @@ import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Loggable;
 import beast.base.evolution.alignment.Alignment;
-import beast.base.spec.evolution.likelihood.TreeLikelihood;
 import beast.base.util.Randomizer;
 import org.apache.commons.math3.util.FastMath;
 
 import java.io.PrintStream;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.DoubleBuffer;
 
 /**
  * @author Jasmine Saghafifar
@@ -26,11 +24,16 @@ public class SiteModelLogger extends BEASTObject implements Loggable {
     int siteCount;
     int nrOfPatterns;
     int modelCount;
+    Alignment data;
+    double[] posteriorOfEachModel;
+    double[] posteriorOfEachModelPerPattern;
 
     @Override
     public void initAndValidate() {
-        this.modelCount = mixedLikelihoodsInput.get().pLikelihoods.get().size();
-        Alignment data = (Alignment) mixedLikelihoodsInput.get().pLikelihoods.get().getFirst().getInput("data").get();
+        this.modelCount = mixedLikelihoodsInput.get().getComponentCount();
+        this.data = mixedLikelihoodsInput.get().getData();
+        this.posteriorOfEachModel = new double[mixedLikelihoodsInput.get().getPartialLogLikelihoodCount()];
+        this.posteriorOfEachModelPerPattern = new double[this.modelCount];
         this.siteCount = data.getSiteCount();
         this.nrOfPatterns = data.getPatternCount();
     }
@@ -46,12 +49,15 @@ public class SiteModelLogger extends BEASTObject implements Loggable {
     @Override
     public void log(long sample, PrintStream out) {
         // sample from models posteriors
-        double[] partialLogLikelihoods = mixedLikelihoodsInput.get().getPartialLogLikelihoods();
-        double[] posteriorOfEachModel = new double[partialLogLikelihoods.length];
-        double max = Arrays.stream(partialLogLikelihoods).max().getAsDouble();
+        MixedTreeLikelihood mixedLikelihoods = mixedLikelihoodsInput.get();
+        mixedLikelihoods.getPartialLogLikelihoods(posteriorOfEachModel);
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < posteriorOfEachModel.length; i++) {
+            max = Math.max(max, posteriorOfEachModel[i]);
+        }
         double pSum = 0;
-        for (int i = 0; i < partialLogLikelihoods.length; i++) {
-            posteriorOfEachModel[i] = FastMath.exp(partialLogLikelihoods[i]-max);
+        for (int i = 0; i < posteriorOfEachModel.length; i++) {
+            posteriorOfEachModel[i] = FastMath.exp(posteriorOfEachModel[i]-max);
             pSum += posteriorOfEachModel[i];
         }
         for (int i = 0; i < posteriorOfEachModel.length; i++) {
@@ -59,50 +65,19 @@ public class SiteModelLogger extends BEASTObject implements Loggable {
         }
         int modelIndex = Randomizer.randomChoicePDF(posteriorOfEachModel);
 
-        String mode = mixedLikelihoodsInput.get().modeInput.get();
+        String mode = mixedLikelihoods.modeInput.get();
         if (!mode.equalsIgnoreCase("mix") && modelIndex < modelCount) {
             for (int i = 0; i < siteCount; i++) {
                 out.print(modelIndex + "\t");
             }
         } else {
-            // for site mixture, calculate likelihood for every site, sampling model index from each
-            List<Double> siteModelWeights = mixedLikelihoodsInput.get().siteModelWeightsInput.get().getElements();
-            double[][] patternLogLikelihoods = new double[this.modelCount][this.nrOfPatterns];
-
-            // get pattern log likelihoods
-            for (int i = 0; i < modelCount; i++) {
-                TreeLikelihood likelihood = (TreeLikelihood) mixedLikelihoodsInput.get().pLikelihoods.get().get(i);
-                patternLogLikelihoods[i] = likelihood.getPatternLogLikelihoods();
-            }
-
-            double[][] posteriorOfEachModelPerPattern = new double[this.nrOfPatterns][this.modelCount];
-            double[] probsPattern = new double[this.modelCount];
-
-            for (int j = 0; j < this.nrOfPatterns; j++) {
-            	// find max of patternLogLikelihoods for site j
-            	double maxLogP = patternLogLikelihoods[0][j];
-                for (int i = 1; i < this.modelCount; i++) {
-                	maxLogP = Math.max(maxLogP, patternLogLikelihoods[i][j]);
-                }
-                
-                // calc pattern probabilities, taking site model weights in account
-                pSum = 0;
-                for (int i = 0; i < this.modelCount; i++) {
-                    probsPattern[i] = Math.exp(patternLogLikelihoods[i][j] - maxLogP) * siteModelWeights.get(i);
-                    pSum += probsPattern[i];
-                }
-
-                // normalise posterior
-                for (int i = 0; i < this.modelCount; i++) {
-                    posteriorOfEachModelPerPattern[j][i] = probsPattern[i] / pSum;
-                }
-            }
-
-            Alignment data = ((TreeLikelihood) mixedLikelihoodsInput.get().pLikelihoods.get().getFirst()).dataInput.get();
-
+            // for site mixture, sample model index of every site from the posterior of its pattern,
+            // as computed once for the current state by the mixed likelihood
+            DoubleBuffer responsibilities = mixedLikelihoods.getResponsibilities();
             for (int i = 0; i < siteCount; i++) {
                 int patternNum = data.getPatternIndex(i);
-                double[] p = posteriorOfEachModelPerPattern[patternNum];
+                double[] p = posteriorOfEachModelPerPattern;
+                responsibilities.get(patternNum * modelCount, p);
                 double sum = 0;
                 for (double v : p) {
                     sum += v;
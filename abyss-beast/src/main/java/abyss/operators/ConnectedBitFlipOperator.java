@@ -0,0 +1,146 @@
+package abyss.operators;
+
+import abyss.inference.IndicatorGraph;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.Operator;
+import beast.base.spec.inference.parameter.BoolVectorParam;
+import beast.base.util.Randomizer;
+
+/**
+ * Flips one indicator chosen uniformly among the flips that keep the state valid under SVSPrior:
+ * at least nrOfStates active rates and a strongly connected graph. Any inactive rate can be switched on,
+ * and an active rate i to j can be switched off if i still reaches j without it. Every flip is undone by a valid flip,
+ * so with V(x) the valid flips of state x the Hastings ratio is |V(x)| / |V(y)|.
+ * The valid flips of the current and the proposed state are cached, so after an accept or a reject
+ * only the new proposed state has to be counted.
+ * @author Jasmine Saghafifar
+ */
+@Description("Bit flip operator for SVS rate indicators that only proposes indicators with a strongly connected " +
+        "rate graph and at least nrOfStates active rates, the support of SVSPrior.")
+public class ConnectedBitFlipOperator extends Operator {
+
+    final public Input<BoolVectorParam> parameterInput = new Input<>("parameter",
+            "rate indicators, in the order of AbyssSVS.Utils.", Input.Validate.REQUIRED);
+    final public Input<Integer> nrOfStatesInput = new Input<>("nrOfStates",
+            "number of states being used in Q matrix (default derived from the number of indicators).");
+    final public Input<Boolean> isSymmetricInput = new Input<>("symmetric",
+            "whether Q is reversible/symmetric rates.", false);
+
+    private BoolVectorParam parameter;
+    private int nrOfStates;
+    private IndicatorGraph graph;
+
+    // valid flips of the current state x and of the last proposed state y
+    private Neighbourhood current;
+    private Neighbourhood proposed;
+
+    @Override
+    public void initAndValidate() {
+        parameter = parameterInput.get();
+        final boolean symmetric = isSymmetricInput.get();
+        final int nrOfIndicators = parameter.size();
+        final double root = symmetric ? (1 + Math.sqrt(1 + 8.0 * nrOfIndicators)) / 2 :
+                (1 + Math.sqrt(1 + 4.0 * nrOfIndicators)) / 2;
+        final int dim = (int) Math.round(root);
+
+        graph = new IndicatorGraph(dim, symmetric);
+        if (graph.getIndicatorCount() != nrOfIndicators)
+            throw new IllegalArgumentException(nrOfIndicators + " indicators do not fit a" +
+                    (symmetric ? " symmetric" : "") + " rate matrix.");
+        nrOfStates = nrOfStatesInput.get() != null ? nrOfStatesInput.get() : dim;
+
+        current = new Neighbourhood(nrOfIndicators);
+        proposed = new Neighbourhood(nrOfIndicators);
+    }
+
+    @Override
+    public double proposal() {
+        if (!current.matches(parameter)) {
+            if (proposed.matches(parameter)) {
+                // last proposal was accepted
+                Neighbourhood swap = current;
+                current = proposed;
+                proposed = swap;
+            } else {
+                current.update(parameter);
+            }
+        }
+
+        if (current.count == 0) {
+            // current state is outside the support, e.g. the starting state, so move as a plain bit flip
+            int indicator = Randomizer.nextInt(parameter.size());
+            parameter.set(indicator, !parameter.get(indicator));
+            return 0.0;
+        }
+
+        int indicator = current.flips[Randomizer.nextInt(current.count)];
+        proposed.update(current, indicator);
+        parameter.set(indicator, proposed.indicators[indicator]);
+
+        return Math.log(current.count) - Math.log(proposed.count);
+    }
+
+    // indicators of a state and its valid single flips
+    private class Neighbourhood {
+
+        final boolean[] indicators;
+        final int[] flips;
+        int count;
+        boolean known = false;
+
+        Neighbourhood(int nrOfIndicators) {
+            indicators = new boolean[nrOfIndicators];
+            flips = new int[nrOfIndicators];
+        }
+
+        boolean matches(BoolVectorParam parameter) {
+            if (!known)
+                return false;
+            for (int k = 0; k < indicators.length; k++) {
+                if (indicators[k] != parameter.get(k)) return false;
+            }
+            return true;
+        }
+
+        void update(BoolVectorParam parameter) {
+            for (int k = 0; k < indicators.length; k++) {
+                indicators[k] = parameter.get(k);
+            }
+            graph.setIndicators(indicators);
+            countFlips();
+        }
+
+        void update(Neighbourhood from, int indicator) {
+            System.arraycopy(from.indicators, 0, indicators, 0, indicators.length);
+            indicators[indicator] = !indicators[indicator];
+            graph.setIndicators(indicators);
+            countFlips();
+        }
+
+        // counts against the graph, which must hold this state
+        private void countFlips() {
+            known = true;
+            count = 0;
+            int active = 0;
+            for (boolean indicator : indicators) {
+                if (indicator) active++;
+            }
+            if (active < nrOfStates || !graph.isStronglyConnected())
+                return;
+
+            final boolean removable = active > nrOfStates;
+            for (int k = 0; k < indicators.length; k++) {
+                if (!indicators[k]) {
+                    flips[count++] = k;
+                } else if (removable) {
+                    graph.setIndicator(k, false);
+                    if (graph.reaches(graph.getSource(k), graph.getTarget(k)))
+                        flips[count++] = k;
+                    graph.setIndicator(k, true);
+                }
+            }
+        }
+    }
+
+}
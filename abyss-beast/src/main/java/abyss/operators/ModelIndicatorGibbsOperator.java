@@ -0,0 +1,144 @@
+package abyss.operators;
+
+import abyss.inference.CachedTreeLikelihood;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.Distribution;
+import beast.base.inference.Operator;
+import beast.base.spec.domain.NonNegativeInt;
+import beast.base.spec.inference.parameter.IntScalarParam;
+import beast.base.util.Randomizer;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Jasmine Saghafifar
+ */
+@Description("Gibbs operator for the modelIndicator of ABySSModelAveraging. Scores the tree likelihood " +
+        "under every candidate model, one likelihood per model, and samples the indicator from its " +
+        "full conditional, so the move is always accepted.")
+public class ModelIndicatorGibbsOperator extends Operator {
+
+    final public Input<IntScalarParam<NonNegativeInt>> modelIndicatorInput = new Input<>("modelIndicator",
+            "index of the active model of ABySSModelAveraging.", Input.Validate.REQUIRED);
+    final public Input<List<CachedTreeLikelihood>> likelihoodsInput = new Input<>("likelihood",
+            "tree likelihood under each candidate model, in the order of the model list. Each needs a SiteModel " +
+                    "of its own around the submodel, sharing the site model parameters (e.g. gamma shape), data, tree " +
+                    "and clock model with the likelihood in the posterior. These must use the java likelihood core.",
+            new ArrayList<>(), Input.Validate.REQUIRED);
+    final public Input<List<Distribution>> priorsInput = new Input<>("prior",
+            "densities in the posterior that depend on modelIndicator, e.g. PseudoPriors and the prior on " +
+                    "the indicator itself. Leave out for a uniform prior on the indicator.", new ArrayList<>());
+    final public Input<Integer> threadsInput = new Input<>("threads",
+            "number of threads evaluating candidate models (default 1, which evaluates them in turn). " +
+                    "Shared calculation nodes such as a relaxed clock update lazily and are not thread safe, so only " +
+                    "use more threads if the candidates share nothing but parameters and the tree.", 1);
+
+    // shuts down the threads of operators that are no longer used
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private IntScalarParam<NonNegativeInt> modelIndicator;
+    private List<CachedTreeLikelihood> likelihoods;
+    private ExecutorService executor;
+    private Cleaner.Cleanable cleanable;
+    private List<Callable<Double>> tasks;
+    private double[] logP;
+
+    @Override
+    public void initAndValidate() {
+        modelIndicator = modelIndicatorInput.get();
+        likelihoods = likelihoodsInput.get();
+        logP = new double[likelihoods.size()];
+        for (CachedTreeLikelihood likelihood : likelihoods) {
+            // only the java core can be evaluated from scratch, so fail now rather than at the first proposal
+            if (likelihood.usesBeagle())
+                throw new IllegalArgumentException("Likelihood " + likelihood.getID() + " uses BEAGLE, but " +
+                        "ModelIndicatorGibbsOperator needs the java likelihood core (e.g. run BEAST with -java).");
+        }
+
+        if (cleanable != null) {
+            // initialised again, e.g. by BEAUti
+            cleanable.clean();
+            cleanable = null;
+            executor = null;
+        }
+        final int threads = Math.min(threadsInput.get(), likelihoods.size());
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "ModelIndicatorGibbsOperator");
+                thread.setDaemon(true);
+                return thread;
+            });
+            cleanable = CLEANER.register(this, executor::shutdown);
+            tasks = new ArrayList<>();
+            for (CachedTreeLikelihood likelihood : likelihoods) {
+                tasks.add(likelihood::calculateLogPFromScratch);
+            }
+        }
+    }
+
+    @Override
+    public double proposal() {
+        final int nrOfModels = likelihoods.size();
+        if (executor != null) {
+            try {
+                List<Future<Double>> results = executor.invokeAll(tasks);
+                for (int i = 0; i < nrOfModels; i++) {
+                    logP[i] = results.get(i).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Double.NEGATIVE_INFINITY;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        } else {
+            for (int i = 0; i < nrOfModels; i++) {
+                logP[i] = likelihoods.get(i).calculateLogPFromScratch();
+            }
+        }
+
+        // priors read the indicator, so they are evaluated in turn for each candidate
+        if (!priorsInput.get().isEmpty()) {
+            for (int i = 0; i < nrOfModels; i++) {
+                modelIndicator.set(i);
+                for (Distribution prior : priorsInput.get()) {
+                    logP[i] += prior.calculateLogP();
+                }
+            }
+        }
+
+        // sample from the full conditional
+        double max = Double.NEGATIVE_INFINITY;
+        for (double value : logP) {
+            if (value > max) max = value;
+        }
+        if (max == Double.NEGATIVE_INFINITY || Double.isNaN(max))
+            return Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        for (int i = 0; i < nrOfModels; i++) {
+            logP[i] = Double.isNaN(logP[i]) ? 0.0 : Math.exp(logP[i] - max);
+            sum += logP[i];
+        }
+        double u = Randomizer.nextDouble() * sum;
+        int newModel = nrOfModels - 1;
+        for (int i = 0; i < nrOfModels; i++) {
+            u -= logP[i];
+            if (u < 0) {
+                newModel = i;
+                break;
+            }
+        }
+        modelIndicator.set(newModel);
+
+        return Double.POSITIVE_INFINITY;
+    }
+
+}
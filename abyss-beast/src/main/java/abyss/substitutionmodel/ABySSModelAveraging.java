@@ -3,6 +3,7 @@ package abyss.substitutionmodel;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.evolution.substitutionmodel.ComplexColtEigenSystem;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.spec.domain.NonNegativeInt;
 import beast.base.spec.evolution.substitutionmodel.GeneralSubstitutionModel;
 import beast.base.evolution.tree.Node;
@@ -28,6 +29,24 @@ public class ABySSModelAveraging extends GeneralSubstitutionModel {
     IntScalarParam<NonNegativeInt> modelIndicator;
     List<GeneralSubstitutionModel> models;
 
+    // rate matrix, frequencies and eigen decomposition of every submodel, each recomputed only after that
+    // submodel's own parameters changed, so switching modelIndicator just points at another submodel's.
+    // Matrices and frequencies live in two preallocated buffers per submodel: a recomputed submodel is
+    // written into the buffer the stored state does not refer to, so restore is an index swap.
+    private double[][][] rateMatrixBuffers;
+    private double[][] flatRateMatrixBuffers;
+    private double[][] frequencyBuffers;
+    private int[] modelBuffer;
+    private int[] storedModelBuffer;
+    // stamp of each submodel's current rate matrix, unique over all submodels and recomputations
+    private long[] modelVersions;
+    private long[] storedModelVersions;
+    private long versionCount = 0;
+    private EigenDecomposition[] modelDecompositions;
+    private EigenDecomposition[] storedModelDecompositions;
+    private boolean[] modelValid;
+    private boolean[] storedModelValid;
+
     public ABySSModelAveraging() {
         frequenciesInput.setRule(Input.Validate.OPTIONAL);
         ratesInput.setRule(Input.Validate.OPTIONAL);
@@ -50,6 +69,52 @@ public class ABySSModelAveraging extends GeneralSubstitutionModel {
         rateMatrix = new double[nrOfStates][nrOfStates];
         relativeRates = new double[nrOfStates*(nrOfStates-1)];
         storedRelativeRates = new double[nrOfStates*(nrOfStates-1)];
+
+        int nrOfModels = models.size();
+        rateMatrixBuffers = new double[2 * nrOfModels][nrOfStates][nrOfStates];
+        flatRateMatrixBuffers = new double[2 * nrOfModels][nrOfStates * nrOfStates];
+        frequencyBuffers = new double[2 * nrOfModels][nrOfStates];
+        modelBuffer = new int[nrOfModels];
+        storedModelBuffer = new int[nrOfModels];
+        modelVersions = new long[nrOfModels];
+        storedModelVersions = new long[nrOfModels];
+        modelDecompositions = new EigenDecomposition[nrOfModels];
+        storedModelDecompositions = new EigenDecomposition[nrOfModels];
+        modelValid = new boolean[nrOfModels];
+        storedModelValid = new boolean[nrOfModels];
+    }
+
+    /**
+     * Points rateMatrix and eigenDecomposition at the active submodel, setting up and decomposing
+     * its rate matrix only if its parameters changed since it was last used.
+     * @return index of the active submodel
+     */
+    private int updateActiveModel() {
+        synchronized (this) {
+            int index = modelIndicator.get();
+            if (!modelValid[index]) {
+                GeneralSubstitutionModel model = models.get(index);
+                model.setupRelativeRates();
+                model.setupRateMatrix();
+                double[][] matrix = model.getRateMatrix();
+                int buffer = 2 * index + 1 - storedModelBuffer[index];
+                double[][] copy = rateMatrixBuffers[buffer];
+                double[] flat = flatRateMatrixBuffers[buffer];
+                for (int i = 0; i < nrOfStates; i++) {
+                    System.arraycopy(matrix[i], 0, copy[i], 0, nrOfStates);
+                    System.arraycopy(matrix[i], 0, flat, i * nrOfStates, nrOfStates);
+                }
+                System.arraycopy(model.getFrequencies(), 0, frequencyBuffers[buffer], 0, nrOfStates);
+                modelBuffer[index] = buffer - 2 * index;
+                modelVersions[index] = ++versionCount;
+                modelDecompositions[index] = eigenSystem.decomposeMatrix(copy);
+                modelValid[index] = true;
+            }
+            rateMatrix = rateMatrixBuffers[2 * index + modelBuffer[index]];
+            eigenDecomposition = modelDecompositions[index];
+            updateMatrix = false;
+            return index;
+        }
     }
 
     @Override
@@ -61,44 +126,93 @@ public class ABySSModelAveraging extends GeneralSubstitutionModel {
 
     @Override
     public void setupRateMatrix() {
-        GeneralSubstitutionModel model = models.get(modelIndicator.get());
-        model.setupRateMatrix();
-        rateMatrix = model.getRateMatrix();
+        updateActiveModel();
     }
 
     @Override
     public double[] getFrequencies() {
-        GeneralSubstitutionModel model = models.get(modelIndicator.get());
-        return model.getFrequencies();
+        int index = updateActiveModel();
+        return frequencyBuffers[2 * index + modelBuffer[index]];
     }
 
+    /**
+     * @return rate matrix of the active submodel, shared, do not modify
+     */
     @Override
     public double[][] getRateMatrix() {
-        GeneralSubstitutionModel model = models.get(modelIndicator.get());
-        model.setupRateMatrix();
-        rateMatrix = model.getRateMatrix();
+        updateActiveModel();
         return rateMatrix;
     }
 
+    /**
+     * @return row-major rate matrix of the active submodel, shared, do not modify.
+     * Nothing is copied or set up unless the submodel changed, see getRateMatrixVersion().
+     */
     @Override
     public double[] getRateMatrix(Node node) {
-        GeneralSubstitutionModel model = models.get(modelIndicator.get());
-        model.setupRateMatrix();
-        double[][] matrix = model.getRateMatrix();
-        double[] rates = new double[nrOfStates*nrOfStates];
-        for (int i = 0; i < nrOfStates; i++) {
-            // TODO check array copy done right. was i*nrOfStates + j = i,j
-            System.arraycopy(matrix[i], 0, rates, i * nrOfStates, nrOfStates);
-        }
-        return rates;
+        int index = updateActiveModel();
+        return flatRateMatrixBuffers[2 * index + modelBuffer[index]];
+    }
+
+    /**
+     * @return stamp of the current rate matrix, which changes whenever the matrix returned by
+     * getRateMatrix() and getRateMatrix(Node) does, so callers can skip work on an unchanged matrix
+     */
+    public long getRateMatrixVersion() {
+        return modelVersions[updateActiveModel()];
+    }
+
+    @Override
+    public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
+        updateActiveModel();
+        super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+    }
+
+    @Override
+    public EigenDecomposition getEigenDecomposition(Node node) {
+        updateActiveModel();
+        return super.getEigenDecomposition(node);
+    }
+
+    @Override
+    public void store() {
+        System.arraycopy(modelBuffer, 0, storedModelBuffer, 0, modelBuffer.length);
+        System.arraycopy(modelVersions, 0, storedModelVersions, 0, modelVersions.length);
+        System.arraycopy(modelDecompositions, 0, storedModelDecompositions, 0, modelDecompositions.length);
+        System.arraycopy(modelValid, 0, storedModelValid, 0, modelValid.length);
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        int[] tmpBuffer = modelBuffer;
+        modelBuffer = storedModelBuffer;
+        storedModelBuffer = tmpBuffer;
+        long[] tmpVersions = modelVersions;
+        modelVersions = storedModelVersions;
+        storedModelVersions = tmpVersions;
+        EigenDecomposition[] tmpDecompositions = modelDecompositions;
+        modelDecompositions = storedModelDecompositions;
+        storedModelDecompositions = tmpDecompositions;
+        boolean[] tmpValid = modelValid;
+        modelValid = storedModelValid;
+        storedModelValid = tmpValid;
+        super.restore();
+        updateMatrix = true;
     }
 
     @Override
     protected boolean requiresRecalculation() {
-        if (modelIndicator.somethingIsDirty()) {
+        // only submodels whose own parameters changed need a new decomposition
+        for (int i = 0; i < models.size(); i++) {
+            if (models.get(i).isDirtyCalculation())
+                modelValid[i] = false;
+        }
+        if (modelIndicator.somethingIsDirty() || !modelValid[modelIndicator.get()]) {
             updateMatrix = true;
             return true;
         }
-        return super.requiresRecalculation();
+        // a change to an inactive submodel does not change this model
+        return false;
     }
 }
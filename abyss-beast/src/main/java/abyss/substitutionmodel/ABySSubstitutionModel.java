@@ -30,6 +30,20 @@ public class ABySSubstitutionModel extends ComplexSubstitutionModel implements A
             "If true (default) n(n-1)/2 rates and indicators need to be specified. " +
             "If false, n(n-1) rates and indicators need to be specified.", Boolean.FALSE);
 
+    public Input<Integer> eigenCacheSizeInput = new Input<>("eigenCacheSize",
+            "Number of eigen decompositions kept for revisited rate and indicator configurations " +
+            "(default 16). Set to 0 to disable the cache.", 16);
+
+    public Input<Integer> expmvMinStatesInput = new Input<>("expmvMinStates",
+            "Models with at least this many states let CachedTreeLikelihood (java core) propagate partials " +
+            "with exp(tQ)v on the sparse Q instead of forming transition probability matrices " +
+            "(default 40, e.g. codon models). Set to 0 to disable.", 40);
+
+    public Input<Boolean> eigenRefinementInput = new Input<>("eigenRefinement",
+            "Refine the previous eigen decomposition by Newton steps after a rate change instead of decomposing " +
+            "from scratch, falling back on a full decomposition if it does not converge (nonreversible only, " +
+            "pays off for small moves on larger state spaces, default false).", Boolean.FALSE);
+
     public ABySSubstitutionModel() {
         frequenciesInput.setRule(Validate.OPTIONAL);
     }
@@ -38,6 +52,75 @@ public class ABySSubstitutionModel extends ComplexSubstitutionModel implements A
     private boolean isSymmetric = false;
     private static final double DEFAULT_BRANCH_LENGTH = 100000;
 
+    // Q is assembled and normalised in flat row-major buffers owned by the model, then copied into the
+    // rows of rateMatrix, so setting up Q allocates nothing
+    private double[] flatRateMatrix;
+    private double[] unnormalisedRateMatrix;
+    // the unnormalised Q is kept across calls and only the entries and row sums of rates that
+    // changed since it was last assembled are updated (e.g. after a single indicator flip)
+    private double[] assembledRates;
+    private double[] assembledFreqs;
+    // frequencies of a reversible Q, read element by element since getFreqs() returns a new array
+    private double[] modelFreqs;
+    private boolean assembled = false;
+    private int[] rateRow;
+    private int[] rateColumn;
+    private boolean[] dirtyRows;
+    private int[] dirtyRowList;
+    // work space of the exponentiation fallback for singular Q, allocated on first use
+    private double[][] singularRateMatrix;
+    private double[] singularExp;
+    private double[] singularTransProbs;
+
+    private EquilibriumSolver equilibriumSolver;
+    // equilibrium frequencies are cached per state, and only recomputed after rates or indicators change
+    private double[] equilibriumFreqs;
+    private double[] storedEquilibriumFreqs;
+    private boolean updateFrequencies = true;
+    private boolean storedUpdateFrequencies = true;
+
+    // real symmetric decomposition of Pi^1/2 Q Pi^-1/2 for reversible Q
+    private SymmetricEigenSystem symmetricEigenSystem;
+
+    // warm start from the previous decomposition
+    private EigenRefinement eigenRefinement;
+    private long refinedDecompositions = 0;
+    private long refinementFailures = 0;
+
+    private EigenDecompositionCache eigenCache;
+    private boolean[] indicatorValues;
+
+    // projectors of the current and previous decomposition, so a restore is a pointer swap
+    private SpectralProjectors spectralProjectors;
+    private SpectralProjectors otherSpectralProjectors;
+
+    // closed-form P(t) used instead of the eigen decomposition for nonreversible 4-state models
+    private FourStateKernel fourStateKernel;
+    private FourStateKernel storedFourStateKernel;
+    private boolean updateKernel = true;
+    private boolean storedUpdateKernel = true;
+
+    // scaling and squaring, used when the eigen decomposition fails or its eigenvectors are ill-conditioned
+    private static final double MAX_CONDITION_NUMBER = 1e6;
+    private MatrixExponential matrixExponential;
+    private MatrixExponential storedMatrixExponential;
+    private boolean useMatrixExponential = false;
+    private boolean storedUseMatrixExponential = false;
+    // whether eigenDecomposition is that of the current Q and trusted; a failed decomposition keeps the last one
+    private boolean eigenDecompositionUsable = false;
+    private boolean storedEigenDecompositionUsable = false;
+    private long decompositionFailures = 0;
+    private long illConditionedDecompositions = 0;
+    private long nonExponentiable = 0;
+
+    // exp(tQ)v on the sparse rate matrix for large state spaces
+    private Expmv expmv;
+    private Expmv storedExpmv;
+    private boolean expmvValid = false;
+    private boolean storedExpmvValid = false;
+    private boolean updateExpmv = true;
+    private boolean storedUpdateExpmv = true;
+
     @Override
     public void initAndValidate(){
         if (indicatorsInput.get() != null) {
@@ -68,9 +151,41 @@ public class ABySSubstitutionModel extends ComplexSubstitutionModel implements A
 
         updateMatrix = true;
         eigenSystem = createEigenSystem(); // ComplexColtEigenSystem
+        symmetricEigenSystem = isSymmetric ? new SymmetricEigenSystem(nrOfStates) : null;
+        eigenRefinement = !isSymmetric && eigenRefinementInput.get() ? new EigenRefinement(nrOfStates) : null;
         rateMatrix = new double[nrOfStates][nrOfStates];
+        flatRateMatrix = new double[nrOfStates * nrOfStates];
+        unnormalisedRateMatrix = new double[nrOfStates * nrOfStates];
+        setupRateIndices(ratesInput.get().size());
         relativeRates = new double[ratesInput.get().size()];
         storedRelativeRates = new double[ratesInput.get().size()];
+        equilibriumSolver = new EquilibriumSolver(nrOfStates);
+        equilibriumFreqs = new double[nrOfStates];
+        storedEquilibriumFreqs = new double[nrOfStates];
+        updateFrequencies = true;
+
+        if (eigenCacheSizeInput.get() > 0) {
+            int nrOfRates = relativeRates.length;
+            eigenCache = new EigenDecompositionCache(eigenCacheSizeInput.get(), nrOfRates,
+                    isSymmetric ? nrOfRates + nrOfStates : nrOfRates);
+            indicatorValues = rateIndicator != null ? new boolean[nrOfRates] : null;
+        }
+        spectralProjectors = new SpectralProjectors(nrOfStates);
+        otherSpectralProjectors = new SpectralProjectors(nrOfStates);
+        matrixExponential = new MatrixExponential(nrOfStates);
+        storedMatrixExponential = new MatrixExponential(nrOfStates);
+        useMatrixExponential = false;
+        eigenDecompositionUsable = false;
+        if (expmvMinStatesInput.get() > 0 && nrOfStates >= expmvMinStatesInput.get()) {
+            expmv = new Expmv(nrOfStates);
+            storedExpmv = new Expmv(nrOfStates);
+            updateExpmv = true;
+        }
+        if (!isSymmetric && nrOfStates == FourStateKernel.STATE_COUNT) {
+            fourStateKernel = new FourStateKernel();
+            storedFourStateKernel = new FourStateKernel();
+            updateKernel = true;
+        }
 
     }
 
@@ -89,6 +204,9 @@ public class ABySSubstitutionModel extends ComplexSubstitutionModel implements A
      */
     public void makeDirty() {
         updateMatrix = true;
+        updateFrequencies = true;
+        updateKernel = true;
+        updateExpmv = true;
     }
 
     private double[] probability = null; // TODO check done right?
@@ -105,6 +223,96 @@ public class ABySSubstitutionModel extends ComplexSubstitutionModel implements A
         }
     }
 
+    // row and column in Q of each relative rate; symmetric rates also set the transposed entry
+    private void setupRateIndices(int nrOfRates) {
+        rateRow = new int[nrOfRates];
+        rateColumn = new int[nrOfRates];
+        int count = 0;
+        for (int i = 0; i < nrOfStates; i++) {
+            for (int j = isSymmetric ? i + 1 : 0; j < nrOfStates; j++) {
+                if (i != j) {
+                    rateRow[count] = i;
+                    rateColumn[count] = j;
+                    count++;
+                }
+            }
+        }
+        assembledRates = new double[nrOfRates];
+        assembledFreqs = isSymmetric ? new double[nrOfStates] : null;
+        modelFreqs = isSymmetric ? new double[nrOfStates] : null;
+        dirtyRows = new boolean[nrOfStates];
+        dirtyRowList = new int[nrOfStates];
+        assembled = false;
+    }
+
+    /**
+     * Brings the unnormalised Q up to date with relativeRates (and the frequencies when symmetric).
+     * Changed rates are found by comparing all K relative rates against those last assembled, an O(K)
+     * pass, as the parameters do not report which entries changed. Only the changed off-diagonals are
+     * written, and only the diagonals of their rows are summed again, so a single rate or indicator move
+     * writes O(n) entries of Q rather than all of them; setupRelativeRates and the normalised copy made by
+     * setupRateMatrix still take O(n^2). Row sums are recomputed in full, in the same order as a complete
+     * assembly, so the result does not depend on the order of updates.
+     */
+    private void updateUnnormalisedRateMatrix() {
+        final int n = nrOfStates;
+        final double[] q = unnormalisedRateMatrix;
+        boolean all = !assembled;
+        double[] f = null;
+        if (isSymmetric) {
+            f = readFrequencies();
+            if (!Arrays.equals(f, assembledFreqs)) {
+                // frequencies are part of every off-diagonal
+                System.arraycopy(f, 0, assembledFreqs, 0, n);
+                all = true;
+            }
+        }
+
+        int nrOfDirtyRows = 0;
+        for (int k = 0; k < relativeRates.length; k++) {
+            final double rate = relativeRates[k];
+            if (!all && rate == assembledRates[k])
+                continue;
+            assembledRates[k] = rate;
+            final int i = rateRow[k];
+            final int j = rateColumn[k];
+            if (isSymmetric) {
+                q[i * n + j] = rate * f[j];
+                q[j * n + i] = rate * f[i];
+                if (!dirtyRows[j]) {
+                    dirtyRows[j] = true;
+                    dirtyRowList[nrOfDirtyRows++] = j;
+                }
+            } else {
+                q[i * n + j] = rate;
+            }
+            if (!dirtyRows[i]) {
+                dirtyRows[i] = true;
+                dirtyRowList[nrOfDirtyRows++] = i;
+            }
+        }
+
+        for (int r = 0; r < nrOfDirtyRows; r++) {
+            final int i = dirtyRowList[r];
+            final int row = i * n;
+            double fSum = 0.0;
+            for (int j = 0; j < n; j++) {
+                if (i != j)
+                    fSum += q[row + j];
+            }
+            q[row + i] = -fSum;
+            dirtyRows[i] = false;
+        }
+        assembled = true;
+    }
+
+    private double[] readFrequencies() {
+        for (int i = 0; i < nrOfStates; i++) {
+            modelFreqs[i] = frequencies.get(i);
+        }
+        return modelFreqs;
+    }
+
     public static double[][] setupUnnormNonrevQ(double[] relativeRates, int nrOfStates) {
         double[][] Qm = new double[nrOfStates][nrOfStates];
         for (int i = 0; i < nrOfStates; i++) {
@@ -128,47 +336,32 @@ public class ABySSubstitutionModel extends ComplexSubstitutionModel implements A
     /** sets up rate matrix **/
     @Override
     public void setupRateMatrix() {
+        final int n = nrOfStates;
+        final double[] q = flatRateMatrix;
+        final double[] unnormalised = unnormalisedRateMatrix;
+        updateUnnormalisedRateMatrix();
         double[] f;
-        if (isSymmetricInput.get()) {
-            f = frequencies.getFreqs();
-            int count = 0;
-            for (int i = 0; i < nrOfStates; i++) {
-                rateMatrix[i][i] = 0;
-                for (int j = i+1; j < nrOfStates; j++) {
-                    rateMatrix[i][j] = relativeRates[count];
-                    rateMatrix[j][i] = relativeRates[count];
-                    count++;
-                }
-            }
-            // bring in frequencies
-            for (int i = 0; i < nrOfStates; i++) {
-                for (int j = i + 1; j < nrOfStates; j++) {
-                    rateMatrix[i][j] *= f[j];
-                    rateMatrix[j][i] *= f[i];
-                }
-            }
-            // set up diagonal
-            for (int i = 0; i < nrOfStates; i++) {
-                double fSum = 0.0;
-                for (int j = 0; j < nrOfStates; j++) {
-                    if (i != j)
-                        fSum += rateMatrix[i][j];
-                }
-                rateMatrix[i][i] = -fSum;
-            }
+        if (isSymmetric) {
+            // read by updateUnnormalisedRateMatrix()
+            f = modelFreqs;
     	} else { // nonreversible Q mat not constructed from freqs
-            rateMatrix = setupUnnormNonrevQ(relativeRates, nrOfStates);
-            f = getEquilibriumFrequencies(rateMatrix);
+            if (updateFrequencies) {
+                solveEquilibriumFrequencies(unnormalised);
+                updateFrequencies = false;
+            }
+            f = equilibriumFreqs;
         }
 
         // normalise rate matrix to one expected substitution per unit time
         double fSubst = 0.0;
-        for (int i = 0; i < nrOfStates; i++)
-            fSubst += -rateMatrix[i][i] * f[i];
-
-        for (int i = 0; i < nrOfStates; i++) {
-            for (int j = 0; j < nrOfStates; j++) {
-                rateMatrix[i][j] = rateMatrix[i][j] / fSubst;
+        for (int i = 0; i < n; i++)
+            fSubst += -unnormalised[i * n + i] * f[i];
+
+        for (int i = 0; i < n; i++) {
+            final double[] row = rateMatrix[i];
+            for (int j = 0; j < n; j++) {
+                q[i * n + j] = unnormalised[i * n + j] / fSubst;
+                row[j] = q[i * n + j];
             }
         }
     } // setupRateMatrix
@@ -176,92 +369,460 @@ public class ABySSubstitutionModel extends ComplexSubstitutionModel implements A
 
     @Override
     protected boolean requiresRecalculation() {
+        // only rates and indicators can be dirty here, both of which change pi
+        updateFrequencies = true;
+        updateKernel = true;
+        updateExpmv = true;
     	return super.requiresRecalculation();
     }
+
+    @Override
+    public void store() {
+        System.arraycopy(equilibriumFreqs, 0, storedEquilibriumFreqs, 0, nrOfStates);
+        storedUpdateFrequencies = updateFrequencies;
+        if (fourStateKernel != null) {
+            storedFourStateKernel.assign(fourStateKernel);
+            storedUpdateKernel = updateKernel;
+        }
+        if (useMatrixExponential)
+            storedMatrixExponential.assign(matrixExponential);
+        storedUseMatrixExponential = useMatrixExponential;
+        storedEigenDecompositionUsable = eigenDecompositionUsable;
+        if (expmv != null) {
+            storedExpmv.assign(expmv);
+            storedExpmvValid = expmvValid;
+            storedUpdateExpmv = updateExpmv;
+        }
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        double[] tmp = equilibriumFreqs;
+        equilibriumFreqs = storedEquilibriumFreqs;
+        storedEquilibriumFreqs = tmp;
+        updateFrequencies = storedUpdateFrequencies;
+        if (fourStateKernel != null) {
+            FourStateKernel tmpKernel = fourStateKernel;
+            fourStateKernel = storedFourStateKernel;
+            storedFourStateKernel = tmpKernel;
+            updateKernel = storedUpdateKernel;
+        }
+        MatrixExponential tmpExponential = matrixExponential;
+        matrixExponential = storedMatrixExponential;
+        storedMatrixExponential = tmpExponential;
+        useMatrixExponential = storedUseMatrixExponential;
+        eigenDecompositionUsable = storedEigenDecompositionUsable;
+        if (expmv != null) {
+            Expmv tmpExpmv = expmv;
+            expmv = storedExpmv;
+            storedExpmv = tmpExpmv;
+            expmvValid = storedExpmvValid;
+            updateExpmv = storedUpdateExpmv;
+        }
+        super.restore();
+    }
     
+    /**
+     * BEAGLE exponentiates a real diagonalisation itself, and otherwise takes the transition probability
+     * matrices from getTransitionProbabilities. So reversible Q also goes through the matrices whenever
+     * its eigen decomposition failed or is ill-conditioned, and BEAGLE gets the scaling and squaring result.
+     */
     @Override
     public boolean canReturnComplexDiagonalization() {
-    	return !isSymmetricInput.get();
+        if (!isSymmetric)
+            return true;
+        synchronized (this) {
+            updateExponentiation();
+            return !eigenDecompositionUsable;
+        }
     }
 
+    /**
+     * If Q has no finite exponential (e.g. non-finite rates) the matrix is filled with NaN and the event counted.
+     * NaN partials give a log likelihood of -infinity in BEAGLE and the ABySS tree likelihoods, and NaN
+     * in the java core of TreeLikelihood, so the state is rejected either way.
+     */
     @Override
     public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
-        try {super.getTransitionProbabilities( node,  startTime,  endTime,  rate, matrix);} catch (Exception exception) {
-            Arrays.fill(matrix, 0.0);
+        final double distance = (startTime - endTime) * rate;
+        FourStateKernel kernel = getFourStateKernel();
+        if (kernel != null) {
+            kernel.getTransitionProbabilities(distance, matrix, 0);
+            return;
+        }
+        SpectralProjectors projectors = getSpectralProjectors();
+        if (projectors != null) {
+            projectors.getTransitionProbabilities(distance, matrix, 0);
+            return;
+        }
+        synchronized (this) {
+            if (!useMatrixExponential) {
+                fillNonExponentiable(matrix, nrOfStates * nrOfStates);
+                return;
+            }
+            matrixExponential.getTransitionProbabilities(distance, matrix, 0);
+        }
+    }
+
+    /**
+     * Transition probabilities for a batch of distances (branch length x rate products),
+     * e.g. all rate categories of a branch. The eigen decomposition and its projectors are
+     * shared by the whole batch, so only the eigenvalue exponentials are computed per distance.
+     * @param distances expected number of substitutions for each matrix
+     * @param count     number of matrices
+     * @param matrices  array of at least count * n * n to store the row-major matrices in, NaN if Q has no
+     *                  finite exponential
+     */
+    public void getTransitionProbabilities(double[] distances, int count, double[] matrices) {
+        FourStateKernel kernel = getFourStateKernel();
+        if (kernel != null) {
+            kernel.getTransitionProbabilities(distances, count, matrices);
+            return;
+        }
+        SpectralProjectors projectors = getSpectralProjectors();
+        if (projectors != null) {
+            projectors.getTransitionProbabilities(distances, count, matrices);
+            return;
         }
+        synchronized (this) {
+            if (!useMatrixExponential) {
+                fillNonExponentiable(matrices, count * nrOfStates * nrOfStates);
+                return;
+            }
+            matrixExponential.getTransitionProbabilities(distances, count, matrices);
+        }
+    }
+
+    private void fillNonExponentiable(double[] matrices, int length) {
+        Arrays.fill(matrices, 0, length, Double.NaN);
+        nonExponentiable++;
+    }
 
+    /**
+     * @return true if likelihoods should propagate partials with {@link #getExpmv()} rather than use transition matrices
+     */
+    public boolean usesExpmv() {
+        return expmv != null;
+    }
+
+    /**
+     * Expmv engine for the current normalised Q, which needs neither an eigen decomposition nor P(t).
+     * @return null if Q is not valid, or this model does not use expmv
+     */
+    public Expmv getExpmv() {
+        if (expmv == null)
+            return null;
+        synchronized (this) {
+            if (updateExpmv) {
+                setupRelativeRates();
+                setupRateMatrix();
+                expmvValid = expmv.setRateMatrix(flatRateMatrix);
+                updateExpmv = false;
+            }
+            return expmvValid ? expmv : null;
+        }
+    }
+
+    /**
+     * @return the closed-form kernel brought up to date with the rates, or null if there is none
+     * or it is not accurate enough for these rates, in which case the eigen decomposition is used
+     */
+    private FourStateKernel getFourStateKernel() {
+        if (fourStateKernel == null)
+            return null;
+        synchronized (this) {
+            if (updateKernel) {
+                setupRelativeRates();
+                if (fourStateKernel.update(relativeRates) && updateFrequencies) {
+                    // solved exactly as in setupRateMatrix, so share it
+                    System.arraycopy(fourStateKernel.getFrequencies(), 0, equilibriumFreqs, 0, nrOfStates);
+                    updateFrequencies = false;
+                }
+                updateKernel = false;
+            }
+            return fourStateKernel.isValid() ? fourStateKernel : null;
+        }
+    }
+
+    /**
+     * @return projectors of the current eigen decomposition, or null if there is no trustworthy decomposition,
+     * in which case useMatrixExponential tells whether scaling and squaring can be used instead
+     */
+    private SpectralProjectors getSpectralProjectors() {
+        synchronized (this) {
+            updateExponentiation();
+            if (!eigenDecompositionUsable)
+                return null;
+            if (!spectralProjectors.isBuiltFrom(eigenDecomposition)) {
+                SpectralProjectors tmp = spectralProjectors;
+                spectralProjectors = otherSpectralProjectors;
+                otherSpectralProjectors = tmp;
+                if (!spectralProjectors.isBuiltFrom(eigenDecomposition))
+                    spectralProjectors.build(eigenDecomposition);
+            }
+            return spectralProjectors;
+        }
+    }
+
+    /**
+     * Only trustworthy when canReturnComplexDiagonalization() is false, as BEAGLE checks first.
+     * If the decomposition of the current Q failed, this is the last one that succeeded, as in GeneralSubstitutionModel.
+     * @throws ArithmeticException if no rate matrix of this model could be decomposed yet
+     */
+    @Override
+    public EigenDecomposition getEigenDecomposition(Node node) {
+        synchronized (this) {
+            updateExponentiation();
+            if (eigenDecomposition == null)
+                throw new ArithmeticException("Rate matrix of " + getID() + " has no eigen decomposition");
+            return eigenDecomposition;
+        }
+    }
+
+    /**
+     * Picks how P(t) is computed after Q changed: through the eigen decomposition if it succeeds and
+     * its eigenvectors are well conditioned, otherwise by scaling and squaring, so that valid but
+     * nearly defective Q matrices still get a likelihood. Each fallback is counted.
+     * If neither works (Q is not finite) getTransitionProbabilities returns NaN matrices.
+     */
+    private void updateExponentiation() {
+        synchronized (this) {
+            if (!updateMatrix)
+                return;
+            useMatrixExponential = false;
+            eigenDecompositionUsable = false;
+            try {
+                updateEigenDecomposition();
+                if (conditionNumber(eigenDecomposition) > MAX_CONDITION_NUMBER) {
+                    illConditionedDecompositions++;
+                    useMatrixExponential = true;
+                } else {
+                    eigenDecompositionUsable = true;
+                }
+            } catch (RuntimeException e) {
+                // e.g. the eigen solver did not converge; eigenDecomposition is still the last good one
+                updateMatrix = false;
+                decompositionFailures++;
+                useMatrixExponential = true;
+            }
+            if (useMatrixExponential) {
+                // a cache hit leaves rateMatrix as is
+                setupRateMatrix();
+                useMatrixExponential = matrixExponential.setRateMatrix(flatRateMatrix);
+            }
+        }
+    }
+
+    // infinity norm condition number of the eigenvector matrix
+    private static double conditionNumber(EigenDecomposition decomposition) {
+        return maxRowSum(decomposition.getEigenVectors()) * maxRowSum(decomposition.getInverseEigenVectors());
+    }
+
+    private static double maxRowSum(double[] matrix) {
+        final int n = (int) Math.round(Math.sqrt(matrix.length));
+        double max = 0.0;
+        for (int i = 0; i < n; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < n; j++) {
+                sum += Math.abs(matrix[i * n + j]);
+            }
+            max = Math.max(max, sum);
+        }
+        // NaN entries make the decomposition unusable
+        return Double.isNaN(max) ? Double.POSITIVE_INFINITY : max;
+    }
+
+    /** number of rate matrices whose eigen decomposition failed, exponentiated by scaling and squaring instead **/
+    public long getDecompositionFailureCount() {
+        return decompositionFailures;
+    }
+
+    /** number of rate matrices with ill-conditioned eigenvectors, exponentiated by scaling and squaring instead **/
+    public long getIllConditionedCount() {
+        return illConditionedDecompositions;
+    }
+
+    /** number of transition probability requests for a Q without finite exponential, answered with NaN **/
+    public long getNonExponentiableCount() {
+        return nonExponentiable;
+    }
+
+    /** number of eigen decompositions obtained by refining the previous one **/
+    public long getRefinedCount() {
+        return refinedDecompositions;
+    }
+
+    /** number of refinements that did not converge, after which Q was decomposed from scratch **/
+    public long getRefinementFailureCount() {
+        return refinementFailures;
+    }
+
+    /**
+     * Brings the eigen decomposition up to date, taking it (and pi) from the cache
+     * when this rate and indicator configuration has been decomposed before.
+     * Note a cache hit leaves rateMatrix as is; callers of getRateMatrix() set it up first.
+     */
+    private void updateEigenDecomposition() {
+        synchronized (this) {
+            if (!updateMatrix)
+                return;
+            setupRelativeRates();
+            if (eigenCache != null) {
+                if (indicatorValues != null) {
+                    for (int i = 0; i < indicatorValues.length; i++) {
+                        indicatorValues[i] = rateIndicator.get(i);
+                    }
+                }
+                eigenCache.setKey(indicatorValues, relativeRates, isSymmetric ? readFrequencies() : null);
+                EigenDecompositionCache.Entry entry = eigenCache.get();
+                if (entry != null) {
+                    eigenDecomposition = entry.decomposition;
+                    if (!isSymmetric) {
+                        System.arraycopy(entry.freqs, 0, equilibriumFreqs, 0, nrOfStates);
+                        updateFrequencies = false;
+                    }
+                    updateMatrix = false;
+                    return;
+                }
+            }
+            setupRateMatrix();
+            // eigenDecomposition only changes once a decomposition succeeded
+            EigenDecomposition decomposition = null;
+            if (symmetricEigenSystem != null)
+                decomposition = symmetricEigenSystem.decompose(flatRateMatrix, modelFreqs);
+            if (eigenRefinement != null && eigenDecomposition != null) {
+                decomposition = eigenRefinement.refine(eigenDecomposition, flatRateMatrix);
+                if (decomposition != null)
+                    refinedDecompositions++;
+                else
+                    refinementFailures++;
+            }
+            if (decomposition == null)
+                decomposition = eigenSystem.decomposeMatrix(rateMatrix);
+            eigenDecomposition = decomposition;
+            updateMatrix = false;
+            if (eigenCache != null)
+                eigenCache.put(eigenDecomposition, isSymmetric ? null : equilibriumFreqs);
+        }
+    }
+
+    /**
+     * Normalised Q as set up by the last call to setupRateMatrix(), in row-major order.
+     * @return read-only view, do not modify
+     */
+    public double[] getFlatRateMatrix() {
+        return flatRateMatrix;
+    }
+
+    public EigenDecompositionCache getEigenCache() {
+        return eigenCache;
     }
 
     @Override
     public double[] getFrequencies() {
         if (!isSymmetricInput.get()) {
-            setupRelativeRates();
-            double[][] Qm = setupUnnormNonrevQ(relativeRates, nrOfStates);
-            return getEquilibriumFrequencies(Qm);
+            // copy, since callers (e.g. BEAGLE) keep the returned array to detect changes
+            return getEquilibriumFrequencies().clone();
         }
         return this.frequencies.getFreqs();
     }
 
-    private double[] getEquilibriumFrequencies(double[][] Qm) {
+    /**
+     * Equilibrium frequencies of the current Q, computed at most once per state
+     * and shared by the likelihood, loggers and priors.
+     * @return read-only view of the cached frequencies, do not modify
+     */
+    public double[] getEquilibriumFrequencies() {
+        synchronized (this) {
+            if (isSymmetric)
+                return readFrequencies();
+            if (updateFrequencies) {
+                setupRelativeRates();
+                updateUnnormalisedRateMatrix();
+                solveEquilibriumFrequencies(unnormalisedRateMatrix);
+                updateFrequencies = false;
+            }
+        }
+        return equilibriumFreqs;
+    }
+
+    /**
+     * Stationary distribution of the flat row-major Qm, solved directly from its left null space.
+     * Falls back on exponentiating Q over increasing branch lengths only if Qm is singular.
+     */
+    private void solveEquilibriumFrequencies(double[] Qm) {
+        if (equilibriumSolver.solve(Qm, equilibriumFreqs))
+            return;
+        getEquilibriumFrequenciesByExponentiation(Qm, equilibriumFreqs);
+    }
+
+    private void getEquilibriumFrequenciesByExponentiation(double[] Qm, double[] freqs) {
+        final int n = nrOfStates;
+        if (singularRateMatrix == null) {
+            singularRateMatrix = new double[n][n];
+            singularExp = new double[n * n];
+            singularTransProbs = new double[n * n];
+        }
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(Qm, i * n, singularRateMatrix[i], 0, n);
+        }
+        final double[] iexp = singularExp;
+        final double[] transProbs = singularTransProbs;
         double temp;
 
-        EigenDecomposition complexDecomposition = eigenSystem.decomposeMatrix(Qm);
+        EigenDecomposition complexDecomposition = eigenSystem.decomposeMatrix(singularRateMatrix);
         double[] Eval = complexDecomposition.getEigenValues();
         double[] evec = complexDecomposition.getEigenVectors();
         double[] ievc = complexDecomposition.getInverseEigenVectors();
 
-        double[][] iexp = new double[nrOfStates][nrOfStates];
-        double[] EvalImag = new double[nrOfStates];
-        double[][] transProbs = new double[nrOfStates][nrOfStates];
-        double[] freqs = new double[transProbs.length];
-
-        System.arraycopy(Eval, nrOfStates, EvalImag, 0, nrOfStates);
         double t = DEFAULT_BRANCH_LENGTH;
         boolean equilibrium = false;
 
         while (!equilibrium) {
-            for (int i = 0; i < nrOfStates; i++) {
-                if (EvalImag[i] == 0) {
+            for (int i = 0; i < n; i++) {
+                // imaginary parts are stored after the real parts
+                if (Eval[n + i] == 0) {
                     // 1x1 block
                     temp = Math.exp(t * Eval[i]);
-                    for (int j = 0; j < nrOfStates; j++) {
-                        iexp[i][j] = ievc[i * nrOfStates + j] * temp;
+                    for (int j = 0; j < n; j++) {
+                        iexp[i * n + j] = ievc[i * n + j] * temp;
                     }
                 } else {
                     // 2x2 conjugate block
                     // If A is 2x2 with complex conjugate pair eigenvalues a +/- bi, then
                     // exp(At) = exp(at)*( cos(bt)I + \frac{sin(bt)}{b}(A - aI)).
                     int i2 = i + 1;
-                    double b = EvalImag[i];
+                    double b = Eval[n + i];
                     double expat = Math.exp(t * Eval[i]);
                     double expatcosbt = expat * Math.cos(t * b);
                     double expatsinbt = expat * Math.sin(t * b);
 
-                    for (int j = 0; j < nrOfStates; j++) {
-                        iexp[i][j] = expatcosbt * ievc[i * nrOfStates + j] +
-                                expatsinbt * ievc[i2 * nrOfStates + j];
-                        iexp[i2][j] = expatcosbt * ievc[i2 * nrOfStates + j] -
-                                expatsinbt * ievc[i * nrOfStates + j];
+                    for (int j = 0; j < n; j++) {
+                        iexp[i * n + j] = expatcosbt * ievc[i * n + j] +
+                                expatsinbt * ievc[i2 * n + j];
+                        iexp[i2 * n + j] = expatcosbt * ievc[i2 * n + j] -
+                                expatsinbt * ievc[i * n + j];
                     }
                     i++; // processed two conjugate rows
                 }
             }
 
-            for (int i = 0; i < nrOfStates; i++) {
-                for (int j = 0; j < nrOfStates; j++) {
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
                     temp = 0.0;
-                    for (int k = 0; k < nrOfStates; k++) {
-                        temp += evec[i * nrOfStates + k] * iexp[k][j];
+                    for (int k = 0; k < n; k++) {
+                        temp += evec[i * n + k] * iexp[k * n + j];
                     }
-                    transProbs[i][j] = Math.abs(temp);
+                    transProbs[i * n + j] = Math.abs(temp);
                 }
             }
 
             boolean reached = true;
-            for (int i = 0; i < nrOfStates; i++) {
-                freqs[i] = transProbs[0][i];
-                for (int j = 1; j < nrOfStates; j++) {
-                    if (Math.abs(transProbs[0][i] - transProbs[j][i]) > 1e-6) {
+            for (int i = 0; i < n; i++) {
+                freqs[i] = transProbs[i];
+                for (int j = 1; j < n; j++) {
+                    if (Math.abs(transProbs[i] - transProbs[j * n + i]) > 1e-6) {
                         reached = false;
                         break;
                     }
@@ -271,7 +832,6 @@ public class ABySSubstitutionModel extends ComplexSubstitutionModel implements A
             if (reached) equilibrium = true;
             t *= 10;
         }
-        return freqs;
     }
 
 }
@@ -0,0 +1,138 @@
+package abyss.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of eigen decompositions (and equilibrium frequencies) of a rate matrix,
+ * keyed on the SVS indicator bitmask plus the values Q is built from.
+ * Lets restores and revisited indicator configurations skip the decomposition entirely.
+ * Cached decompositions are shared, so they must be treated as read only.
+ * @author Jasmine Saghafifar
+ */
+public class EigenDecompositionCache {
+
+    public static class Entry {
+        public final EigenDecomposition decomposition;
+        public final double[] freqs;
+
+        Entry(EigenDecomposition decomposition, double[] freqs) {
+            this.decomposition = decomposition;
+            this.freqs = freqs;
+        }
+    }
+
+    private static class Key {
+        final long[] mask;
+        final double[] values;
+        int hash;
+
+        Key(int maskLength, int valueLength) {
+            mask = new long[maskLength];
+            values = new double[valueLength];
+        }
+
+        Key(Key other) {
+            mask = other.mask.clone();
+            values = other.values.clone();
+            hash = other.hash;
+        }
+
+        void rehash() {
+            hash = 31 * Arrays.hashCode(mask) + Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key other)) return false;
+            return hash == other.hash && Arrays.equals(mask, other.mask) && Arrays.equals(values, other.values);
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<Key, Entry> entries;
+    // reused lookup key, so a hit allocates nothing
+    private final Key probe;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity  maximum number of decompositions held
+     * @param nrOfBits  number of indicators making up the bitmask
+     * @param nrOfValues number of values (relative rates, plus frequencies if reversible) Q is built from
+     */
+    public EigenDecompositionCache(int capacity, int nrOfBits, int nrOfValues) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(2 * capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > EigenDecompositionCache.this.capacity;
+            }
+        };
+        this.probe = new Key((nrOfBits + 63) / 64, nrOfValues);
+    }
+
+    /**
+     * Loads the lookup key. Must be followed by {@link #get()} and, on a miss, {@link #put}.
+     * @param indicators SVS indicators, or null if there are none
+     * @param rates      relative rates
+     * @param freqs      frequencies Q is built from, or null if nonreversible
+     */
+    public void setKey(boolean[] indicators, double[] rates, double[] freqs) {
+        Arrays.fill(probe.mask, 0L);
+        if (indicators != null) {
+            for (int i = 0; i < indicators.length; i++) {
+                if (indicators[i])
+                    probe.mask[i >>> 6] |= 1L << (i & 63);
+            }
+        }
+        System.arraycopy(rates, 0, probe.values, 0, rates.length);
+        if (freqs != null)
+            System.arraycopy(freqs, 0, probe.values, rates.length, freqs.length);
+        probe.rehash();
+    }
+
+    /**
+     * @return cached entry for the current key, or null on a miss
+     */
+    public Entry get() {
+        Entry entry = entries.get(probe);
+        if (entry != null) hits++;
+        else misses++;
+        return entry;
+    }
+
+    /**
+     * Adds the decomposition for the current key, evicting the least recently used entry when full.
+     */
+    public void put(EigenDecomposition decomposition, double[] freqs) {
+        if (decomposition == null) return;
+        entries.put(new Key(probe), new Entry(decomposition, freqs == null ? null : freqs.clone()));
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+}
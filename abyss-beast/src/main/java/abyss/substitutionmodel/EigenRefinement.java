@@ -0,0 +1,328 @@
+package abyss.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+
+import java.util.Arrays;
+
+/**
+ * Warm-started eigen decomposition of a rate matrix Q close to one already decomposed,
+ * as after a small random walk or AVMN move on the rates.
+ * Starting from the previous eigenvectors V, A = V^-1 Q V is nearly block diagonal, with 1x1 blocks
+ * for real eigenvalues and 2x2 blocks a b / -b a for conjugate pairs (the layout of ComplexColtEigenSystem).
+ * Each Newton step removes the coupling E between blocks I and J to first order by solving the
+ * Sylvester equation D_I C_IJ - C_IJ D_J = -E_IJ, sets V = V (I + C), and corrects V^-1 by a
+ * Newton-Schulz step, so convergence is quadratic while the eigenvalues stay separated.
+ * The refinement gives up, returning null, if the perturbation is not small relative to the eigenvalue gaps,
+ * the block structure changes (e.g. a conjugate pair splits into two real eigenvalues), or the residual
+ * is not below the bound after a few steps; the caller then decomposes from scratch.
+ * Each step costs 6 n x n matrix products, against roughly 25 n^3 flops for a complex decomposition.
+ * @author Jasmine Saghafifar
+ */
+public class EigenRefinement {
+
+    private static final int MAX_ITERATIONS = 5;
+    // off-block residual relative to the largest entry of Q
+    private static final double TOLERANCE = 1e-14;
+    // largest first-order correction, relative to one, that is still trusted to converge
+    private static final double MAX_CORRECTION = 0.5;
+
+    private final int nrOfStates;
+    private final int matrixSize;
+    private final double[] v, vi, a, c, tmp, tmp2;
+    // size (1 or 2) of the diagonal block starting at each index, 0 for the second row of a pair
+    private final int[] blockSize;
+    // Sylvester system of at most 4 unknowns
+    private final double[] system = new double[4 * 5];
+
+    public EigenRefinement(int nrOfStates) {
+        this.nrOfStates = nrOfStates;
+        this.matrixSize = nrOfStates * nrOfStates;
+        v = new double[matrixSize];
+        vi = new double[matrixSize];
+        a = new double[matrixSize];
+        c = new double[matrixSize];
+        tmp = new double[matrixSize];
+        tmp2 = new double[matrixSize];
+        blockSize = new int[nrOfStates];
+    }
+
+    /**
+     * @param previous decomposition of a nearby rate matrix
+     * @param Qm       flat row-major rate matrix to decompose
+     * @return decomposition of Qm laid out as previous, or null if refinement did not converge
+     */
+    public EigenDecomposition refine(EigenDecomposition previous, double[] Qm) {
+        final int n = nrOfStates;
+        final double[] Eval = previous.getEigenValues();
+        final boolean complex = Eval.length >= 2 * n;
+        for (int k = 0; k < n; k++) {
+            if (complex && Eval[n + k] != 0.0) {
+                if (k + 1 == n)
+                    return null;
+                blockSize[k] = 2;
+                blockSize[k + 1] = 0;
+                k++;
+            } else {
+                blockSize[k] = 1;
+            }
+        }
+        System.arraycopy(previous.getEigenVectors(), 0, v, 0, matrixSize);
+        System.arraycopy(previous.getInverseEigenVectors(), 0, vi, 0, matrixSize);
+
+        double scale = 0.0;
+        for (int k = 0; k < matrixSize; k++) {
+            scale = Math.max(scale, Math.abs(Qm[k]));
+        }
+        if (!(scale > 0.0) || Double.isInfinite(scale))
+            return null;
+        final double tolerance = TOLERANCE * scale;
+
+        boolean converged = false;
+        for (int iteration = 0; iteration <= MAX_ITERATIONS; iteration++) {
+            // A = V^-1 Q V
+            multiply(Qm, v, tmp);
+            multiply(vi, tmp, a);
+            if (!canonicalise())
+                return null;
+            if (offBlockNorm() <= tolerance) {
+                converged = true;
+                break;
+            }
+            if (iteration == MAX_ITERATIONS || !solveCoupling())
+                return null;
+
+            // V = V (I + C), V^-1 = (I - C) V^-1, then V^-1 = V^-1 (2I - V V^-1)
+            multiply(v, c, tmp);
+            for (int k = 0; k < matrixSize; k++) {
+                v[k] += tmp[k];
+            }
+            multiply(c, vi, tmp);
+            for (int k = 0; k < matrixSize; k++) {
+                vi[k] -= tmp[k];
+            }
+            multiply(v, vi, tmp);
+            for (int k = 0; k < matrixSize; k++) {
+                tmp[k] = -tmp[k];
+            }
+            for (int i = 0; i < n; i++) {
+                tmp[i * n + i] += 2.0;
+            }
+            multiply(vi, tmp, tmp2);
+            System.arraycopy(tmp2, 0, vi, 0, matrixSize);
+        }
+        if (!converged)
+            return null;
+
+        // V^-1 V must be the identity within the same bound
+        multiply(vi, v, tmp);
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                final double error = Math.abs(tmp[i * n + j] - (i == j ? 1.0 : 0.0));
+                if (!(error <= TOLERANCE * n))
+                    return null;
+            }
+        }
+
+        double[] evec = v.clone();
+        double[] ievc = vi.clone();
+        double[] eval = new double[Eval.length];
+        for (int k = 0; k < n; k++) {
+            eval[k] = a[k * n + k];
+            if (blockSize[k] == 2) {
+                eval[k + 1] = a[k * n + k];
+                eval[n + k] = a[k * n + k + 1];
+                eval[n + k + 1] = -a[k * n + k + 1];
+                k++;
+            }
+        }
+        return new EigenDecomposition(evec, ievc, eval);
+    }
+
+    /**
+     * Brings every 2x2 block of A into the form a b / -b a by a similarity T, applied to A, V and V^-1.
+     * With B u = (a + bi) u for u = x + iy, B [x y] = [x y] (a b / -b a), so T = [x y].
+     * @return false if a block no longer has complex eigenvalues
+     */
+    private boolean canonicalise() {
+        final int n = nrOfStates;
+        for (int k = 0; k < n; k++) {
+            if (blockSize[k] != 2)
+                continue;
+            final int k2 = k + 1;
+            final double p = a[k * n + k], q = a[k * n + k2];
+            final double r = a[k2 * n + k], s = a[k2 * n + k2];
+            final double alpha = (p + s) / 2.0;
+            final double half = (p - s) / 2.0;
+            final double disc = half * half + q * r;
+            if (!(disc < 0.0))
+                return false;
+            final double beta = Math.sqrt(-disc);
+            // T = t00 t01 / t10 t11, from whichever of q and r is larger
+            double t00, t01, t10, t11;
+            if (Math.abs(q) >= Math.abs(r)) {
+                t00 = q;
+                t01 = 0.0;
+                t10 = alpha - p;
+                t11 = beta;
+            } else {
+                t00 = alpha - s;
+                t01 = beta;
+                t10 = r;
+                t11 = 0.0;
+            }
+            // keep T close to a rotation so V does not drift in scale
+            final double norm = Math.sqrt(Math.abs(t00 * t11 - t01 * t10));
+            t00 /= norm;
+            t01 /= norm;
+            t10 /= norm;
+            t11 /= norm;
+            final double det = t00 * t11 - t01 * t10;
+            final double u00 = t11 / det, u01 = -t01 / det, u10 = -t10 / det, u11 = t00 / det;
+
+            // columns k, k2 of A and V times T
+            for (int i = 0; i < n; i++) {
+                rotateColumns(a, i * n, k, k2, t00, t01, t10, t11);
+                rotateColumns(v, i * n, k, k2, t00, t01, t10, t11);
+            }
+            // rows k, k2 of A and V^-1 times T^-1
+            for (int j = 0; j < n; j++) {
+                rotateRows(a, j, k, k2, u00, u01, u10, u11);
+                rotateRows(vi, j, k, k2, u00, u01, u10, u11);
+            }
+            a[k * n + k] = alpha;
+            a[k2 * n + k2] = alpha;
+            a[k * n + k2] = beta;
+            a[k2 * n + k] = -beta;
+            k++;
+        }
+        return true;
+    }
+
+    private void rotateColumns(double[] m, int row, int k, int k2, double t00, double t01, double t10, double t11) {
+        final double x = m[row + k], y = m[row + k2];
+        m[row + k] = x * t00 + y * t10;
+        m[row + k2] = x * t01 + y * t11;
+    }
+
+    private void rotateRows(double[] m, int column, int k, int k2, double u00, double u01, double u10, double u11) {
+        final int n = nrOfStates;
+        final double x = m[k * n + column], y = m[k2 * n + column];
+        m[k * n + column] = u00 * x + u01 * y;
+        m[k2 * n + column] = u10 * x + u11 * y;
+    }
+
+    // largest entry of A outside the diagonal blocks
+    private double offBlockNorm() {
+        final int n = nrOfStates;
+        double max = 0.0;
+        for (int i = 0; i < n; i++) {
+            final int bi = blockStart(i);
+            for (int j = 0; j < n; j++) {
+                if (blockStart(j) != bi)
+                    max = Math.max(max, Math.abs(a[i * n + j]));
+            }
+        }
+        // NaN entries fail the convergence test
+        return Double.isNaN(max) ? Double.POSITIVE_INFINITY : max;
+    }
+
+    private int blockStart(int i) {
+        return blockSize[i] == 0 ? i - 1 : i;
+    }
+
+    /**
+     * Solves D_I C_IJ - C_IJ D_J = -E_IJ for every pair of distinct blocks, C zero within blocks.
+     * @return false if some correction is too large to trust, i.e. eigenvalues are (nearly) coinciding
+     */
+    private boolean solveCoupling() {
+        final int n = nrOfStates;
+        Arrays.fill(c, 0.0);
+        for (int bi = 0; bi < n; bi += blockSize[bi]) {
+            final int p = blockSize[bi];
+            for (int bj = 0; bj < n; bj += blockSize[bj]) {
+                if (bi == bj)
+                    continue;
+                final int q = blockSize[bj];
+                // unknowns C[bi + x][bj + y] at x * q + y
+                final int m = p * q;
+                Arrays.fill(system, 0.0);
+                for (int x = 0; x < p; x++) {
+                    for (int y = 0; y < q; y++) {
+                        final int row = (x * q + y) * 5;
+                        // (D_I C)[x][y] = sum_z D_I[x][z] C[z][y]
+                        for (int z = 0; z < p; z++) {
+                            system[row + z * q + y] += a[(bi + x) * n + bi + z];
+                        }
+                        // (C D_J)[x][y] = sum_z C[x][z] D_J[z][y]
+                        for (int z = 0; z < q; z++) {
+                            system[row + x * q + z] -= a[(bj + z) * n + bj + y];
+                        }
+                        system[row + 4] = -a[(bi + x) * n + bj + y];
+                    }
+                }
+                if (!solveSystem(m))
+                    return false;
+                for (int x = 0; x < p; x++) {
+                    for (int y = 0; y < q; y++) {
+                        final double value = system[(x * q + y) * 5 + 4];
+                        if (!(Math.abs(value) <= MAX_CORRECTION))
+                            return false;
+                        c[(bi + x) * n + bj + y] = value;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // Gaussian elimination with partial pivoting on the m x (m + 1) augmented system, solution in column 4
+    private boolean solveSystem(int m) {
+        for (int k = 0; k < m; k++) {
+            int pivot = k;
+            for (int i = k + 1; i < m; i++) {
+                if (Math.abs(system[i * 5 + k]) > Math.abs(system[pivot * 5 + k]))
+                    pivot = i;
+            }
+            if (system[pivot * 5 + k] == 0.0)
+                return false;
+            if (pivot != k) {
+                for (int j = 0; j < 5; j++) {
+                    final double t = system[k * 5 + j];
+                    system[k * 5 + j] = system[pivot * 5 + j];
+                    system[pivot * 5 + j] = t;
+                }
+            }
+            for (int i = k + 1; i < m; i++) {
+                final double f = system[i * 5 + k] / system[k * 5 + k];
+                for (int j = k; j < 5; j++) {
+                    system[i * 5 + j] -= f * system[k * 5 + j];
+                }
+            }
+        }
+        for (int i = m - 1; i >= 0; i--) {
+            double value = system[i * 5 + 4];
+            for (int j = i + 1; j < m; j++) {
+                value -= system[i * 5 + j] * system[j * 5 + 4];
+            }
+            system[i * 5 + 4] = value / system[i * 5 + i];
+        }
+        return true;
+    }
+
+    private void multiply(double[] x, double[] y, double[] out) {
+        final int n = nrOfStates;
+        Arrays.fill(out, 0.0);
+        for (int i = 0; i < n; i++) {
+            final int row = i * n;
+            for (int k = 0; k < n; k++) {
+                final double xik = x[row + k];
+                if (xik == 0.0) continue;
+                final int rowK = k * n;
+                for (int j = 0; j < n; j++) {
+                    out[row + j] += xik * y[rowK + j];
+                }
+            }
+        }
+    }
+
+}
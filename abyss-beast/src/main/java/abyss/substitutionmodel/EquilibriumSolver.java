@@ -0,0 +1,132 @@
+package abyss.substitutionmodel;
+
+/**
+ * Direct solver for the stationary distribution of a rate matrix.
+ * Solves pi Q = 0 subject to sum(pi) = 1 by LU decomposition (partial pivoting)
+ * of Q^T, with its last row replaced by the normalisation constraint.
+ * All work buffers are allocated once, so each solve is a fixed O(n^3) with no garbage.
+ * @author Jasmine Saghafifar
+ */
+public class EquilibriumSolver {
+
+    private static final double SINGULAR_TOLERANCE = 1e-13;
+    private static final double NEGATIVE_TOLERANCE = 1e-10;
+
+    private final int nrOfStates;
+    private final double[] lu; // row-major working copy of the constrained Q^T
+    private final double[] rhs;
+
+    public EquilibriumSolver(int nrOfStates) {
+        this.nrOfStates = nrOfStates;
+        this.lu = new double[nrOfStates * nrOfStates];
+        this.rhs = new double[nrOfStates];
+    }
+
+    public int getStateCount() {
+        return nrOfStates;
+    }
+
+    /**
+     * @param Qm   unnormalised or normalised rate matrix, rows summing to zero
+     * @param freqs array of length nrOfStates to store the stationary distribution
+     * @return false if Q is (numerically) singular beyond its one-dimensional null space,
+     * in which case freqs is left undefined
+     */
+    public boolean solve(double[][] Qm, double[] freqs) {
+        final int n = nrOfStates;
+        // A = Q^T, last row replaced by ones
+        for (int i = 0; i < n - 1; i++) {
+            for (int j = 0; j < n; j++) {
+                lu[i * n + j] = Qm[j][i];
+            }
+        }
+        return factorAndSolve(freqs);
+    }
+
+    /**
+     * @param Qm   flat row-major rate matrix, rows summing to zero
+     * @param freqs array of length nrOfStates to store the stationary distribution
+     * @return false if Q is (numerically) singular beyond its one-dimensional null space
+     */
+    public boolean solve(double[] Qm, double[] freqs) {
+        final int n = nrOfStates;
+        for (int i = 0; i < n - 1; i++) {
+            for (int j = 0; j < n; j++) {
+                lu[i * n + j] = Qm[j * n + i];
+            }
+        }
+        return factorAndSolve(freqs);
+    }
+
+    private boolean factorAndSolve(double[] freqs) {
+        final int n = nrOfStates;
+        int last = (n - 1) * n;
+        double scale = 0.0;
+        for (int k = 0; k < last; k++) {
+            scale = Math.max(scale, Math.abs(lu[k]));
+        }
+        if (scale == 0.0 || Double.isNaN(scale) || Double.isInfinite(scale))
+            return false;
+        for (int j = 0; j < n; j++) {
+            lu[last + j] = scale; // scaled normalisation row keeps pivots comparable
+            rhs[j] = 0.0;
+        }
+        rhs[n - 1] = scale;
+
+        // forward elimination with partial pivoting
+        for (int k = 0; k < n; k++) {
+            int p = k;
+            double max = Math.abs(lu[k * n + k]);
+            for (int i = k + 1; i < n; i++) {
+                double v = Math.abs(lu[i * n + k]);
+                if (v > max) {
+                    max = v;
+                    p = i;
+                }
+            }
+            if (max <= SINGULAR_TOLERANCE * scale)
+                return false;
+            if (p != k) {
+                for (int j = k; j < n; j++) {
+                    double tmp = lu[k * n + j];
+                    lu[k * n + j] = lu[p * n + j];
+                    lu[p * n + j] = tmp;
+                }
+                double tmp = rhs[k];
+                rhs[k] = rhs[p];
+                rhs[p] = tmp;
+            }
+            double pivot = lu[k * n + k];
+            for (int i = k + 1; i < n; i++) {
+                double f = lu[i * n + k] / pivot;
+                if (f == 0.0) continue;
+                for (int j = k + 1; j < n; j++) {
+                    lu[i * n + j] -= f * lu[k * n + j];
+                }
+                rhs[i] -= f * rhs[k];
+            }
+        }
+
+        // back substitution
+        double sum = 0.0;
+        for (int i = n - 1; i >= 0; i--) {
+            double v = rhs[i];
+            for (int j = i + 1; j < n; j++) {
+                v -= lu[i * n + j] * freqs[j];
+            }
+            v /= lu[i * n + i];
+            if (Double.isNaN(v) || v < -NEGATIVE_TOLERANCE)
+                return false;
+            freqs[i] = Math.max(v, 0.0);
+            sum += freqs[i];
+        }
+        if (!(sum > 0.0))
+            return false;
+        // renormalise to absorb rounding and the clamped negative zeros
+        for (int i = 0; i < n; i++) {
+            freqs[i] /= sum;
+        }
+        return true;
+    }
+
+}
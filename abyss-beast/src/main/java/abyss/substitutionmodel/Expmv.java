@@ -0,0 +1,176 @@
+package abyss.substitutionmodel;
+
+import java.util.Arrays;
+
+/**
+ * Action of the matrix exponential, exp(tQ) V, for a block of vectors without forming exp(tQ),
+ * after Al-Mohy and Higham (2011): a truncated Taylor series of degree m applied s times,
+ * with m and s chosen from the 1-norm of tQ, and early termination once terms stop contributing.
+ * Q is held in compressed sparse row form shifted by its mean diagonal, so each step costs
+ * one sparse product per vector; rates switched off by SVS indicators cost nothing.
+ * For large state spaces (e.g. 61 codons) this replaces the dense eigen decomposition and the
+ * n x n transition matrices per branch and rate category.
+ * Vectors are stored contiguously, vector k from offset + k * n, as in the partials of a likelihood core.
+ * Not thread safe: work space is shared between calls.
+ * @author Jasmine Saghafifar
+ */
+public class Expmv {
+
+    // Taylor degrees and the largest 1-norm of tQ / s each is accurate for in double precision (Al-Mohy & Higham, table 3.1)
+    private static final int[] DEGREES = {5, 10, 15, 20, 25, 30, 35, 40, 45, 50, 55};
+    private static final double[] THETA = {2.4e-3, 1.4e-1, 6.4e-1, 1.4, 2.4, 3.5, 4.7, 6.0, 7.2, 8.5, 9.9};
+    private static final double TOLERANCE = Math.ulp(1.0) / 2.0;
+
+    private final int nrOfStates;
+
+    // Q - mu I in compressed sparse row form
+    private final int[] rowStart;
+    private final int[] columns;
+    private final double[] values;
+    private int nonZeros;
+    private double mu;
+    private double norm1;
+
+    private double[] term = new double[0];
+    private double[] next = new double[0];
+    private final double[] columnSums;
+
+    public Expmv(int nrOfStates) {
+        this.nrOfStates = nrOfStates;
+        rowStart = new int[nrOfStates + 1];
+        columns = new int[nrOfStates * nrOfStates];
+        values = new double[nrOfStates * nrOfStates];
+        columnSums = new double[nrOfStates];
+    }
+
+    /**
+     * Sets the rate matrix from a flat row-major array, keeping only its nonzero entries.
+     * @return false if Q has non-finite entries
+     */
+    public boolean setRateMatrix(double[] Qm) {
+        final int n = nrOfStates;
+        double trace = 0.0;
+        for (int i = 0; i < n; i++) {
+            trace += Qm[i * n + i];
+        }
+        mu = trace / n;
+        nonZeros = 0;
+        Arrays.fill(columnSums, 0.0);
+        for (int i = 0; i < n; i++) {
+            rowStart[i] = nonZeros;
+            for (int j = 0; j < n; j++) {
+                final double value = i == j ? Qm[i * n + j] - mu : Qm[i * n + j];
+                if (value != 0.0) {
+                    columns[nonZeros] = j;
+                    values[nonZeros] = value;
+                    nonZeros++;
+                    columnSums[j] += Math.abs(value);
+                }
+            }
+        }
+        rowStart[n] = nonZeros;
+        norm1 = 0.0;
+        for (int j = 0; j < n; j++) {
+            norm1 = Math.max(norm1, columnSums[j]);
+        }
+        return Double.isFinite(norm1) && Double.isFinite(mu);
+    }
+
+    /** copies the rate matrix of another instance, used for store/restore **/
+    public void assign(Expmv other) {
+        System.arraycopy(other.rowStart, 0, rowStart, 0, nrOfStates + 1);
+        System.arraycopy(other.columns, 0, columns, 0, other.nonZeros);
+        System.arraycopy(other.values, 0, values, 0, other.nonZeros);
+        nonZeros = other.nonZeros;
+        mu = other.mu;
+        norm1 = other.norm1;
+    }
+
+    /**
+     * out = exp(tQ) v for count vectors.
+     * @param t      distance (branch length x rate)
+     * @param v      input vectors, vector k from vOffset + k * n
+     * @param out    output vectors, vector k from outOffset + k * n; may not overlap v
+     */
+    public void apply(double t, double[] v, int vOffset, double[] out, int outOffset, int count) {
+        final int size = count * nrOfStates;
+        if (term.length < size) {
+            term = new double[size];
+            next = new double[size];
+        }
+        System.arraycopy(v, vOffset, out, outOffset, size);
+        final double tNorm = Math.abs(t) * norm1;
+        if (tNorm == 0.0) {
+            scale(out, outOffset, size, Math.exp(t * mu));
+            return;
+        }
+
+        // degree and number of steps of least cost m * s
+        int m = DEGREES[DEGREES.length - 1];
+        long s = Long.MAX_VALUE;
+        long cost = Long.MAX_VALUE;
+        for (int i = 0; i < DEGREES.length; i++) {
+            final long steps = Math.max(1L, (long) Math.ceil(tNorm / THETA[i]));
+            if (DEGREES[i] * steps < cost) {
+                cost = DEGREES[i] * steps;
+                m = DEGREES[i];
+                s = steps;
+            }
+        }
+
+        final double eta = Math.exp(t * mu / s);
+        System.arraycopy(v, vOffset, term, 0, size);
+        for (long i = 0; i < s; i++) {
+            double c1 = normInf(term, 0, size);
+            for (int j = 1; j <= m; j++) {
+                multiply(t / (s * j), term, next, count);
+                final double[] swap = term;
+                term = next;
+                next = swap;
+                final double c2 = normInf(term, 0, size);
+                for (int k = 0; k < size; k++) {
+                    out[outOffset + k] += term[k];
+                }
+                if (c1 + c2 <= TOLERANCE * normInf(out, outOffset, size))
+                    break;
+                c1 = c2;
+            }
+            scale(out, outOffset, size, eta);
+            System.arraycopy(out, outOffset, term, 0, size);
+        }
+    }
+
+    public int getNonZeroCount() {
+        return nonZeros;
+    }
+
+    // y = f (Q - mu I) x for each vector
+    private void multiply(double f, double[] x, double[] y, int count) {
+        final int n = nrOfStates;
+        for (int k = 0; k < count; k++) {
+            final int base = k * n;
+            for (int i = 0; i < n; i++) {
+                double sum = 0.0;
+                for (int p = rowStart[i]; p < rowStart[i + 1]; p++) {
+                    sum += values[p] * x[base + columns[p]];
+                }
+                y[base + i] = f * sum;
+            }
+        }
+    }
+
+    private static double normInf(double[] x, int offset, int size) {
+        double max = 0.0;
+        for (int k = offset; k < offset + size; k++) {
+            max = Math.max(max, Math.abs(x[k]));
+        }
+        return max;
+    }
+
+    private static void scale(double[] x, int offset, int size, double f) {
+        for (int k = offset; k < offset + size; k++) {
+            x[k] *= f;
+        }
+    }
+
+}
@@ -0,0 +1,364 @@
+package abyss.substitutionmodel;
+
+/**
+ * Closed-form transition probabilities for a nonreversible 4-state rate matrix (12 rates).
+ * The eigenvalues are 0 plus the roots of a cubic, solved analytically from the principal minors of Q,
+ * and P(t) = Z_0 + sum_k w_k(t) Z_k with Z_k the Sylvester projectors prod_{j != k} (Q - l_j I) / (l_k - l_j).
+ * Z_0 = 1 pi^T, and a complex pair a +/- bi contributes exp(at)cos(bt) 2Re(Z) - exp(at)sin(bt) 2Im(Z).
+ * Works on flat row-major arrays and allocates nothing after construction.
+ * Near-repeated eigenvalues or very stiff rate matrices make the projectors inaccurate, so {@link #update}
+ * bounds their rounding error and reports failure when it could exceed 1e-12, in which case
+ * the caller should use a general eigen decomposition instead.
+ * @author Jasmine Saghafifar
+ */
+public class FourStateKernel {
+
+    public static final int STATE_COUNT = 4;
+
+    // smallest eigenvalue separation, relative to the largest eigenvalue, for which the projectors are trusted
+    private static final double GAP_TOLERANCE = 1e-3;
+    // largest tolerated estimate of the rounding error in a projector
+    private static final double ACCURACY = 1e-12;
+    private static final double EPSILON = Math.ulp(1.0);
+
+    private final EquilibriumSolver equilibriumSolver = new EquilibriumSolver(STATE_COUNT);
+
+    // normalised rate matrix, its square and work space
+    private final double[] q = new double[16];
+    private final double[] q2 = new double[16];
+    private final double[] tmp = new double[16];
+    private final double[] re = new double[16];
+
+    private final double[] z0 = new double[16];
+    private final double[] z1 = new double[16];
+    private final double[] z2 = new double[16];
+    private final double[] z3 = new double[16];
+
+    // eigenvalues, real and imaginary parts; index 0 is the zero eigenvalue
+    private final double[] evRe = new double[STATE_COUNT];
+    private final double[] evIm = new double[STATE_COUNT];
+
+    private final double[] freqs = new double[STATE_COUNT];
+    // eigenvalues used for the weights; for a complex pair a +/- bi, l2 = a and l3 = b
+    private double l1, l2, l3;
+    private double normQ, normQ2;
+    private boolean complexPair;
+    private boolean valid = false;
+
+    /**
+     * Sets up Q from 12 relative rates (ordered as in ABySSubstitutionModel.setupUnnormNonrevQ),
+     * normalises it to one expected substitution per unit time and forms its projectors.
+     * @return false if Q is reducible or the closed form is not accurate enough for it
+     */
+    public boolean update(double[] relativeRates) {
+        valid = false;
+        final double[] r = relativeRates;
+        final double d0 = r[0] + r[1] + r[2];
+        final double d1 = r[3] + r[4] + r[5];
+        final double d2 = r[6] + r[7] + r[8];
+        final double d3 = r[9] + r[10] + r[11];
+        q[0] = -d0;   q[1] = r[0];   q[2] = r[1];   q[3] = r[2];
+        q[4] = r[3];  q[5] = -d1;    q[6] = r[4];   q[7] = r[5];
+        q[8] = r[6];  q[9] = r[7];   q[10] = -d2;   q[11] = r[8];
+        q[12] = r[9]; q[13] = r[10]; q[14] = r[11]; q[15] = -d3;
+
+        // pi solved as in the general path, so both agree to rounding
+        if (!equilibriumSolver.solve(q, freqs))
+            return false;
+        final double subst = -(q[0] * freqs[0] + q[5] * freqs[1] + q[10] * freqs[2] + q[15] * freqs[3]);
+        if (!(subst > 0) || Double.isInfinite(subst))
+            return false;
+        scale(q, 1.0 / subst);
+        multiply(q, q, q2);
+
+        // characteristic polynomial l (l^3 - e1 l^2 + e2 l - e3), from sums of principal minors
+        final double e1 = q[0] + q[5] + q[10] + q[15];
+        final double e2 = minor(0, 1) + minor(0, 2) + minor(0, 3) + minor(1, 2) + minor(1, 3) + minor(2, 3);
+        final double e3 = minor(1, 2, 3) + minor(0, 2, 3) + minor(0, 1, 3) + minor(0, 1, 2);
+        if (!solveCubic(-e1, e2, -e3))
+            return false;
+
+        // all eigenvalues of a generator have non-positive real part, and must be well separated
+        double maxAbs = 0;
+        for (int k = 1; k < STATE_COUNT; k++) {
+            maxAbs = Math.max(maxAbs, Math.hypot(evRe[k], evIm[k]));
+        }
+        for (int k = 0; k < STATE_COUNT; k++) {
+            if (evRe[k] > GAP_TOLERANCE * maxAbs)
+                return false;
+            for (int j = k + 1; j < STATE_COUNT; j++) {
+                if (Math.hypot(evRe[k] - evRe[j], evIm[k] - evIm[j]) < GAP_TOLERANCE * maxAbs)
+                    return false;
+            }
+        }
+
+        // Z_0 = 1 pi^T
+        for (int i = 0; i < 16; i += 4) {
+            System.arraycopy(freqs, 0, z0, i, STATE_COUNT);
+        }
+        normQ = norm(q);
+        normQ2 = norm(q2);
+        l1 = evRe[1];
+        if (complexPair) {
+            l2 = evRe[2];
+            l3 = evIm[2];
+            if (!pairProjector())
+                return false;
+            // the projectors sum to I, so the fastest decaying one is taken as the complement of the others;
+            // this keeps P(0) = I exact and avoids the least accurate product
+            if (-l1 > Math.hypot(l2, l3)) {
+                complement(z2, null, z1);
+            } else {
+                if (!realProjector(l1, l2, l3, z1))
+                    return false;
+                complement(z1, null, z2);
+            }
+        } else {
+            l2 = evRe[2];
+            l3 = evRe[3];
+            // as above
+            if (l1 <= l2 && l1 <= l3) {
+                if (!realProjector(l2, l1, l3, z2) || !realProjector(l3, l1, l2, z3))
+                    return false;
+                complement(z2, z3, z1);
+            } else if (l2 <= l3) {
+                if (!realProjector(l1, l2, l3, z1) || !realProjector(l3, l1, l2, z3))
+                    return false;
+                complement(z1, z3, z2);
+            } else {
+                if (!realProjector(l1, l2, l3, z1) || !realProjector(l2, l1, l3, z2))
+                    return false;
+                complement(z1, z2, z3);
+            }
+        }
+        valid = true;
+        return true;
+    }
+
+    /**
+     * Transition probabilities for one distance (branch length x rate), stored from matrix[offset].
+     */
+    public void getTransitionProbabilities(double distance, double[] matrix, int offset) {
+        final double w1 = Math.exp(distance * l1);
+        final double w2, w3;
+        if (complexPair) {
+            final double expat = Math.exp(distance * l2);
+            w2 = expat * Math.cos(distance * l3);
+            w3 = expat * Math.sin(distance * l3);
+        } else {
+            w2 = Math.exp(distance * l2);
+            w3 = Math.exp(distance * l3);
+        }
+        for (int u = 0; u < 16; u++) {
+            matrix[offset + u] = Math.abs(z0[u] + w1 * z1[u] + w2 * z2[u] + w3 * z3[u]);
+        }
+    }
+
+    /**
+     * Transition probabilities for a batch of distances; matrix c is stored from matrices[16 * c].
+     */
+    public void getTransitionProbabilities(double[] distances, int count, double[] matrices) {
+        for (int c = 0; c < count; c++) {
+            getTransitionProbabilities(distances[c], matrices, 16 * c);
+        }
+    }
+
+    /**
+     * @return equilibrium frequencies of the last successful update, do not modify
+     */
+    public double[] getFrequencies() {
+        return freqs;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /** copies the state of another kernel, used for store/restore **/
+    public void assign(FourStateKernel other) {
+        System.arraycopy(other.z0, 0, z0, 0, 16);
+        System.arraycopy(other.z1, 0, z1, 0, 16);
+        System.arraycopy(other.z2, 0, z2, 0, 16);
+        System.arraycopy(other.z3, 0, z3, 0, 16);
+        System.arraycopy(other.freqs, 0, freqs, 0, STATE_COUNT);
+        l1 = other.l1;
+        l2 = other.l2;
+        l3 = other.l3;
+        complexPair = other.complexPair;
+        valid = other.valid;
+    }
+
+    /**
+     * Roots of l^3 + a l^2 + b l + c, stored in evRe/evIm[1..3] next to the zero eigenvalue.
+     * A complex pair, if any, goes in 2 (positive imaginary part) and 3.
+     */
+    private boolean solveCubic(double a, double b, double c) {
+        evRe[0] = 0;
+        evIm[0] = 0;
+        // depressed cubic y^3 + py + q with l = y - a/3
+        final double shift = a / 3.0;
+        final double p = b - a * shift;
+        final double qq = 2.0 * shift * shift * shift - shift * b + c;
+        final double disc = 0.25 * qq * qq + p * p * p / 27.0;
+        double root;
+        if (disc > 0) {
+            final double sq = Math.sqrt(disc);
+            final double u = Math.cbrt(qq > 0 ? -0.5 * qq - sq : -0.5 * qq + sq);
+            root = (u == 0 ? 0 : u - p / (3.0 * u)) - shift;
+        } else {
+            // three real roots, take the one of largest magnitude for a stable deflation
+            final double m = 2.0 * Math.sqrt(Math.max(-p / 3.0, 0));
+            final double theta = m == 0 ? 0 : Math.acos(Math.max(-1, Math.min(1, 3.0 * qq / (p * m)))) / 3.0;
+            root = m * Math.cos(theta) - shift;
+            double other = m * Math.cos(theta - 2.0 * Math.PI / 3.0) - shift;
+            if (Math.abs(other) > Math.abs(root)) root = other;
+            other = m * Math.cos(theta - 4.0 * Math.PI / 3.0) - shift;
+            if (Math.abs(other) > Math.abs(root)) root = other;
+        }
+        root = polish(root, a, b, c);
+
+        // deflate to l^2 + beta l + gamma
+        final double beta = a + root;
+        final double gamma = b + root * beta;
+        final double d = beta * beta - 4.0 * gamma;
+        evRe[1] = root;
+        evIm[1] = 0;
+        if (d < 0) {
+            complexPair = true;
+            evRe[2] = evRe[3] = -0.5 * beta;
+            evIm[2] = 0.5 * Math.sqrt(-d);
+            evIm[3] = -evIm[2];
+        } else {
+            complexPair = false;
+            final double t = -0.5 * (beta + Math.copySign(Math.sqrt(d), beta));
+            evRe[2] = polish(t, a, b, c);
+            evRe[3] = polish(t == 0 ? 0 : gamma / t, a, b, c);
+            evIm[2] = evIm[3] = 0;
+        }
+        for (int k = 1; k < STATE_COUNT; k++) {
+            if (!Double.isFinite(evRe[k]) || !Double.isFinite(evIm[k]))
+                return false;
+        }
+        return true;
+    }
+
+    // Newton steps on l^3 + a l^2 + b l + c
+    private static double polish(double x, double a, double b, double c) {
+        for (int i = 0; i < 3; i++) {
+            final double f = ((x + a) * x + b) * x + c;
+            final double df = (3.0 * x + 2.0 * a) * x + b;
+            if (df == 0) break;
+            final double step = f / df;
+            x -= step;
+            if (Math.abs(step) <= 1e-16 * Math.abs(x)) break;
+        }
+        return x;
+    }
+
+    /**
+     * Projector of real eigenvalue l, Q (Q - m I)(Q - n I) / (l (l - m)(l - n)),
+     * where m, n are the other nonzero eigenvalues, as a real pair (a, b) if this is the complex case.
+     * @return false if its rounding error could exceed ACCURACY
+     */
+    private boolean realProjector(double l, double m, double n, double[] z) {
+        final double s1, s2;
+        if (complexPair) {
+            s1 = 2.0 * m;
+            s2 = m * m + n * n;
+        } else {
+            s1 = m + n;
+            s2 = m * n;
+        }
+        final double den = l * (l * l - s1 * l + s2);
+        if (EPSILON * normQ * (normQ2 + Math.abs(s1) * normQ + Math.abs(s2)) > ACCURACY * Math.abs(den))
+            return false;
+        shift(q2, -s1, q, s2, tmp);
+        multiply(q, tmp, z);
+        scale(z, 1.0 / den);
+        return true;
+    }
+
+    /**
+     * Projector Z of l2 + i l3, stored as 2Re(Z) in z2 and -2Im(Z) in z3.
+     * Z = (A (Q - aI) + i bA) / d, with A = Q^2 - l1 Q and d = l2 (l2 - l1) (l2 - conj(l2)).
+     * @return false if its rounding error could exceed ACCURACY
+     */
+    private boolean pairProjector() {
+        final double a = l2, b = l3;
+        // d = (a + bi)(a - l1 + bi) 2bi
+        final double pr = a * (a - l1) - b * b;
+        final double pi = b * (2.0 * a - l1);
+        final double dr = -2.0 * b * pi;
+        final double di = 2.0 * b * pr;
+        final double dd = dr * dr + di * di;
+        if (2.0 * EPSILON * (normQ2 + Math.abs(l1) * normQ) * (normQ + Math.abs(a) + b) > ACCURACY * Math.sqrt(dd))
+            return false;
+        final double ir = dr / dd, ii = -di / dd;
+        shift(q2, -l1, q, 0.0, tmp);
+        multiply(tmp, q, re);
+        for (int u = 0; u < 16; u++) {
+            final double zr = re[u] - a * tmp[u];
+            final double zi = b * tmp[u];
+            z2[u] = 2.0 * (zr * ir - zi * ii);
+            z3[u] = -2.0 * (zr * ii + zi * ir);
+        }
+        return true;
+    }
+
+    // out = I - z0 - x - y, y optional
+    private void complement(double[] x, double[] y, double[] out) {
+        for (int u = 0; u < 16; u++) {
+            out[u] = ((u % 5 == 0) ? 1.0 : 0.0) - z0[u] - x[u] - (y == null ? 0.0 : y[u]);
+        }
+    }
+
+    // 2x2 principal minor of Q
+    private double minor(int i, int j) {
+        return q[i * 5] * q[j * 5] - q[i * 4 + j] * q[j * 4 + i];
+    }
+
+    // 3x3 principal minor of Q
+    private double minor(int i, int j, int k) {
+        final double a = q[i * 5], b = q[i * 4 + j], c = q[i * 4 + k];
+        final double d = q[j * 4 + i], e = q[j * 5], f = q[j * 4 + k];
+        final double g = q[k * 4 + i], h = q[k * 4 + j], m = q[k * 5];
+        return a * (e * m - f * h) - b * (d * m - f * g) + c * (d * h - e * g);
+    }
+
+    // out = x + alpha y + beta I
+    private static void shift(double[] x, double alpha, double[] y, double beta, double[] out) {
+        for (int u = 0; u < 16; u++) {
+            out[u] = x[u] + alpha * y[u];
+        }
+        out[0] += beta;
+        out[5] += beta;
+        out[10] += beta;
+        out[15] += beta;
+    }
+
+    // maximum absolute row sum
+    private static double norm(double[] x) {
+        double max = 0;
+        for (int i = 0; i < 16; i += 4) {
+            max = Math.max(max, Math.abs(x[i]) + Math.abs(x[i + 1]) + Math.abs(x[i + 2]) + Math.abs(x[i + 3]));
+        }
+        return max;
+    }
+
+    private static void scale(double[] x, double f) {
+        for (int u = 0; u < 16; u++) {
+            x[u] *= f;
+        }
+    }
+
+    private static void multiply(double[] x, double[] y, double[] out) {
+        for (int i = 0; i < 16; i += 4) {
+            final double x0 = x[i], x1 = x[i + 1], x2 = x[i + 2], x3 = x[i + 3];
+            out[i] = x0 * y[0] + x1 * y[4] + x2 * y[8] + x3 * y[12];
+            out[i + 1] = x0 * y[1] + x1 * y[5] + x2 * y[9] + x3 * y[13];
+            out[i + 2] = x0 * y[2] + x1 * y[6] + x2 * y[10] + x3 * y[14];
+            out[i + 3] = x0 * y[3] + x1 * y[7] + x2 * y[11] + x3 * y[15];
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+package abyss.substitutionmodel;
+
+import java.util.Arrays;
+
+/**
+ * Matrix exponential exp(Qt) by scaling and squaring with Pade approximants (Higham 2005),
+ * for rate matrices whose eigen decomposition failed or is too ill-conditioned to trust.
+ * Needs no eigenvectors, so it stays accurate for defective and nearly defective Q.
+ * Works on flat row-major n x n arrays; all work space is allocated once.
+ * @author Jasmine Saghafifar
+ */
+public class MatrixExponential {
+
+    // largest 1-norms for which Pade approximants of degree 3, 5, 7, 9 and 13 are accurate to double precision
+    private static final double[] THETA = {1.495585217958292e-2, 2.539398330063230e-1,
+            9.504178996162932e-1, 2.097847961257068, 5.371920351148152};
+
+    private static final double[] PADE3 = {120, 60, 12, 1};
+    private static final double[] PADE5 = {30240, 15120, 3360, 420, 30, 1};
+    private static final double[] PADE7 = {17297280, 8648640, 1995840, 277200, 25200, 1512, 56, 1};
+    private static final double[] PADE9 = {17643225600.0, 8821612800.0, 2075673600, 302702400, 30270240,
+            2162160, 110880, 3960, 90, 1};
+    private static final double[] PADE13 = {64764752532480000.0, 32382376266240000.0, 7771770303897600.0,
+            1187353796428800.0, 129060195264000.0, 10559470521600.0, 670442572800.0, 33522128640.0,
+            1323241920, 40840800, 960960, 16380, 182, 1};
+
+    private final int nrOfStates;
+    private final int matrixSize;
+    private final double[] q;
+    private double normQ;
+
+    private final double[] a, a2, a4, a6, a8, u, v, tmp;
+
+    public MatrixExponential(int nrOfStates) {
+        this.nrOfStates = nrOfStates;
+        this.matrixSize = nrOfStates * nrOfStates;
+        q = new double[matrixSize];
+        a = new double[matrixSize];
+        a2 = new double[matrixSize];
+        a4 = new double[matrixSize];
+        a6 = new double[matrixSize];
+        a8 = new double[matrixSize];
+        u = new double[matrixSize];
+        v = new double[matrixSize];
+        tmp = new double[matrixSize];
+    }
+
+    /**
+     * Sets the rate matrix to exponentiate.
+     * @return false if Q has non-finite entries
+     */
+    public boolean setRateMatrix(double[][] Qm) {
+        final int n = nrOfStates;
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(Qm[i], 0, q, i * n, n);
+        }
+        normQ = norm1(q);
+        return Double.isFinite(normQ);
+    }
+
+    /**
+     * Sets the rate matrix to exponentiate from a flat row-major array.
+     * @return false if Q has non-finite entries
+     */
+    public boolean setRateMatrix(double[] Qm) {
+        System.arraycopy(Qm, 0, q, 0, matrixSize);
+        normQ = norm1(q);
+        return Double.isFinite(normQ);
+    }
+
+    /** copies the rate matrix of another instance, used for store/restore **/
+    public void assign(MatrixExponential other) {
+        System.arraycopy(other.q, 0, q, 0, matrixSize);
+        normQ = other.normQ;
+    }
+
+    /**
+     * Stores exp(Q distance) from matrix[offset].
+     * Not thread safe, since it works in shared buffers.
+     */
+    public void getTransitionProbabilities(double distance, double[] matrix, int offset) {
+        final double norm = normQ * Math.abs(distance);
+        for (int k = 0; k < matrixSize; k++) {
+            a[k] = q[k] * distance;
+        }
+        int squarings = 0;
+        if (norm <= THETA[0]) {
+            pade(PADE3, 3);
+        } else if (norm <= THETA[1]) {
+            pade(PADE5, 5);
+        } else if (norm <= THETA[2]) {
+            pade(PADE7, 7);
+        } else if (norm <= THETA[3]) {
+            pade(PADE9, 9);
+        } else {
+            if (norm > THETA[4]) {
+                squarings = Math.max(0, (int) Math.ceil(Math.log(norm / THETA[4]) / Math.log(2.0)));
+                final double scale = Math.scalb(1.0, -squarings);
+                for (int k = 0; k < matrixSize; k++) {
+                    a[k] *= scale;
+                }
+            }
+            pade13();
+        }
+        // r = (V - U)^-1 (V + U), left in tmp
+        for (int k = 0; k < matrixSize; k++) {
+            final double uk = u[k], vk = v[k];
+            u[k] = vk - uk;
+            tmp[k] = vk + uk;
+        }
+        solve(u, tmp);
+        for (int s = 0; s < squarings; s++) {
+            multiply(tmp, tmp, a);
+            System.arraycopy(a, 0, tmp, 0, matrixSize);
+        }
+        for (int k = 0; k < matrixSize; k++) {
+            matrix[offset + k] = Math.abs(tmp[k]);
+        }
+    }
+
+    /**
+     * Transition probabilities for a batch of distances; matrix c is stored from matrices[c * n * n].
+     */
+    public void getTransitionProbabilities(double[] distances, int count, double[] matrices) {
+        for (int c = 0; c < count; c++) {
+            getTransitionProbabilities(distances[c], matrices, c * matrixSize);
+        }
+    }
+
+    // U = A (b_m A^(m-1) + ... + b_1 I), V = b_(m-1) A^(m-1) + ... + b_0 I, using even powers of A
+    private void pade(double[] b, int m) {
+        multiply(a, a, a2);
+        if (m >= 5) multiply(a2, a2, a4);
+        if (m >= 7) multiply(a4, a2, a6);
+        if (m >= 9) multiply(a6, a2, a8);
+        final double[][] powers = {null, a2, a4, a6, a8};
+        identity(tmp, b[1]);
+        identity(v, b[0]);
+        for (int k = 1; 2 * k <= m; k++) {
+            final double[] p = powers[k];
+            final double bu = b[2 * k + 1], bv = b[2 * k];
+            for (int i = 0; i < matrixSize; i++) {
+                tmp[i] += bu * p[i];
+                v[i] += bv * p[i];
+            }
+        }
+        multiply(a, tmp, u);
+    }
+
+    private void pade13() {
+        final double[] b = PADE13;
+        multiply(a, a, a2);
+        multiply(a2, a2, a4);
+        multiply(a4, a2, a6);
+        // U = A (A6 (b13 A6 + b11 A4 + b9 A2) + b7 A6 + b5 A4 + b3 A2 + b1 I)
+        for (int i = 0; i < matrixSize; i++) {
+            a8[i] = b[13] * a6[i] + b[11] * a4[i] + b[9] * a2[i];
+        }
+        multiply(a6, a8, tmp);
+        for (int i = 0; i < matrixSize; i++) {
+            tmp[i] += b[7] * a6[i] + b[5] * a4[i] + b[3] * a2[i];
+        }
+        addIdentity(tmp, b[1]);
+        multiply(a, tmp, u);
+        // V = A6 (b12 A6 + b10 A4 + b8 A2) + b6 A6 + b4 A4 + b2 A2 + b0 I
+        for (int i = 0; i < matrixSize; i++) {
+            a8[i] = b[12] * a6[i] + b[10] * a4[i] + b[8] * a2[i];
+        }
+        multiply(a6, a8, v);
+        for (int i = 0; i < matrixSize; i++) {
+            v[i] += b[6] * a6[i] + b[4] * a4[i] + b[2] * a2[i];
+        }
+        addIdentity(v, b[0]);
+    }
+
+    // solves M X = B by LU decomposition with partial pivoting, overwriting M, X left in B
+    private void solve(double[] m, double[] x) {
+        final int n = nrOfStates;
+        for (int k = 0; k < n; k++) {
+            int p = k;
+            double max = Math.abs(m[k * n + k]);
+            for (int i = k + 1; i < n; i++) {
+                final double value = Math.abs(m[i * n + k]);
+                if (value > max) {
+                    max = value;
+                    p = i;
+                }
+            }
+            if (p != k) {
+                swapRows(m, k, p);
+                swapRows(x, k, p);
+            }
+            final double d = m[k * n + k];
+            for (int i = k + 1; i < n; i++) {
+                final double f = m[i * n + k] / d;
+                if (f == 0.0) continue;
+                for (int j = k + 1; j < n; j++) {
+                    m[i * n + j] -= f * m[k * n + j];
+                }
+                for (int j = 0; j < n; j++) {
+                    x[i * n + j] -= f * x[k * n + j];
+                }
+            }
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            final double d = m[i * n + i];
+            for (int j = 0; j < n; j++) {
+                double value = x[i * n + j];
+                for (int k = i + 1; k < n; k++) {
+                    value -= m[i * n + k] * x[k * n + j];
+                }
+                x[i * n + j] = value / d;
+            }
+        }
+    }
+
+    private void swapRows(double[] m, int i, int j) {
+        final int n = nrOfStates;
+        for (int k = 0; k < n; k++) {
+            final double t = m[i * n + k];
+            m[i * n + k] = m[j * n + k];
+            m[j * n + k] = t;
+        }
+    }
+
+    private void multiply(double[] x, double[] y, double[] out) {
+        final int n = nrOfStates;
+        Arrays.fill(out, 0.0);
+        for (int i = 0; i < n; i++) {
+            final int row = i * n;
+            for (int k = 0; k < n; k++) {
+                final double xik = x[row + k];
+                if (xik == 0.0) continue;
+                final int rowK = k * n;
+                for (int j = 0; j < n; j++) {
+                    out[row + j] += xik * y[rowK + j];
+                }
+            }
+        }
+    }
+
+    private void identity(double[] m, double value) {
+        Arrays.fill(m, 0.0);
+        addIdentity(m, value);
+    }
+
+    private void addIdentity(double[] m, double value) {
+        for (int i = 0; i < nrOfStates; i++) {
+            m[i * nrOfStates + i] += value;
+        }
+    }
+
+    // maximum absolute column sum
+    private double norm1(double[] m) {
+        final int n = nrOfStates;
+        double max = 0.0;
+        for (int j = 0; j < n; j++) {
+            double sum = 0.0;
+            for (int i = 0; i < n; i++) {
+                sum += Math.abs(m[i * n + j]);
+            }
+            max = Math.max(max, sum);
+        }
+        return max;
+    }
+
+}
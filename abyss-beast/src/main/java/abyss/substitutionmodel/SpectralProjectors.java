@@ -0,0 +1,142 @@
+package abyss.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+
+import java.util.Arrays;
+
+/**
+ * Spectral form of a (possibly complex) eigen decomposition, P(t) = sum_k w_k(t) M_k.
+ * For a real eigenvalue l, w(t) = exp(lt) and M = Evec[,k] Ievc[k,].
+ * For a conjugate pair a +/- bi in rows k, k+1 the pair contributes
+ * exp(at)cos(bt) M_k + exp(at)sin(bt) M_k+1, the 2x2 block exponential from ComplexColtEigenSystem.
+ * The M_k are formed once per decomposition, so every branch and rate category after that
+ * costs n^2 multiply-adds per eigenvalue over contiguous memory and allocates nothing.
+ * @author Jasmine Saghafifar
+ */
+public class SpectralProjectors {
+
+    private final int nrOfStates;
+    private final int matrixSize;
+    private final double[] projectors; // nrOfStates flat row-major n*n matrices
+    private final double[] evalReal;
+    private final double[] evalImag;
+    private EigenDecomposition source;
+
+    public SpectralProjectors(int nrOfStates) {
+        this.nrOfStates = nrOfStates;
+        this.matrixSize = nrOfStates * nrOfStates;
+        this.projectors = new double[nrOfStates * matrixSize];
+        this.evalReal = new double[nrOfStates];
+        this.evalImag = new double[nrOfStates];
+    }
+
+    /**
+     * @return true if these projectors were built from the given decomposition, or an identical copy of it,
+     * in which case the copy is adopted as the source
+     */
+    public boolean isBuiltFrom(EigenDecomposition decomposition) {
+        if (source == decomposition) return true;
+        if (source == null || decomposition == null) return false;
+        // stored decompositions are copies, so compare content (O(n^2), cheaper than rebuilding)
+        if (Arrays.equals(source.getEigenValues(), decomposition.getEigenValues()) &&
+                Arrays.equals(source.getEigenVectors(), decomposition.getEigenVectors()) &&
+                Arrays.equals(source.getInverseEigenVectors(), decomposition.getInverseEigenVectors())) {
+            source = decomposition;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forms the projector matrices of an eigen decomposition, laid out as by ComplexColtEigenSystem
+     * (real parts of eigenvalues first, imaginary parts, if any, after).
+     */
+    public void build(EigenDecomposition decomposition) {
+        final int n = nrOfStates;
+        double[] Evec = decomposition.getEigenVectors();
+        double[] Ievc = decomposition.getInverseEigenVectors();
+        double[] Eval = decomposition.getEigenValues();
+        boolean complex = Eval.length >= 2 * n;
+        for (int k = 0; k < n; k++) {
+            evalReal[k] = Eval[k];
+            evalImag[k] = complex ? Eval[n + k] : 0.0;
+        }
+
+        for (int k = 0; k < n; k++) {
+            int offset = k * matrixSize;
+            if (evalImag[k] == 0) {
+                for (int i = 0; i < n; i++) {
+                    double e = Evec[i * n + k];
+                    int row = offset + i * n;
+                    for (int j = 0; j < n; j++) {
+                        projectors[row + j] = e * Ievc[k * n + j];
+                    }
+                }
+            } else {
+                int k2 = k + 1;
+                int offset2 = k2 * matrixSize;
+                for (int i = 0; i < n; i++) {
+                    double e1 = Evec[i * n + k];
+                    double e2 = Evec[i * n + k2];
+                    int row = i * n;
+                    for (int j = 0; j < n; j++) {
+                        double i1 = Ievc[k * n + j];
+                        double i2 = Ievc[k2 * n + j];
+                        projectors[offset + row + j] = e1 * i1 + e2 * i2;
+                        projectors[offset2 + row + j] = e1 * i2 - e2 * i1;
+                    }
+                }
+                k++; // processed two conjugate rows
+            }
+        }
+        source = decomposition;
+    }
+
+    /**
+     * Transition probabilities for one distance (branch length x rate), stored from matrix[offset].
+     * Safe to call concurrently once built.
+     */
+    public void getTransitionProbabilities(double distance, double[] matrix, int offset) {
+        final int n = nrOfStates;
+        final int end = offset + matrixSize;
+        Arrays.fill(matrix, offset, end, 0.0);
+        for (int k = 0; k < n; k++) {
+            if (evalImag[k] == 0) {
+                accumulate(Math.exp(distance * evalReal[k]), k, matrix, offset);
+            } else {
+                double expat = Math.exp(distance * evalReal[k]);
+                double b = evalImag[k];
+                accumulate(expat * Math.cos(distance * b), k, matrix, offset);
+                accumulate(expat * Math.sin(distance * b), k + 1, matrix, offset);
+                k++;
+            }
+        }
+        for (int u = offset; u < end; u++) {
+            matrix[u] = Math.abs(matrix[u]);
+        }
+    }
+
+    /**
+     * Transition probabilities for a batch of distances, e.g. every rate category of a branch,
+     * or every branch of a tree. Matrix c is stored from matrices[c * n * n].
+     */
+    public void getTransitionProbabilities(double[] distances, int count, double[] matrices) {
+        for (int c = 0; c < count; c++) {
+            getTransitionProbabilities(distances[c], matrices, c * matrixSize);
+        }
+    }
+
+    private void accumulate(double weight, int k, double[] matrix, int offset) {
+        if (weight == 0.0) return;
+        final int base = k * matrixSize;
+        // contiguous multiply-add, left for the JIT to vectorise
+        for (int u = 0; u < matrixSize; u++) {
+            matrix[offset + u] += weight * projectors[base + u];
+        }
+    }
+
+    public int getStateCount() {
+        return nrOfStates;
+    }
+
+}
@@ -0,0 +1,260 @@
+package abyss.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+
+/**
+ * Eigen decomposition of a reversible rate matrix through its symmetric form S = Pi^1/2 Q Pi^-1/2.
+ * S is reduced to tridiagonal form by Householder reflections and diagonalised by the implicit QL
+ * algorithm (tred2/tql2 as in EISPACK and JAMA), giving real eigenvalues and orthogonal eigenvectors U.
+ * The eigenvectors of Q are then Pi^-1/2 U, with inverse U^T Pi^1/2, so no matrix inversion is needed.
+ * Eigenvalues are returned real only (length n), matching canReturnComplexDiagonalization() == false.
+ * Work space is allocated once; only the returned decomposition is new.
+ * @author Jasmine Saghafifar
+ */
+public class SymmetricEigenSystem {
+
+    private static final int MAX_ITERATIONS = 64;
+    private static final double EPSILON = Math.ulp(1.0);
+
+    private final int nrOfStates;
+    private final double[] v; // flat row-major, S on entry, U on exit
+    private final double[] d;
+    private final double[] e;
+    private final double[] sqrtFreqs;
+
+    public SymmetricEigenSystem(int nrOfStates) {
+        this.nrOfStates = nrOfStates;
+        v = new double[nrOfStates * nrOfStates];
+        d = new double[nrOfStates];
+        e = new double[nrOfStates];
+        sqrtFreqs = new double[nrOfStates];
+    }
+
+    /**
+     * @param Qm    flat row-major reversible rate matrix, pi_i q_ij = pi_j q_ji
+     * @param freqs its equilibrium frequencies
+     * @return the decomposition, or null if some frequency is not positive, so Pi^-1/2 does not exist
+     * @throws ArithmeticException if the QL iteration does not converge
+     */
+    public EigenDecomposition decompose(double[] Qm, double[] freqs) {
+        final int n = nrOfStates;
+        for (int i = 0; i < n; i++) {
+            if (!(freqs[i] > 0.0))
+                return null;
+            sqrtFreqs[i] = Math.sqrt(freqs[i]);
+        }
+        // symmetrise: average both triangles so rounding in Q cannot break symmetry
+        for (int i = 0; i < n; i++) {
+            v[i * n + i] = Qm[i * n + i];
+            for (int j = i + 1; j < n; j++) {
+                final double s = 0.5 * (Qm[i * n + j] * sqrtFreqs[i] / sqrtFreqs[j] +
+                        Qm[j * n + i] * sqrtFreqs[j] / sqrtFreqs[i]);
+                v[i * n + j] = s;
+                v[j * n + i] = s;
+            }
+        }
+
+        tridiagonalise();
+        diagonalise();
+
+        double[] Evec = new double[n * n];
+        double[] Ievc = new double[n * n];
+        double[] Eval = new double[n];
+        System.arraycopy(d, 0, Eval, 0, n);
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < n; k++) {
+                final double u = v[i * n + k];
+                Evec[i * n + k] = u / sqrtFreqs[i];
+                Ievc[k * n + i] = u * sqrtFreqs[i];
+            }
+        }
+        return new EigenDecomposition(Evec, Ievc, Eval);
+    }
+
+    // Householder reduction to tridiagonal form (tred2): diagonal in d, subdiagonal in e, transformation in v
+    private void tridiagonalise() {
+        final int n = nrOfStates;
+        for (int j = 0; j < n; j++) {
+            d[j] = v[(n - 1) * n + j];
+        }
+
+        for (int i = n - 1; i > 0; i--) {
+            double scale = 0.0;
+            double h = 0.0;
+            for (int k = 0; k < i; k++) {
+                scale += Math.abs(d[k]);
+            }
+            if (scale == 0.0) {
+                e[i] = d[i - 1];
+                for (int j = 0; j < i; j++) {
+                    d[j] = v[(i - 1) * n + j];
+                    v[i * n + j] = 0.0;
+                    v[j * n + i] = 0.0;
+                }
+            } else {
+                // generate Householder vector
+                for (int k = 0; k < i; k++) {
+                    d[k] /= scale;
+                    h += d[k] * d[k];
+                }
+                double f = d[i - 1];
+                double g = Math.sqrt(h);
+                if (f > 0) {
+                    g = -g;
+                }
+                e[i] = scale * g;
+                h = h - f * g;
+                d[i - 1] = f - g;
+                for (int j = 0; j < i; j++) {
+                    e[j] = 0.0;
+                }
+
+                // apply similarity transformation to remaining columns
+                for (int j = 0; j < i; j++) {
+                    f = d[j];
+                    v[j * n + i] = f;
+                    g = e[j] + v[j * n + j] * f;
+                    for (int k = j + 1; k <= i - 1; k++) {
+                        g += v[k * n + j] * d[k];
+                        e[k] += v[k * n + j] * f;
+                    }
+                    e[j] = g;
+                }
+                f = 0.0;
+                for (int j = 0; j < i; j++) {
+                    e[j] /= h;
+                    f += e[j] * d[j];
+                }
+                final double hh = f / (h + h);
+                for (int j = 0; j < i; j++) {
+                    e[j] -= hh * d[j];
+                }
+                for (int j = 0; j < i; j++) {
+                    f = d[j];
+                    g = e[j];
+                    for (int k = j; k <= i - 1; k++) {
+                        v[k * n + j] -= (f * e[k] + g * d[k]);
+                    }
+                    d[j] = v[(i - 1) * n + j];
+                    v[i * n + j] = 0.0;
+                }
+            }
+            d[i] = h;
+        }
+
+        // accumulate transformations
+        for (int i = 0; i < n - 1; i++) {
+            v[(n - 1) * n + i] = v[i * n + i];
+            v[i * n + i] = 1.0;
+            final double h = d[i + 1];
+            if (h != 0.0) {
+                for (int k = 0; k <= i; k++) {
+                    d[k] = v[k * n + i + 1] / h;
+                }
+                for (int j = 0; j <= i; j++) {
+                    double g = 0.0;
+                    for (int k = 0; k <= i; k++) {
+                        g += v[k * n + i + 1] * v[k * n + j];
+                    }
+                    for (int k = 0; k <= i; k++) {
+                        v[k * n + j] -= g * d[k];
+                    }
+                }
+            }
+            for (int k = 0; k <= i; k++) {
+                v[k * n + i + 1] = 0.0;
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            d[j] = v[(n - 1) * n + j];
+            v[(n - 1) * n + j] = 0.0;
+        }
+        v[(n - 1) * n + n - 1] = 1.0;
+        e[0] = 0.0;
+    }
+
+    // implicit QL iterations on the tridiagonal matrix (tql2), eigenvalues left in d, eigenvectors in v
+    private void diagonalise() {
+        final int n = nrOfStates;
+        for (int i = 1; i < n; i++) {
+            e[i - 1] = e[i];
+        }
+        e[n - 1] = 0.0;
+
+        double f = 0.0;
+        double tst1 = 0.0;
+        for (int l = 0; l < n; l++) {
+            // find small subdiagonal element
+            tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+            int m = l;
+            while (m < n - 1) {
+                if (Math.abs(e[m]) <= EPSILON * tst1) {
+                    break;
+                }
+                m++;
+            }
+
+            // if m == l, d[l] is an eigenvalue, otherwise iterate
+            if (m > l) {
+                int iteration = 0;
+                do {
+                    if (++iteration > MAX_ITERATIONS)
+                        throw new ArithmeticException("Symmetric eigen decomposition did not converge");
+
+                    // compute implicit shift
+                    double g = d[l];
+                    double p = (d[l + 1] - g) / (2.0 * e[l]);
+                    double r = Math.hypot(p, 1.0);
+                    if (p < 0) {
+                        r = -r;
+                    }
+                    d[l] = e[l] / (p + r);
+                    d[l + 1] = e[l] * (p + r);
+                    final double dl1 = d[l + 1];
+                    double h = g - d[l];
+                    for (int i = l + 2; i < n; i++) {
+                        d[i] -= h;
+                    }
+                    f += h;
+
+                    // implicit QL transformation
+                    p = d[m];
+                    double c = 1.0;
+                    double c2 = c;
+                    double c3 = c;
+                    final double el1 = e[l + 1];
+                    double s = 0.0;
+                    double s2 = 0.0;
+                    for (int i = m - 1; i >= l; i--) {
+                        c3 = c2;
+                        c2 = c;
+                        s2 = s;
+                        g = c * e[i];
+                        h = c * p;
+                        r = Math.hypot(p, e[i]);
+                        e[i + 1] = s * r;
+                        s = e[i] / r;
+                        c = p / r;
+                        p = c * d[i] - s * g;
+                        d[i + 1] = h + s * (c * g + s * d[i]);
+
+                        // accumulate transformation
+                        for (int k = 0; k < n; k++) {
+                            h = v[k * n + i + 1];
+                            v[k * n + i + 1] = s * v[k * n + i] + c * h;
+                            v[k * n + i] = c * v[k * n + i] - s * h;
+                        }
+                    }
+                    p = -s * s2 * c3 * el1 * e[l] / dl1;
+                    e[l] = s * p;
+                    d[l] = c * p;
+
+                    // check for convergence
+                } while (Math.abs(e[l]) > EPSILON * tst1);
+            }
+            d[l] = d[l] + f;
+            e[l] = 0.0;
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+package abyss.distributions;
+
+import abyss.inference.CachedTreeLikelihood;
+import beast.base.core.Input;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.spec.domain.NonNegativeReal;
+import beast.base.spec.inference.parameter.RealVectorParam;
+import org.junit.jupiter.api.Test;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * MixedTreeLikelihood driven through a State as MCMC does, with moves of the weights alone, of single
+ * components, and of both, each accepted or rejected: after every evaluation and every rejection the log likelihood
+ * must be that of the mixture computed from scratch, and a move of the weights alone must not evaluate any component.
+ * The posterior probabilities of the site models per pattern, as read by the loggers, are checked along the way.
+ * @author Jasmine Saghafifar
+ */
+class MixedTreeLikelihoodTest {
+
+    // repeated columns, so patterns have weights other than 1
+    private static final String[] SEQUENCES = {"ACGTACGTAAGGACGT", "ACGTTCGAAAGCACGT", "AGGTACCTAAGCAGGT"};
+    private static final int NR_OF_COMPONENTS = 3;
+
+    private Alignment data;
+    private List<RealVectorParam<NonNegativeReal>> parameters;
+    private List<ComponentLikelihood> components;
+    private RealVectorParam<NonNegativeReal> siteModelWeights;
+    private RealVectorParam<NonNegativeReal> metaWeights;
+
+    @Test
+    void testSiteMixture() {
+        run("mix", 1, 111);
+    }
+
+    @Test
+    void testSiteMixtureAndModelAveraging() {
+        run("both", 1, 112);
+    }
+
+    @Test
+    void testConcurrentComponents() {
+        run("mix", NR_OF_COMPONENTS, 113);
+        run("both", NR_OF_COMPONENTS, 114);
+    }
+
+    private void run(String mode, int threads, long seed) {
+        Random random = new Random(seed);
+        List<Sequence> sequences = new ArrayList<>();
+        for (int i = 0; i < SEQUENCES.length; i++) {
+            sequences.add(new Sequence("taxon" + i, SEQUENCES[i]));
+        }
+        data = new Alignment(sequences, "nucleotide");
+
+        parameters = new ArrayList<>();
+        components = new ArrayList<>();
+        for (int i = 0; i < NR_OF_COMPONENTS; i++) {
+            RealVectorParam<NonNegativeReal> parameter = new RealVectorParam<>(new double[]{0.5 + i}, NonNegativeReal.INSTANCE);
+            parameters.add(parameter);
+            components.add(new ComponentLikelihood(parameter, data));
+        }
+        siteModelWeights = new RealVectorParam<>(new double[]{0.2, 0.3, 0.5}, NonNegativeReal.INSTANCE);
+        List<StateNode> stateNodes = new ArrayList<>(parameters);
+        stateNodes.add(siteModelWeights);
+
+        MixedTreeLikelihood likelihood = new MixedTreeLikelihood();
+        if (mode.equals("both")) {
+            metaWeights = new RealVectorParam<>(new double[]{0.1, 0.2, 0.3, 0.4}, NonNegativeReal.INSTANCE);
+            stateNodes.add(metaWeights);
+            likelihood.initByName("likelihood", components, "mode", mode, "siteModelWeights", siteModelWeights,
+                    "metaWeights", metaWeights, "threads", threads);
+        } else {
+            metaWeights = null;
+            likelihood.initByName("likelihood", components, "mode", mode, "siteModelWeights", siteModelWeights,
+                    "threads", threads);
+        }
+
+        State state = new State();
+        state.initByName("stateNode", stateNodes);
+        state.initialise();
+        state.setPosterior(likelihood);
+        assertEquals(expectedLogP(mode), likelihood.calculateLogP(), 1e-10, "initial state");
+        state.setEverythingDirty(false);
+
+        for (int step = 0; step < 2000; step++) {
+            // 0: site model weights, 1: meta weights (site model weights for mix), 2: one component,
+            // 3: a component and the site model weights
+            final int move = random.nextInt(4);
+            final boolean accept = random.nextBoolean();
+            String label = mode + ", " + threads + " threads, step " + step + ", move " + move;
+            int[] evaluations = evaluations();
+
+            // as MCMC.propagateState
+            state.store(step);
+            int component = -1;
+            if (move == 0 || move == 3) {
+                moveWeights(siteModelWeights, random);
+            }
+            if (move == 1) {
+                moveWeights(metaWeights != null ? metaWeights : siteModelWeights, random);
+            }
+            if (move == 2 || move == 3) {
+                component = random.nextInt(NR_OF_COMPONENTS);
+                RealVectorParam<NonNegativeReal> parameter = parameters.get(component);
+                parameter.set(0, parameter.get(0) * Math.exp(0.3 * random.nextGaussian()));
+            }
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            assertEquals(expectedLogP(mode), likelihood.calculateLogP(), 1e-10, label + ", proposed");
+
+            // only the component that moved is evaluated
+            int[] evaluated = evaluations();
+            for (int i = 0; i < NR_OF_COMPONENTS; i++) {
+                assertEquals(evaluations[i] + (i == component ? 1 : 0), evaluated[i], label + ", evaluations of " + i);
+            }
+
+            if (accept) {
+                state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+            label += accept ? ", accepted" : ", rejected";
+            assertEquals(expectedLogP(mode), likelihood.getCurrentLogP(), 1e-10, label);
+            assertEquals(expectedSiteMixtureLogP(), likelihood.getSiteMixtureLogLikelihood(), 1e-10, label);
+            if (step % 10 == 0)
+                assertResponsibilities(likelihood, label);
+        }
+    }
+
+    // the view and the per pattern lookups give the posterior probability of each site model per pattern
+    private void assertResponsibilities(MixedTreeLikelihood likelihood, String label) {
+        DoubleBuffer responsibilities = likelihood.getResponsibilities();
+        double[] p = new double[NR_OF_COMPONENTS];
+        double[] out = new double[NR_OF_COMPONENTS];
+        for (int j = 0; j < data.getPatternCount(); j++) {
+            for (int i = 0; i < NR_OF_COMPONENTS; i++) {
+                p[i] = patternLogLikelihood(parameters.get(i).get(0), j) + Math.log(siteModelWeights.get(i));
+            }
+            final double logSum = logSumExp(p);
+            likelihood.getResponsibilities(j, out);
+            for (int i = 0; i < NR_OF_COMPONENTS; i++) {
+                final double expected = Math.exp(p[i] - logSum);
+                assertEquals(expected, responsibilities.get(j * NR_OF_COMPONENTS + i), 1e-12, label + ", pattern " + j);
+                assertEquals(expected, likelihood.getResponsibility(j, i), 1e-12, label + ", pattern " + j);
+                assertEquals(expected, out[i], 1e-12, label + ", pattern " + j);
+            }
+        }
+    }
+
+    // moves weight from one element to another, so they still sum to 1
+    private static void moveWeights(RealVectorParam<NonNegativeReal> weights, Random random) {
+        final int from = random.nextInt(weights.size());
+        final int to = (from + 1 + random.nextInt(weights.size() - 1)) % weights.size();
+        final double delta = random.nextDouble() * weights.get(from);
+        weights.set(from, weights.get(from) - delta);
+        weights.set(to, weights.get(to) + delta);
+    }
+
+    private int[] evaluations() {
+        int[] evaluations = new int[NR_OF_COMPONENTS];
+        for (int i = 0; i < NR_OF_COMPONENTS; i++) {
+            evaluations[i] = components.get(i).evaluations;
+        }
+        return evaluations;
+    }
+
+    private double expectedLogP(String mode) {
+        final double siteMixtureLogP = expectedSiteMixtureLogP();
+        if (mode.equals("mix"))
+            return siteMixtureLogP;
+
+        double[] p = new double[NR_OF_COMPONENTS + 1];
+        for (int i = 0; i < NR_OF_COMPONENTS; i++) {
+            for (int j = 0; j < data.getPatternCount(); j++) {
+                p[i] += patternLogLikelihood(parameters.get(i).get(0), j) * data.getPatternWeight(j);
+            }
+            p[i] += Math.log(metaWeights.get(i));
+        }
+        p[NR_OF_COMPONENTS] = siteMixtureLogP + Math.log(metaWeights.get(NR_OF_COMPONENTS));
+        return logSumExp(p);
+    }
+
+    private double expectedSiteMixtureLogP() {
+        double logP = 0;
+        double[] p = new double[NR_OF_COMPONENTS];
+        for (int j = 0; j < data.getPatternCount(); j++) {
+            for (int i = 0; i < NR_OF_COMPONENTS; i++) {
+                p[i] = patternLogLikelihood(parameters.get(i).get(0), j) + Math.log(siteModelWeights.get(i));
+            }
+            logP += logSumExp(p) * data.getPatternWeight(j);
+        }
+        return logP;
+    }
+
+    private static double logSumExp(double[] p) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double v : p) {
+            max = Math.max(max, v);
+        }
+        double sum = 0;
+        for (double v : p) {
+            sum += Math.exp(v - max);
+        }
+        return max + Math.log(sum);
+    }
+
+    static double patternLogLikelihood(double x, int pattern) {
+        final double d = x - 0.4 * (pattern + 1);
+        return -d * d - 2.0;
+    }
+
+    /**
+     * Component likelihood without a tree, its pattern log likelihoods a function of one parameter,
+     * double buffered and restored by CachedTreeLikelihood. Public, so BEAST can reach its inputs.
+     */
+    public static class ComponentLikelihood extends CachedTreeLikelihood {
+        final public Input<RealVectorParam<NonNegativeReal>> parameterInput = new Input<>("parameter",
+                "value the pattern log likelihoods depend on");
+
+        private final Alignment data;
+        int evaluations = 0;
+
+        ComponentLikelihood(RealVectorParam<NonNegativeReal> parameter, Alignment data) {
+            this.data = data;
+            setInputValue("parameter", parameter);
+            setInputValue("data", data);
+            patternLogLikelihoodBuffers = new double[2][data.getPatternCount()];
+            patternLogLikelihoods = patternLogLikelihoodBuffers[currentBuffer];
+            m_branchLengths = new double[0];
+            storedBranchLengths = new double[0];
+        }
+
+        @Override
+        public void initAndValidate() {
+        }
+
+        @Override
+        public double calculateLogP() {
+            evaluations++;
+            if (currentBuffer == storedBuffer) {
+                currentBuffer = 1 - storedBuffer;
+                patternLogLikelihoods = patternLogLikelihoodBuffers[currentBuffer];
+            }
+            final double x = parameterInput.get().get(0);
+            logP = 0;
+            for (int j = 0; j < patternLogLikelihoods.length; j++) {
+                patternLogLikelihoods[j] = patternLogLikelihood(x, j);
+                logP += patternLogLikelihoods[j] * data.getPatternWeight(j);
+            }
+            return logP;
+        }
+
+        @Override
+        protected boolean requiresRecalculation() {
+            return parameterInput.get().somethingIsDirty();
+        }
+    }
+
+}
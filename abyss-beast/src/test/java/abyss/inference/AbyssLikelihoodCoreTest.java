@@ -0,0 +1,184 @@
+package abyss.inference;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import beast.base.evolution.likelihood.LikelihoodCore;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The nucleotide and amino acid cores against BeerLikelihoodCore, given the same calls: random non-symmetric
+ * transition probabilities in several categories, tips with states, gaps and ambiguous codes or with partials,
+ * partials small enough to be scaled, and evaluations that are stored and restored. Partials, scaling factors,
+ * root partials and pattern log likelihoods must be bitwise identical.
+ * @author Jasmine Saghafifar
+ */
+class AbyssLikelihoodCoreTest {
+
+    private static final int PATTERN_COUNT = 50;
+    private static final int CATEGORY_COUNT = 3;
+    private static final int TIP_COUNT = 7;
+    private static final int NODE_COUNT = 2 * TIP_COUNT - 1;
+    // children of internal nodes TIP_COUNT, TIP_COUNT + 1, ..., the last one the root: both children with states,
+    // states and partials, two tips with partials, an internal node and states, and internal nodes only
+    private static final int[][] CHILDREN = {{0, 1}, {2, 3}, {4, 5}, {7, 6}, {8, 9}, {10, 11}};
+    // tips with partials rather than states
+    private static final int[] PARTIALS_TIPS = {3, 4, 5};
+
+    @Test
+    void testNucleotides() {
+        compare(4, 131);
+    }
+
+    @Test
+    void testAminoAcids() {
+        compare(20, 132);
+    }
+
+    private void compare(int stateCount, long seed) {
+        assertTrue(AbyssLikelihoodCore.supports(stateCount));
+        Random random = new Random(seed);
+        LikelihoodCore expected = new BeerLikelihoodCore(stateCount);
+        LikelihoodCore actual = AbyssLikelihoodCore.create(stateCount);
+        for (LikelihoodCore core : new LikelihoodCore[]{expected, actual}) {
+            core.initialize(NODE_COUNT, PATTERN_COUNT, CATEGORY_COUNT, true, false);
+            core.setUseScaling(1.01);
+            for (int i = TIP_COUNT; i < NODE_COUNT; i++) {
+                core.createNodePartials(i);
+            }
+        }
+
+        // states, with codes for gaps and ambiguities (at or above the state count) now and then
+        for (int i = 0; i < TIP_COUNT; i++) {
+            int[] states = new int[PATTERN_COUNT];
+            for (int k = 0; k < PATTERN_COUNT; k++) {
+                states[k] = random.nextInt(5) == 0 ? stateCount + random.nextInt(3) : random.nextInt(stateCount);
+            }
+            if (!isPartialsTip(i)) {
+                expected.setNodeStates(i, states);
+                actual.setNodeStates(i, states);
+            }
+        }
+        // partials from 1 down to 1e-70, so that deeper nodes need scaling for some patterns
+        for (int i : PARTIALS_TIPS) {
+            double[] partials = new double[PATTERN_COUNT * stateCount];
+            for (int k = 0; k < PATTERN_COUNT; k++) {
+                final double magnitude = Math.pow(10, -random.nextInt(71));
+                for (int j = 0; j < stateCount; j++) {
+                    partials[k * stateCount + j] = random.nextDouble() * magnitude;
+                }
+            }
+            expected.setNodePartials(i, partials);
+            actual.setNodePartials(i, partials);
+        }
+
+        double[] proportions = normalised(random, CATEGORY_COUNT);
+        double[] frequencies = normalised(random, stateCount);
+        boolean[] update = new boolean[NODE_COUNT - 1];
+        Arrays.fill(update, true);
+        evaluate(expected, actual, update, proportions, frequencies, random, stateCount, "initial");
+
+        for (int step = 0; step < 50; step++) {
+            expected.store();
+            actual.store();
+            // new matrices for some branches, and partials on the way to the root
+            for (int i = 0; i < NODE_COUNT - 1; i++) {
+                update[i] = random.nextInt(3) == 0;
+            }
+            evaluate(expected, actual, update, proportions, frequencies, random, stateCount, "step " + step);
+            if (random.nextBoolean()) {
+                expected.restore();
+                actual.restore();
+                assertSame(expected, actual, stateCount, frequencies, proportions, "step " + step + ", restored");
+            }
+        }
+    }
+
+    private static void evaluate(LikelihoodCore expected, LikelihoodCore actual, boolean[] update,
+                                 double[] proportions, double[] frequencies, Random random, int stateCount, String label) {
+        double[] matrix = new double[stateCount * stateCount];
+        for (int i = 0; i < NODE_COUNT - 1; i++) {
+            if (!update[i])
+                continue;
+            expected.setNodeMatrixForUpdate(i);
+            actual.setNodeMatrixForUpdate(i);
+            for (int c = 0; c < CATEGORY_COUNT; c++) {
+                // rows are distributions, columns are not
+                for (int j = 0; j < stateCount; j++) {
+                    System.arraycopy(normalised(random, stateCount), 0, matrix, j * stateCount, stateCount);
+                }
+                expected.setNodeMatrix(i, c, matrix);
+                actual.setNodeMatrix(i, c, matrix);
+            }
+        }
+        for (int j = 0; j < CHILDREN.length; j++) {
+            final int node = TIP_COUNT + j;
+            final int child1 = CHILDREN[j][0];
+            final int child2 = CHILDREN[j][1];
+            if (update[child1] || update[child2]) {
+                if (node < NODE_COUNT - 1)
+                    update[node] = true;
+                expected.setNodePartialsForUpdate(node);
+                actual.setNodePartialsForUpdate(node);
+                expected.calculatePartials(child1, child2, node);
+                actual.calculatePartials(child1, child2, node);
+            }
+        }
+        assertSame(expected, actual, stateCount, frequencies, proportions, label);
+    }
+
+    private static void assertSame(LikelihoodCore expected, LikelihoodCore actual, int stateCount,
+                                   double[] frequencies, double[] proportions, String label) {
+        final int partialsSize = PATTERN_COUNT * stateCount * CATEGORY_COUNT;
+        double[] expectedPartials = new double[partialsSize];
+        double[] actualPartials = new double[partialsSize];
+        for (int i = TIP_COUNT; i < NODE_COUNT; i++) {
+            expected.getNodePartials(i, expectedPartials);
+            actual.getNodePartials(i, actualPartials);
+            assertArrayEquals(expectedPartials, actualPartials, label + ": partials of node " + i);
+        }
+        for (int k = 0; k < PATTERN_COUNT; k++) {
+            assertEquals(expected.getLogScalingFactor(k), actual.getLogScalingFactor(k), 0.0,
+                    label + ": log scaling factor of pattern " + k);
+        }
+
+        double[] expectedRootPartials = new double[PATTERN_COUNT * stateCount];
+        double[] actualRootPartials = new double[PATTERN_COUNT * stateCount];
+        expected.integratePartials(NODE_COUNT - 1, proportions, expectedRootPartials);
+        actual.integratePartials(NODE_COUNT - 1, proportions, actualRootPartials);
+        assertArrayEquals(expectedRootPartials, actualRootPartials, label + ": root partials");
+
+        double[] expectedLogLikelihoods = new double[PATTERN_COUNT];
+        double[] actualLogLikelihoods = new double[PATTERN_COUNT];
+        expected.calculateLogLikelihoods(expectedRootPartials, frequencies, expectedLogLikelihoods);
+        actual.calculateLogLikelihoods(actualRootPartials, frequencies, actualLogLikelihoods);
+        assertArrayEquals(expectedLogLikelihoods, actualLogLikelihoods, label + ": pattern log likelihoods");
+    }
+
+    private static boolean isPartialsTip(int node) {
+        for (int i : PARTIALS_TIPS) {
+            if (i == node)
+                return true;
+        }
+        return false;
+    }
+
+    private static double[] normalised(Random random, int size) {
+        double[] values = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextDouble();
+            sum += values[i];
+        }
+        for (int i = 0; i < size; i++) {
+            values[i] /= sum;
+        }
+        return values;
+    }
+
+}
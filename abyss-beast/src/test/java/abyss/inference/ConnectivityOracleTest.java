@@ -0,0 +1,104 @@
+package abyss.inference;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static abyss.inference.IndicatorGraphTest.isStronglyConnected;
+import static abyss.inference.IndicatorGraphTest.randomIndicators;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ConnectivityOracle along random single flip proposals, accepted or rejected,
+ * against a depth first search of the whole indicator vector.
+ * @author Jasmine Saghafifar
+ */
+class ConnectivityOracleTest {
+
+    private static final int DIM = 20;
+
+    @Test
+    void testMatchesDepthFirstSearch() {
+        Random random = new Random(61);
+        for (boolean reversible : new boolean[]{true, false}) {
+            ConnectivityOracle oracle = new ConnectivityOracle(DIM, reversible);
+            // about as many rates as it takes to connect the graph, so flips often change connectivity
+            final double density = reversible ? 0.2 : 0.18;
+            boolean[] indicators = randomIndicators(random, oracle.getIndicatorCount(), density);
+            for (int k = 0; k < indicators.length; k++) {
+                oracle.setIndicator(k, indicators[k]);
+            }
+            assertEquals(isStronglyConnected(indicators, DIM, reversible), oracle.isStronglyConnected());
+            oracle.store();
+
+            int connected = 0;
+            boolean[] stored = indicators.clone();
+            for (int repeat = 0; repeat < 2000; repeat++) {
+                String label = (reversible ? "reversible" : "nonreversible") + ", proposal " + repeat;
+
+                // a proposal flips one to a few indicators, with connectivity queried after some of them
+                final int flips = 1 + random.nextInt(3);
+                for (int f = 0; f < flips; f++) {
+                    // rates are added less often than removed, so the density stays where it started
+                    int k;
+                    do {
+                        k = random.nextInt(indicators.length);
+                    } while (!indicators[k] && random.nextDouble() >= density / (1 - density));
+                    indicators[k] = !indicators[k];
+                    oracle.setIndicator(k, indicators[k]);
+                    if (random.nextBoolean())
+                        assertEquals(isStronglyConnected(indicators, DIM, reversible), oracle.isStronglyConnected(), label);
+                }
+                final boolean expected = isStronglyConnected(indicators, DIM, reversible);
+                assertEquals(expected, oracle.isStronglyConnected(), label);
+                if (expected) connected++;
+
+                if (random.nextBoolean()) {
+                    oracle.store();
+                    stored = indicators.clone();
+                } else {
+                    oracle.restore();
+                    indicators = stored.clone();
+                    for (int k = 0; k < indicators.length; k++) {
+                        assertEquals(indicators[k], oracle.getIndicator(k), label);
+                    }
+                    assertEquals(isStronglyConnected(indicators, DIM, reversible), oracle.isStronglyConnected(), label);
+                }
+            }
+            // both outcomes were exercised
+            assertTrue(connected > 100 && connected < 1900, connected + " of 2000 states connected");
+        }
+    }
+
+    @Test
+    void testStronglyConnectedAfterFlip() {
+        Random random = new Random(62);
+        for (boolean reversible : new boolean[]{true, false}) {
+            ConnectivityOracle oracle = new ConnectivityOracle(DIM, reversible);
+            boolean[] indicators = randomIndicators(random, oracle.getIndicatorCount(), reversible ? 0.15 : 0.12);
+            for (int repeat = 0; repeat < 50; repeat++) {
+                for (int k = 0; k < indicators.length; k++) {
+                    oracle.setIndicator(k, indicators[k]);
+                }
+                for (int k = 0; k < indicators.length; k++) {
+                    indicators[k] = !indicators[k];
+                    assertEquals(isStronglyConnected(indicators, DIM, reversible), oracle.isStronglyConnectedAfterFlip(k),
+                            (reversible ? "reversible" : "nonreversible") + ", indicator " + k);
+                    indicators[k] = !indicators[k];
+                }
+                // the query leaves the graph as it was
+                boolean[] graphIndicators = new boolean[indicators.length];
+                for (int k = 0; k < indicators.length; k++) {
+                    graphIndicators[k] = oracle.getGraph().hasEdge(oracle.getGraph().getSource(k), oracle.getGraph().getTarget(k));
+                }
+                assertArrayEquals(indicators, graphIndicators);
+
+                final int k = random.nextInt(indicators.length);
+                indicators[k] = !indicators[k];
+            }
+        }
+    }
+
+}
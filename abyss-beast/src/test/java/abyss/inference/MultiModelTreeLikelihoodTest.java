@@ -0,0 +1,253 @@
+package abyss.inference;
+
+import abyss.substitutionmodel.ABySSubstitutionModel;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.spec.domain.PositiveReal;
+import beast.base.spec.evolution.sitemodel.SiteModel;
+import beast.base.spec.inference.parameter.BoolVectorParam;
+import beast.base.spec.inference.parameter.RealScalarParam;
+import beast.base.spec.inference.parameter.RealVectorParam;
+import beast.base.spec.inference.parameter.SimplexParam;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * MultiModelTreeLikelihood on the java likelihood core against one CachedTreeLikelihood per component on BEAST's
+ * core, sharing tree and site models, driven through a State as MCMC does: moves of node heights, of the rates or
+ * gamma shape of a single component, and of a rate to infinity, so that the component has no transition
+ * probabilities, each accepted or rejected. After every evaluation and every rejection the log likelihood and
+ * pattern log likelihoods of each component must be those of its own tree likelihood.
+ * @author Jasmine Saghafifar
+ */
+class MultiModelTreeLikelihoodTest {
+
+    // gaps and unknown characters at the tips, and repeated columns
+    private static final String CHARACTERS = "AAACCCGGGTTT-N";
+    private static final int NR_OF_TAXA = 6;
+    private static final int NR_OF_SITES = 80;
+    private static final String NEWICK = "(((taxon0:0.1,taxon1:0.1):0.15,taxon2:0.25):0.2," +
+            "((taxon3:0.05,taxon4:0.05):0.3,taxon5:0.35):0.1)";
+    private static final int CATEGORY_COUNT = 4;
+    // reversible, nonreversible, reversible
+    private static final double[][] FREQS = {{0.1, 0.2, 0.3, 0.4}, null, {0.3, 0.3, 0.2, 0.2}};
+    private static final int NR_OF_COMPONENTS = FREQS.length;
+    // component whose rates are moved to infinity
+    private static final int BROKEN = 0;
+
+    private static final int TREE = 0;
+    private static final int RATE = 1;
+    private static final int SHAPE = 2;
+    private static final int BREAK = 3;
+
+    private final Random random = new Random(121);
+    private Tree tree;
+    private List<RealVectorParam<PositiveReal>> rates;
+    private List<RealScalarParam<PositiveReal>> shapes;
+    private MultiModelTreeLikelihood likelihood;
+    private List<CachedTreeLikelihood> references;
+    private List<GenericTreeLikelihood> likelihoods;
+
+    @Test
+    void testComponentsAgainstSeparateLikelihoods() {
+        // no BEAGLE for either likelihood
+        final String javaOnly = System.setProperty("java.only", "true");
+        try {
+            run();
+        } finally {
+            if (javaOnly == null) {
+                System.clearProperty("java.only");
+            } else {
+                System.setProperty("java.only", javaOnly);
+            }
+        }
+    }
+
+    private void run() {
+        // every fourth column or so repeats an earlier one
+        char[][] columns = new char[NR_OF_SITES][NR_OF_TAXA];
+        for (int j = 0; j < NR_OF_SITES; j++) {
+            if (j > 0 && random.nextInt(4) == 0) {
+                columns[j] = columns[random.nextInt(j)];
+            } else {
+                for (int i = 0; i < NR_OF_TAXA; i++) {
+                    columns[j][i] = CHARACTERS.charAt(random.nextInt(CHARACTERS.length()));
+                }
+            }
+        }
+        List<Sequence> sequences = new ArrayList<>();
+        for (int i = 0; i < NR_OF_TAXA; i++) {
+            StringBuilder sequence = new StringBuilder();
+            for (int j = 0; j < NR_OF_SITES; j++) {
+                sequence.append(columns[j][i]);
+            }
+            sequences.add(new Sequence("taxon" + i, sequence.toString()));
+        }
+        Alignment data = new Alignment(sequences, "nucleotide");
+        tree = new TreeParser(data, NEWICK);
+
+        rates = new ArrayList<>();
+        shapes = new ArrayList<>();
+        List<SiteModel> siteModels = new ArrayList<>();
+        references = new ArrayList<>();
+        List<StateNode> stateNodes = new ArrayList<>();
+        stateNodes.add(tree);
+        for (int k = 0; k < NR_OF_COMPONENTS; k++) {
+            RealVectorParam<PositiveReal> r = new RealVectorParam<>(randomRates(FREQS[k] != null ? 6 : 12),
+                    PositiveReal.INSTANCE);
+            RealScalarParam<PositiveReal> shape = new RealScalarParam<>(0.3 + k, PositiveReal.INSTANCE);
+            rates.add(r);
+            shapes.add(shape);
+            stateNodes.add(r);
+            stateNodes.add(shape);
+
+            SiteModel siteModel = new SiteModel();
+            siteModel.initByName("substModel", model(r, FREQS[k]), "gammaCategoryCount", CATEGORY_COUNT,
+                    "shape", shape);
+            siteModels.add(siteModel);
+
+            CachedTreeLikelihood reference = new CachedTreeLikelihood();
+            reference.initByName("data", data, "tree", tree, "siteModel", siteModel, "abyssCore", false);
+            references.add(reference);
+        }
+        likelihood = new MultiModelTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "componentSiteModel", siteModels);
+
+        likelihoods = new ArrayList<>(references);
+        likelihoods.add(likelihood);
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", likelihoods);
+
+        State state = new State();
+        state.initByName("stateNode", stateNodes);
+        state.initialise();
+        state.setPosterior(posterior);
+        for (GenericTreeLikelihood l : likelihoods) {
+            l.calculateLogP();
+        }
+        assertMatchesReferences("initial state");
+        state.setEverythingDirty(false);
+
+        for (int step = 0; step < 1000; step++) {
+            // break the component now and then, and mend it if broken
+            final int move = random.nextInt(10) == 0 || isBroken() ? BREAK : random.nextInt(3);
+            final boolean accept = random.nextBoolean();
+            String label = "step " + step + ", move " + move;
+
+            // as MCMC.propagateState
+            state.store(step);
+            switch (move) {
+                case TREE -> moveHeight();
+                case RATE -> {
+                    RealVectorParam<PositiveReal> r = rates.get(random.nextInt(NR_OF_COMPONENTS));
+                    final int i = random.nextInt(r.size());
+                    r.set(i, r.get(i) * Math.exp(0.5 * random.nextGaussian()));
+                }
+                case SHAPE -> {
+                    RealScalarParam<PositiveReal> shape = shapes.get(random.nextInt(NR_OF_COMPONENTS));
+                    shape.set(shape.get() * Math.exp(0.3 * random.nextGaussian()));
+                }
+                default -> {
+                    RealVectorParam<PositiveReal> r = rates.get(BROKEN);
+                    r.set(0, isBroken() ? 1.0 : Double.POSITIVE_INFINITY);
+                }
+            }
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            evaluate();
+            assertMatchesReferences(label + ", proposed");
+
+            if (accept) {
+                state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+            assertMatchesReferences(label + (accept ? ", accepted" : ", rejected"));
+        }
+    }
+
+    private void assertMatchesReferences(String label) {
+        final int patternCount = references.getFirst().dataInput.get().getPatternCount();
+        double[] patternLogLikelihoods = new double[NR_OF_COMPONENTS * patternCount];
+        double logP = 0;
+        for (int k = 0; k < NR_OF_COMPONENTS; k++) {
+            likelihood.getPatternLogLikelihoods(k, patternLogLikelihoods, k * patternCount);
+            logP += likelihood.getComponentLogP(k);
+        }
+        assertEquals(logP, likelihood.getCurrentLogP(), 0.0, label + ": sum of components");
+
+        for (int k = 0; k < NR_OF_COMPONENTS; k++) {
+            String component = label + ", component " + k;
+            CachedTreeLikelihood reference = references.get(k);
+            assertEquals(reference.getCurrentLogP(), likelihood.getComponentLogP(k), 1e-8, component);
+            double[] expected = reference.getPatternLogLikelihoods();
+            if (k == BROKEN && isBroken()) {
+                assertEquals(Double.NEGATIVE_INFINITY, likelihood.getComponentLogP(k), component);
+                Arrays.fill(expected, Double.NEGATIVE_INFINITY);
+            }
+            for (int j = 0; j < patternCount; j++) {
+                assertEquals(expected[j], patternLogLikelihoods[k * patternCount + j], 1e-10, component + ", pattern " + j);
+            }
+        }
+    }
+
+    // as CompoundDistribution, except that it goes on past a likelihood of -infinity
+    private void evaluate() {
+        for (GenericTreeLikelihood l : likelihoods) {
+            if (l.isDirtyCalculation())
+                l.calculateLogP();
+        }
+    }
+
+    private boolean isBroken() {
+        return Double.isInfinite(rates.get(BROKEN).get(0));
+    }
+
+    // new height of an internal node between its oldest child and its parent, or above its oldest child for the root
+    private void moveHeight() {
+        Node node = tree.getNode(NR_OF_TAXA + random.nextInt(NR_OF_TAXA - 1));
+        final double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        final double upper = node.isRoot() ? lower + 0.5 : node.getParent().getHeight();
+        node.setHeight(lower + random.nextDouble() * (upper - lower));
+    }
+
+    private double[] randomRates(int count) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Math.exp(random.nextGaussian());
+        }
+        return values;
+    }
+
+    /**
+     * @param freqs frequencies of a reversible model, or null for a nonreversible model
+     */
+    private static ABySSubstitutionModel model(RealVectorParam<PositiveReal> rates, double[] freqs) {
+        ABySSubstitutionModel model = new ABySSubstitutionModel();
+        boolean[] indicators = new boolean[rates.size()];
+        Arrays.fill(indicators, true);
+        if (freqs != null) {
+            model.initByName("rates", rates, "rateIndicator", new BoolVectorParam(indicators), "symmetric", true,
+                    "frequencies", new SimplexParam(freqs));
+        } else {
+            model.initByName("rates", rates, "rateIndicator", new BoolVectorParam(indicators), "symmetric", false);
+        }
+        return model;
+    }
+
+}
@@ -0,0 +1,162 @@
+package abyss.operators;
+
+import abyss.inference.IndicatorGraph;
+import beast.base.spec.inference.parameter.BoolVectorParam;
+import beast.base.util.Randomizer;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ConnectedBitFlipOperator on rate graphs small enough to enumerate every indicator vector:
+ * proposals and Hastings ratios against counting valid flips by brute force, and a Metropolis-Hastings chain
+ * with a flat target, which must visit every state in the support of SVSPrior equally often.
+ * @author Jasmine Saghafifar
+ */
+class ConnectedBitFlipOperatorTest {
+
+    // 6 indicators either way: 3 states nonreversible, 4 states reversible
+    private static final int[][] GRAPHS = {{3, 0}, {4, 1}};
+
+    @Test
+    void testHastingsRatio() {
+        Randomizer.setSeed(71);
+        for (int[] g : GRAPHS) {
+            final int dim = g[0];
+            final boolean symmetric = g[1] == 1;
+            IndicatorGraph graph = new IndicatorGraph(dim, symmetric);
+            final int nrOfIndicators = graph.getIndicatorCount();
+            BoolVectorParam parameter = new BoolVectorParam(new boolean[nrOfIndicators]);
+            ConnectedBitFlipOperator operator = operator(parameter, symmetric);
+
+            for (int state = 0; state < 1 << nrOfIndicators; state++) {
+                boolean[] x = indicators(state, nrOfIndicators);
+                if (!isValid(x, graph, dim))
+                    continue;
+                Set<Integer> expectedFlips = validFlips(x, graph, dim);
+                Set<Integer> proposedFlips = new HashSet<>();
+                for (int repeat = 0; repeat < 100; repeat++) {
+                    set(parameter, x);
+                    final double logHastingsRatio = operator.proposal();
+                    final int flipped = flipped(parameter, x);
+                    proposedFlips.add(flipped);
+
+                    boolean[] y = x.clone();
+                    y[flipped] = !y[flipped];
+                    assertTrue(isValid(y, graph, dim), "proposed a state outside the support");
+                    assertEquals(Math.log(expectedFlips.size()) - Math.log(validFlips(y, graph, dim).size()),
+                            logHastingsRatio, 1e-12);
+                    // rejected: the parameter goes back to x for the next proposal
+                }
+                assertEquals(expectedFlips, proposedFlips, "flips proposed from state " + state);
+            }
+        }
+    }
+
+    @Test
+    void testUniformOnSupport() {
+        Randomizer.setSeed(72);
+        for (int[] g : GRAPHS) {
+            final int dim = g[0];
+            final boolean symmetric = g[1] == 1;
+            IndicatorGraph graph = new IndicatorGraph(dim, symmetric);
+            final int nrOfIndicators = graph.getIndicatorCount();
+            boolean[] x = new boolean[nrOfIndicators];
+            Arrays.fill(x, true);
+            BoolVectorParam parameter = new BoolVectorParam(x.clone());
+            ConnectedBitFlipOperator operator = operator(parameter, symmetric);
+
+            int[] visits = new int[1 << nrOfIndicators];
+            final int steps = 200000;
+            for (int step = 0; step < steps; step++) {
+                final double logHastingsRatio = operator.proposal();
+                if (Math.log(Randomizer.nextDouble()) < logHastingsRatio) {
+                    x[flipped(parameter, x)] ^= true;
+                } else {
+                    set(parameter, x);
+                }
+                visits[state(x)]++;
+            }
+
+            int support = 0;
+            for (int state = 0; state < visits.length; state++) {
+                if (isValid(indicators(state, nrOfIndicators), graph, dim))
+                    support++;
+            }
+            final double expected = (double) steps / support;
+            for (int state = 0; state < visits.length; state++) {
+                if (isValid(indicators(state, nrOfIndicators), graph, dim))
+                    assertEquals(expected, visits[state], 0.1 * expected, "visits of state " + state);
+                else
+                    assertEquals(0, visits[state], "visited state " + state + " outside the support");
+            }
+        }
+    }
+
+    private static ConnectedBitFlipOperator operator(BoolVectorParam parameter, boolean symmetric) {
+        ConnectedBitFlipOperator operator = new ConnectedBitFlipOperator();
+        operator.initByName("parameter", parameter, "symmetric", symmetric, "weight", 1.0);
+        return operator;
+    }
+
+    // at least as many active rates as states, on a strongly connected graph
+    private static boolean isValid(boolean[] indicators, IndicatorGraph graph, int dim) {
+        int active = 0;
+        for (boolean indicator : indicators) {
+            if (indicator) active++;
+        }
+        graph.setIndicators(indicators);
+        return active >= dim && graph.isStronglyConnected();
+    }
+
+    private static Set<Integer> validFlips(boolean[] indicators, IndicatorGraph graph, int dim) {
+        Set<Integer> flips = new HashSet<>();
+        for (int k = 0; k < indicators.length; k++) {
+            boolean[] y = indicators.clone();
+            y[k] = !y[k];
+            if (isValid(y, graph, dim))
+                flips.add(k);
+        }
+        return flips;
+    }
+
+    private static int flipped(BoolVectorParam parameter, boolean[] indicators) {
+        int flipped = -1;
+        for (int k = 0; k < indicators.length; k++) {
+            if (parameter.get(k) != indicators[k]) {
+                assertEquals(-1, flipped, "more than one indicator flipped");
+                flipped = k;
+            }
+        }
+        assertTrue(flipped >= 0, "no indicator flipped");
+        return flipped;
+    }
+
+    private static void set(BoolVectorParam parameter, boolean[] indicators) {
+        for (int k = 0; k < indicators.length; k++) {
+            parameter.set(k, indicators[k]);
+        }
+    }
+
+    private static boolean[] indicators(int state, int size) {
+        boolean[] indicators = new boolean[size];
+        for (int k = 0; k < size; k++) {
+            indicators[k] = (state >>> k & 1) == 1;
+        }
+        return indicators;
+    }
+
+    private static int state(boolean[] indicators) {
+        int state = 0;
+        for (int k = 0; k < indicators.length; k++) {
+            if (indicators[k]) state |= 1 << k;
+        }
+        return state;
+    }
+
+}
@@ -0,0 +1,104 @@
+package abyss.operators;
+
+import abyss.inference.CachedTreeLikelihood;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.spec.domain.NonNegativeInt;
+import beast.base.spec.inference.parameter.IntScalarParam;
+import beast.base.util.Randomizer;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * ModelIndicatorGibbsOperator with fixed candidate log likelihoods and priors: the indicator
+ * must be drawn from the full conditional, softmax(log likelihood + log prior).
+ * @author Jasmine Saghafifar
+ */
+class ModelIndicatorGibbsOperatorTest {
+
+    private static final double[] LOG_LIKELIHOODS = {-1001.0, -1003.0, -1000.5};
+    private static final double[] LOG_PRIORS = {Math.log(0.2), Math.log(0.5), Math.log(0.3)};
+
+    @Test
+    void testSamplesFullConditional() {
+        final int nrOfModels = LOG_LIKELIHOODS.length;
+        double[] expected = new double[nrOfModels];
+        double sum = 0;
+        for (int i = 0; i < nrOfModels; i++) {
+            expected[i] = Math.exp(LOG_LIKELIHOODS[i] + LOG_PRIORS[i] + 1000.0);
+            sum += expected[i];
+        }
+        for (int i = 0; i < nrOfModels; i++) {
+            expected[i] /= sum;
+        }
+
+        for (int threads : new int[]{1, nrOfModels}) {
+            Randomizer.setSeed(81);
+            IntScalarParam<NonNegativeInt> indicator = new IntScalarParam<>(0, NonNegativeInt.INSTANCE);
+            ModelIndicatorGibbsOperator operator = new ModelIndicatorGibbsOperator();
+            operator.initByName("modelIndicator", indicator,
+                    "likelihood", List.of(new FixedLikelihood(LOG_LIKELIHOODS[0]), new FixedLikelihood(LOG_LIKELIHOODS[1]),
+                            new FixedLikelihood(LOG_LIKELIHOODS[2])),
+                    "prior", new FixedPrior(indicator), "threads", threads, "weight", 1.0);
+
+            final int draws = 100000;
+            int[] counts = new int[nrOfModels];
+            for (int draw = 0; draw < draws; draw++) {
+                assertEquals(Double.POSITIVE_INFINITY, operator.proposal());
+                counts[indicator.get()]++;
+            }
+            for (int i = 0; i < nrOfModels; i++) {
+                final double sd = Math.sqrt(expected[i] * (1 - expected[i]) / draws);
+                assertEquals(expected[i], (double) counts[i] / draws, 4 * sd, "model " + i + ", " + threads + " threads");
+            }
+        }
+    }
+
+    // candidate likelihood that does not depend on the state
+    private static class FixedLikelihood extends CachedTreeLikelihood {
+        private final double value;
+
+        FixedLikelihood(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double calculateLogPFromScratch() {
+            return value;
+        }
+    }
+
+    // prior on the indicator
+    private static class FixedPrior extends Distribution {
+        private final IntScalarParam<NonNegativeInt> indicator;
+
+        FixedPrior(IntScalarParam<NonNegativeInt> indicator) {
+            this.indicator = indicator;
+        }
+
+        @Override
+        public double calculateLogP() {
+            logP = LOG_PRIORS[indicator.get()];
+            return logP;
+        }
+
+        @Override
+        public List<String> getArguments() {
+            return List.of();
+        }
+
+        @Override
+        public List<String> getConditions() {
+            return List.of();
+        }
+
+        @Override
+        public void sample(State state, Random random) {
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package abyss.substitutionmodel;
+
+import beast.base.inference.State;
+import beast.base.spec.domain.NonNegativeInt;
+import beast.base.spec.domain.PositiveReal;
+import beast.base.spec.inference.parameter.BoolVectorParam;
+import beast.base.spec.inference.parameter.IntScalarParam;
+import beast.base.spec.inference.parameter.RealVectorParam;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static abyss.substitutionmodel.ABySSubstitutionModelTest.allTrue;
+import static abyss.substitutionmodel.ABySSubstitutionModelTest.model;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * ABySSModelAveraging driven through a State as MCMC does, switching between submodels and moving the rates
+ * of active and inactive ones, each proposal accepted or rejected: after every evaluation and every rejection
+ * the model must give the rate matrix, frequencies and transition probabilities of a submodel set up from scratch.
+ * @author Jasmine Saghafifar
+ */
+class ABySSModelAveragingTest {
+
+    private static final int N = 4;
+    private static final int NR_OF_RATES = N * (N - 1) / 2;
+    private static final double[][] FREQS = {{0.1, 0.2, 0.3, 0.4}, {0.4, 0.3, 0.2, 0.1}};
+
+    // moves: switch to the other submodel, or move a rate of submodel 0 or 1
+    private static final int SWITCH = -1;
+
+    // switch away, move the submodel left behind, switch back and reject, and the other way round
+    private static final int[][] SCRIPT = {
+            {SWITCH, 1}, {0, 1}, {SWITCH, 0}, {SWITCH, 1}, {1, 0}, {0, 1}, {SWITCH, 1}, {SWITCH, 0},
+            {1, 1}, {SWITCH, 0}, {0, 0}, {SWITCH, 1}, {1, 1}, {SWITCH, 0}};
+
+    private final Random random = new Random(91);
+    private IntScalarParam<NonNegativeInt> indicator;
+    private List<RealVectorParam<PositiveReal>> rates;
+    private ABySSModelAveraging averaging;
+    private long lastVersion = -1;
+    private double[] lastRateMatrix;
+
+    @Test
+    void testSwitchAcceptAndReject() {
+        rates = List.of(randomRates(), randomRates());
+        indicator = new IntScalarParam<>(0, NonNegativeInt.INSTANCE);
+        averaging = new ABySSModelAveraging();
+        averaging.initByName("model", List.of(model(rates.get(0), new BoolVectorParam(allTrue(NR_OF_RATES)), FREQS[0]),
+                        model(rates.get(1), new BoolVectorParam(allTrue(NR_OF_RATES)), FREQS[1])),
+                "modelIndicator", indicator, "nrOfStates", N);
+
+        State state = new State();
+        state.initByName("stateNode", List.of(indicator, rates.get(0), rates.get(1)));
+        state.initialise();
+        state.setPosterior(averaging);
+        assertMatchesActiveSubmodel("initial state");
+        state.setEverythingDirty(false);
+
+        for (int step = 0; step < SCRIPT.length + 1000; step++) {
+            final int move = step < SCRIPT.length ? SCRIPT[step][0] : random.nextInt(3) - 1;
+            final boolean accept = step < SCRIPT.length ? SCRIPT[step][1] == 1 : random.nextBoolean();
+            String label = "step " + step + (move == SWITCH ? ", switch" : ", move submodel " + move);
+
+            // as MCMC.propagateState
+            state.store(step);
+            if (move == SWITCH) {
+                indicator.set(1 - indicator.get());
+            } else {
+                RealVectorParam<PositiveReal> r = rates.get(move);
+                final int k = random.nextInt(NR_OF_RATES);
+                r.set(k, r.get(k) * Math.exp(0.5 * random.nextGaussian()));
+            }
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            assertMatchesActiveSubmodel(label + ", proposed");
+            if (accept) {
+                state.acceptCalculationNodes();
+            } else {
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+            assertMatchesActiveSubmodel(label + (accept ? ", accepted" : ", rejected"));
+        }
+    }
+
+    private void assertMatchesActiveSubmodel(String label) {
+        final int index = indicator.get();
+        RealVectorParam<PositiveReal> r = rates.get(index);
+        double[] values = new double[NR_OF_RATES];
+        for (int k = 0; k < NR_OF_RATES; k++) {
+            values[k] = r.get(k);
+        }
+        ABySSubstitutionModel expected = model(new RealVectorParam<>(values, PositiveReal.INSTANCE),
+                new BoolVectorParam(allTrue(NR_OF_RATES)), FREQS[index]);
+        expected.setupRelativeRates();
+        expected.setupRateMatrix();
+        double[][] q = expected.getRateMatrix();
+        double[] expectedRateMatrix = new double[N * N];
+        for (int i = 0; i < N; i++) {
+            System.arraycopy(q[i], 0, expectedRateMatrix, i * N, N);
+        }
+
+        final double[] rateMatrix = averaging.getRateMatrix(null).clone();
+        assertArrayEquals(expectedRateMatrix, rateMatrix, 1e-12, label + ": rate matrix");
+        assertArrayEquals(FREQS[index], averaging.getFrequencies(), 1e-12, label + ": frequencies");
+        double[] expectedP = new double[N * N];
+        double[] p = new double[N * N];
+        expected.getTransitionProbabilities(null, 0.7, 0.0, 1.0, expectedP);
+        averaging.getTransitionProbabilities(null, 0.7, 0.0, 1.0, p);
+        assertArrayEquals(expectedP, p, 1e-10, label + ": transition probabilities");
+
+        // the version only stays the same with the matrix
+        final long version = averaging.getRateMatrixVersion();
+        if (version == lastVersion)
+            assertArrayEquals(lastRateMatrix, rateMatrix, 0.0, label + ": rate matrix changed, version did not");
+        lastVersion = version;
+        lastRateMatrix = rateMatrix;
+    }
+
+    private RealVectorParam<PositiveReal> randomRates() {
+        return new RealVectorParam<>(RateMatrices.randomRates(random, NR_OF_RATES, 0.0), PositiveReal.INSTANCE);
+    }
+
+}
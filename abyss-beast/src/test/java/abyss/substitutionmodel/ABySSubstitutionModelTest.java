@@ -0,0 +1,133 @@
+package abyss.substitutionmodel;
+
+import beast.base.spec.domain.PositiveReal;
+import beast.base.spec.inference.parameter.BoolVectorParam;
+import beast.base.spec.inference.parameter.RealVectorParam;
+import beast.base.spec.inference.parameter.SimplexParam;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Setting up Q in ABySSubstitutionModel: without allocating, and incrementally to the same result as a full assembly.
+ * @author Jasmine Saghafifar
+ */
+class ABySSubstitutionModelTest {
+
+    private static final int N = 20;
+
+    @Test
+    void testSetupRateMatrixAllocatesNothing() {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        for (boolean symmetric : new boolean[]{true, false}) {
+            Random random = new Random(symmetric ? 21 : 22);
+            final int nrOfRates = symmetric ? N * (N - 1) / 2 : N * (N - 1);
+            RealVectorParam<PositiveReal> rates = new RealVectorParam<>(
+                    RateMatrices.randomRates(random, nrOfRates, 0.0), PositiveReal.INSTANCE);
+            BoolVectorParam indicators = new BoolVectorParam(allTrue(nrOfRates));
+            ABySSubstitutionModel model = model(rates, indicators, symmetric ? RateMatrices.randomFrequencies(random, N) : null);
+
+            // warm up, so class loading and the first assembly are not counted
+            for (int repeat = 0; repeat < 100; repeat++) {
+                model.requiresRecalculation();
+                model.setupRelativeRates();
+                model.setupRateMatrix();
+            }
+
+            long allocated = 0;
+            int flipped = 0;
+            for (int repeat = 0; repeat < 1000; repeat++) {
+                // an indicator flip and its reverse move, each followed by a rate move,
+                // so Q stays irreducible and pi is solved directly
+                if (repeat % 2 == 0) {
+                    flipped = random.nextInt(nrOfRates);
+                    indicators.set(flipped, false);
+                } else {
+                    indicators.set(flipped, true);
+                }
+                rates.set(random.nextInt(nrOfRates), Math.exp(random.nextGaussian()));
+                model.requiresRecalculation();
+
+                final long before = threads.getCurrentThreadAllocatedBytes();
+                model.setupRelativeRates();
+                model.setupRateMatrix();
+                allocated += threads.getCurrentThreadAllocatedBytes() - before;
+            }
+            assertEquals(0, allocated, (symmetric ? "reversible" : "nonreversible") + " Q");
+        }
+    }
+
+    @Test
+    void testIncrementalMatchesFullAssembly() {
+        for (boolean symmetric : new boolean[]{true, false}) {
+            Random random = new Random(symmetric ? 23 : 24);
+            final int nrOfRates = symmetric ? N * (N - 1) / 2 : N * (N - 1);
+            final double[] freqs = symmetric ? RateMatrices.randomFrequencies(random, N) : null;
+            RealVectorParam<PositiveReal> rates = new RealVectorParam<>(
+                    RateMatrices.randomRates(random, nrOfRates, 0.0), PositiveReal.INSTANCE);
+            BoolVectorParam indicators = new BoolVectorParam(allTrue(nrOfRates));
+            ABySSubstitutionModel model = model(rates, indicators, freqs);
+            model.setupRelativeRates();
+            model.setupRateMatrix();
+
+            double[] rateValues = new double[nrOfRates];
+            boolean[] indicatorValues = new boolean[nrOfRates];
+            for (int repeat = 0; repeat < 200; repeat++) {
+                // one to a few rates or indicators at a time, so only some rows are updated
+                final int changes = 1 + random.nextInt(3);
+                for (int c = 0; c < changes; c++) {
+                    final int k = random.nextInt(nrOfRates);
+                    if (random.nextBoolean())
+                        rates.set(k, Math.exp(random.nextGaussian()));
+                    else
+                        indicators.set(k, !indicators.get(k));
+                }
+                model.requiresRecalculation();
+                model.setupRelativeRates();
+                model.setupRateMatrix();
+
+                // a new model assembles Q in full from the same rates and indicators
+                for (int k = 0; k < nrOfRates; k++) {
+                    rateValues[k] = rates.get(k);
+                    indicatorValues[k] = indicators.get(k);
+                }
+                ABySSubstitutionModel full = model(new RealVectorParam<>(rateValues.clone(), PositiveReal.INSTANCE),
+                        new BoolVectorParam(indicatorValues.clone()), freqs);
+                full.setupRelativeRates();
+                full.setupRateMatrix();
+                assertArrayEquals(full.getFlatRateMatrix(), model.getFlatRateMatrix(), 0.0,
+                        (symmetric ? "reversible" : "nonreversible") + " Q after update " + repeat);
+            }
+        }
+    }
+
+    /**
+     * @param freqs frequencies of a reversible model, or null for a nonreversible model
+     */
+    static ABySSubstitutionModel model(RealVectorParam<PositiveReal> rates, BoolVectorParam indicators, double[] freqs) {
+        ABySSubstitutionModel model = new ABySSubstitutionModel();
+        if (freqs != null) {
+            model.initByName("rates", rates, "rateIndicator", indicators, "symmetric", true,
+                    "frequencies", new SimplexParam(freqs));
+        } else {
+            model.initByName("rates", rates, "rateIndicator", indicators, "symmetric", false);
+        }
+        return model;
+    }
+
+    static boolean[] allTrue(int size) {
+        boolean[] values = new boolean[size];
+        Arrays.fill(values, true);
+        return values;
+    }
+
+}
@@ -0,0 +1,87 @@
+package abyss.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.ComplexColtEigenSystem;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * EigenRefinement against decomposing the perturbed rate matrix from scratch with Colt.
+ * @author Jasmine Saghafifar
+ */
+class EigenRefinementTest {
+
+    private static final double[] DISTANCES = {0.0, 0.05, 0.5, 2.0, 10.0};
+
+    @Test
+    void testMatchesFullDecomposition() {
+        Random random = new Random(41);
+        for (int n : new int[]{4, 20}) {
+            EigenRefinement refinement = new EigenRefinement(n);
+            int refined = 0;
+            for (int repeat = 0; repeat < 20; repeat++) {
+                double[] rates = RateMatrices.randomRates(random, n * (n - 1), 0.0);
+                EigenDecomposition previous = decompose(normalised(rates, n), n);
+
+                // a small random walk on every rate
+                for (int k = 0; k < rates.length; k++) {
+                    rates[k] *= Math.exp(1e-3 * random.nextGaussian());
+                }
+                double[] q = normalised(rates, n);
+                EigenDecomposition decomposition = refinement.refine(previous, q);
+                if (decomposition == null)
+                    continue;
+                refined++;
+                EigenDecomposition full = decompose(q, n);
+                for (double distance : DISTANCES) {
+                    assertArrayEquals(RateMatrices.transitionProbabilities(full, n, distance),
+                            RateMatrices.transitionProbabilities(decomposition, n, distance), 1e-12,
+                            "n = " + n + ", distance " + distance);
+                }
+            }
+            // small moves are what refinement is for
+            assertTrue(refined >= 18, "refined " + refined + " of 20 decompositions, n = " + n);
+        }
+    }
+
+    @Test
+    void testUnchangedMatrix() {
+        Random random = new Random(42);
+        final int n = 20;
+        double[] q = normalised(RateMatrices.randomRates(random, n * (n - 1), 0.0), n);
+        EigenDecomposition previous = decompose(q, n);
+        EigenDecomposition decomposition = new EigenRefinement(n).refine(previous, q);
+        assertNotNull(decomposition);
+        assertArrayEquals(RateMatrices.transitionProbabilities(previous, n, 1.0),
+                RateMatrices.transitionProbabilities(decomposition, n, 1.0), 1e-13);
+    }
+
+    @Test
+    void testLargeMoveRejected() {
+        // an unrelated rate matrix is not a perturbation, so the caller has to decompose from scratch
+        Random random = new Random(43);
+        final int n = 20;
+        EigenDecomposition previous = decompose(normalised(RateMatrices.randomRates(random, n * (n - 1), 0.0), n), n);
+        double[] q = normalised(RateMatrices.randomRates(random, n * (n - 1), 0.0), n);
+        assertNull(new EigenRefinement(n).refine(previous, q));
+    }
+
+    private static double[] normalised(double[] rates, int n) {
+        double[] q = RateMatrices.nonReversible(rates, n);
+        double[] freqs = new double[n];
+        new EquilibriumSolver(n).solve(q, freqs);
+        RateMatrices.normalise(q, freqs, n);
+        return q;
+    }
+
+    private static EigenDecomposition decompose(double[] q, int n) {
+        return new ComplexColtEigenSystem(n).decomposeMatrix(RateMatrices.toSquare(q, n));
+    }
+
+}
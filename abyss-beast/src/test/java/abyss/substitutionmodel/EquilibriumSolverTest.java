@@ -0,0 +1,119 @@
+package abyss.substitutionmodel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * EquilibriumSolver against the rows of P(t) for a long branch, as the frequencies were taken before.
+ * @author Jasmine Saghafifar
+ */
+class EquilibriumSolverTest {
+
+    private static final double LONG_BRANCH = 1000;
+
+    @Test
+    void testMatchesLongBranchTransitionProbabilities() {
+        Random random = new Random(1);
+        for (int n : new int[]{4, 20}) {
+            EquilibriumSolver solver = new EquilibriumSolver(n);
+            double[] freqs = new double[n];
+            for (int repeat = 0; repeat < 10; repeat++) {
+                double[] q = RateMatrices.nonReversible(RateMatrices.randomRates(random, n * (n - 1), 0.0), n);
+                assertTrue(solver.solve(q, freqs));
+                RateMatrices.normalise(q, freqs, n);
+
+                double[] p = RateMatrices.expm(q, n, LONG_BRANCH);
+                for (int i = 0; i < n; i++) {
+                    for (int j = 0; j < n; j++) {
+                        assertEquals(p[i * n + j], freqs[j], 1e-10, "n = " + n + ", row " + i);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testStationary() {
+        Random random = new Random(2);
+        final int n = 20;
+        EquilibriumSolver solver = new EquilibriumSolver(n);
+        double[] freqs = new double[n];
+        for (int repeat = 0; repeat < 10; repeat++) {
+            // sparse, as after SVS switches rates off
+            double[] q = RateMatrices.nonReversible(RateMatrices.randomRates(random, n * (n - 1), 0.5), n);
+            if (!solver.solve(q, freqs))
+                continue;
+            double sum = 0.0;
+            for (int j = 0; j < n; j++) {
+                double flux = 0.0;
+                for (int i = 0; i < n; i++) {
+                    flux += freqs[i] * q[i * n + j];
+                }
+                assertEquals(0.0, flux, 1e-12);
+                assertTrue(freqs[j] >= 0.0);
+                sum += freqs[j];
+            }
+            assertEquals(1.0, sum, 1e-14);
+        }
+    }
+
+    @Test
+    void testReversibleFrequencies() {
+        Random random = new Random(3);
+        final int n = 20;
+        EquilibriumSolver solver = new EquilibriumSolver(n);
+        double[] freqs = new double[n];
+        double[] expected = RateMatrices.randomFrequencies(random, n);
+        double[] q = RateMatrices.reversible(RateMatrices.randomRates(random, n * (n - 1) / 2, 0.0), expected, n);
+        assertTrue(solver.solve(q, freqs));
+        assertArrayEquals(expected, freqs, 1e-13);
+    }
+
+    @Test
+    void testFlatAndSquareAgree() {
+        Random random = new Random(4);
+        final int n = 4;
+        EquilibriumSolver solver = new EquilibriumSolver(n);
+        double[] q = RateMatrices.nonReversible(RateMatrices.randomRates(random, n * (n - 1), 0.0), n);
+        double[] flat = new double[n];
+        double[] square = new double[n];
+        assertTrue(solver.solve(q, flat));
+        assertTrue(solver.solve(RateMatrices.toSquare(q, n), square));
+        assertArrayEquals(flat, square, 0.0);
+    }
+
+    @Test
+    void testCyclicRates() {
+        // each state mostly moves on to the next; pi is uniform whatever the backward rate
+        final int n = 4;
+        EquilibriumSolver solver = new EquilibriumSolver(n);
+        double[] freqs = new double[n];
+        for (double epsilon : new double[]{0.0, 0.5, 1.0}) {
+            double[] rates = {1.0, epsilon, 0.0,
+                    0.0, 1.0, epsilon,
+                    epsilon, 0.0, 1.0,
+                    1.0, epsilon, 0.0};
+            assertTrue(solver.solve(RateMatrices.nonReversible(rates, n), freqs));
+            assertArrayEquals(new double[]{0.25, 0.25, 0.25, 0.25}, freqs, 1e-14);
+        }
+    }
+
+    @Test
+    void testReducible() {
+        // two closed classes {0, 1} and {2, 3} have no unique stationary distribution
+        final int n = 4;
+        EquilibriumSolver solver = new EquilibriumSolver(n);
+        double[] rates = {1.0, 0.0, 0.0,
+                1.0, 0.0, 0.0,
+                0.0, 0.0, 1.0,
+                0.0, 0.0, 1.0};
+        assertFalse(solver.solve(RateMatrices.nonReversible(rates, n), new double[n]));
+    }
+
+}
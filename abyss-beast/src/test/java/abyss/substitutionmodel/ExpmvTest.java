@@ -0,0 +1,132 @@
+package abyss.substitutionmodel;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Expmv, which propagates partials of large state spaces, against exp(tQ) formed densely and applied to the same vectors.
+ * @author Jasmine Saghafifar
+ */
+class ExpmvTest {
+
+    private static final double[] DISTANCES = {0.0, 1e-4, 0.05, 0.3, 1.0, 5.0, 50.0};
+
+    @Test
+    void testMatchesDenseExponential() {
+        Random random = new Random(11);
+        for (int n : new int[]{4, 20, 61}) {
+            Expmv expmv = new Expmv(n);
+            double[] freqs = new double[n];
+            // dense, then sparse as after SVS switches rates off
+            for (double zeroProbability : new double[]{0.0, 0.8}) {
+                double[] q;
+                do {
+                    q = RateMatrices.nonReversible(RateMatrices.randomRates(random, n * (n - 1), zeroProbability), n);
+                } while (!new EquilibriumSolver(n).solve(q, freqs));
+                RateMatrices.normalise(q, freqs, n);
+                assertTrue(expmv.setRateMatrix(q));
+
+                final int count = 3;
+                double[] v = randomVectors(random, n, count);
+                double[] out = new double[count * n];
+                for (double distance : DISTANCES) {
+                    expmv.apply(distance, v, 0, out, 0, count);
+                    double[] expected = denseProduct(RateMatrices.expm(q, n, distance), v, n, count);
+                    assertArrayEquals(expected, out, 1e-12, "n = " + n + ", distance " + distance);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testSparsity() {
+        Random random = new Random(12);
+        final int n = 20;
+        double[] rates = RateMatrices.randomRates(random, n * (n - 1), 0.9);
+        int active = 0;
+        for (double rate : rates) {
+            if (rate != 0.0) active++;
+        }
+        Expmv expmv = new Expmv(n);
+        expmv.setRateMatrix(RateMatrices.nonReversible(rates, n));
+        // only active rates and the diagonal are stored, unless a diagonal equals the mean diagonal
+        assertTrue(expmv.getNonZeroCount() <= active + n);
+        assertTrue(expmv.getNonZeroCount() >= active);
+    }
+
+    @Test
+    void testOffsets() {
+        Random random = new Random(13);
+        final int n = 20;
+        final int count = 4;
+        Expmv expmv = new Expmv(n);
+        expmv.setRateMatrix(RateMatrices.nonReversible(RateMatrices.randomRates(random, n * (n - 1), 0.5), n));
+        double[] v = randomVectors(random, n, count);
+        double[] all = new double[count * n];
+        expmv.apply(0.7, v, 0, all, 0, count);
+
+        // a single vector read from and written to an offset, as per pattern under a rate category
+        double[] out = new double[count * n];
+        for (int k = 0; k < count; k++) {
+            expmv.apply(0.7, v, k * n, out, k * n, 1);
+        }
+        assertArrayEquals(all, out, 0.0);
+    }
+
+    @Test
+    void testRowsOfOnes() {
+        // exp(tQ) 1 = 1, the propagation of a fully unknown tip
+        Random random = new Random(14);
+        final int n = 61;
+        Expmv expmv = new Expmv(n);
+        expmv.setRateMatrix(RateMatrices.nonReversible(RateMatrices.randomRates(random, n * (n - 1), 0.7), n));
+        double[] ones = new double[n];
+        Arrays.fill(ones, 1.0);
+        double[] out = new double[n];
+        for (double distance : DISTANCES) {
+            expmv.apply(distance, ones, 0, out, 0, 1);
+            for (int i = 0; i < n; i++) {
+                assertEquals(1.0, out[i], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    void testNonFiniteRejected() {
+        final int n = 4;
+        double[] rates = new double[n * (n - 1)];
+        rates[5] = Double.NaN;
+        assertFalse(new Expmv(n).setRateMatrix(RateMatrices.nonReversible(rates, n)));
+    }
+
+    private static double[] randomVectors(Random random, int n, int count) {
+        double[] v = new double[count * n];
+        for (int k = 0; k < v.length; k++) {
+            v[k] = random.nextDouble();
+        }
+        return v;
+    }
+
+    // P v for each of count contiguous vectors
+    private static double[] denseProduct(double[] p, double[] v, int n, int count) {
+        double[] out = new double[count * n];
+        for (int k = 0; k < count; k++) {
+            for (int i = 0; i < n; i++) {
+                double sum = 0.0;
+                for (int j = 0; j < n; j++) {
+                    sum += p[i * n + j] * v[k * n + j];
+                }
+                out[k * n + i] = sum;
+            }
+        }
+        return out;
+    }
+
+}
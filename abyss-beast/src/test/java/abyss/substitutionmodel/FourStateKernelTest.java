@@ -0,0 +1,122 @@
+package abyss.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.ComplexColtEigenSystem;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * FourStateKernel against the general nonreversible path: pi solved, Q normalised,
+ * Colt complex eigen decomposition and P(t) formed as in ComplexSubstitutionModel.
+ * @author Jasmine Saghafifar
+ */
+class FourStateKernelTest {
+
+    private static final int N = FourStateKernel.STATE_COUNT;
+    private static final double[] DISTANCES = {0.0, 0.02, 0.1, 0.4, 1.5, 10.0};
+
+    @Test
+    void testMatchesEigenPath() {
+        Random random = new Random(127);
+        FourStateKernel kernel = new FourStateKernel();
+        int updated = 0;
+        int complex = 0;
+        for (int repeat = 0; repeat < 200; repeat++) {
+            double[] rates = RateMatrices.randomRates(random, N * (N - 1), 0.0);
+            if (!kernel.update(rates))
+                continue;
+            updated++;
+            EigenDecomposition decomposition = eigenPath(rates);
+            if (decomposition.getEigenValues()[N + 1] != 0.0 || decomposition.getEigenValues()[N + 2] != 0.0)
+                complex++;
+
+            double[] matrix = new double[N * N];
+            for (double distance : DISTANCES) {
+                kernel.getTransitionProbabilities(distance, matrix, 0);
+                assertArrayEquals(RateMatrices.transitionProbabilities(decomposition, N, distance), matrix, 1e-12,
+                        "rate vector " + repeat + ", distance " + distance);
+            }
+        }
+        // the kernel must handle most random rate vectors, including complex eigenvalues
+        assertTrue(updated > 190, "kernel accepted " + updated + " of 200 rate vectors");
+        assertTrue(complex > 0);
+    }
+
+    @Test
+    void testBatchMatchesSingle() {
+        Random random = new Random(5);
+        FourStateKernel kernel = new FourStateKernel();
+        double[] rates;
+        do {
+            rates = RateMatrices.randomRates(random, N * (N - 1), 0.0);
+        } while (!kernel.update(rates));
+
+        double[] batch = new double[DISTANCES.length * N * N];
+        kernel.getTransitionProbabilities(DISTANCES, DISTANCES.length, batch);
+        double[] single = new double[batch.length];
+        for (int c = 0; c < DISTANCES.length; c++) {
+            kernel.getTransitionProbabilities(DISTANCES[c], single, c * N * N);
+        }
+        assertArrayEquals(single, batch, 0.0);
+    }
+
+    @Test
+    void testFrequencies() {
+        Random random = new Random(6);
+        FourStateKernel kernel = new FourStateKernel();
+        EquilibriumSolver solver = new EquilibriumSolver(N);
+        double[] freqs = new double[N];
+        double[] rates;
+        do {
+            rates = RateMatrices.randomRates(random, N * (N - 1), 0.0);
+        } while (!kernel.update(rates));
+        solver.solve(RateMatrices.nonReversible(rates, N), freqs);
+        assertArrayEquals(freqs, kernel.getFrequencies(), 0.0);
+
+        // and P(0) = I exactly, so rows of P(t) are distributions from the start
+        double[] matrix = new double[N * N];
+        kernel.getTransitionProbabilities(0.0, matrix, 0);
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                assertEquals(i == j ? 1.0 : 0.0, matrix[i * N + j], 1e-15);
+            }
+        }
+    }
+
+    @Test
+    void testRepeatedEigenvaluesRejected() {
+        // equal rates give a triple eigenvalue, where the projectors are not defined
+        FourStateKernel kernel = new FourStateKernel();
+        double[] rates = new double[N * (N - 1)];
+        Arrays.fill(rates, 1.0);
+        assertFalse(kernel.update(rates));
+        assertFalse(kernel.isValid());
+    }
+
+    @Test
+    void testReducibleRejected() {
+        FourStateKernel kernel = new FourStateKernel();
+        double[] rates = {1.0, 0.0, 0.0,
+                1.0, 0.0, 0.0,
+                0.0, 0.0, 1.0,
+                0.0, 0.0, 1.0};
+        assertFalse(kernel.update(rates));
+    }
+
+    // the nonreversible path of ABySSubstitutionModel without the 4-state kernel
+    private static EigenDecomposition eigenPath(double[] rates) {
+        double[] freqs = new double[N];
+        double[] q = RateMatrices.nonReversible(rates, N);
+        new EquilibriumSolver(N).solve(q, freqs);
+        RateMatrices.normalise(q, freqs, N);
+        return new ComplexColtEigenSystem(N).decomposeMatrix(RateMatrices.toSquare(q, N));
+    }
+
+}
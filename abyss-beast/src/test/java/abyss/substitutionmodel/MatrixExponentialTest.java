@@ -0,0 +1,114 @@
+package abyss.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.ComplexColtEigenSystem;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * MatrixExponential, the scaling and squaring fallback of ABySSubstitutionModel, against the eigen path
+ * where that is accurate, and against a Taylor series reference where it is not.
+ * @author Jasmine Saghafifar
+ */
+class MatrixExponentialTest {
+
+    // norms on both sides of every Pade degree and of the squaring threshold
+    private static final double[] DISTANCES = {0.0, 1e-3, 0.1, 0.5, 1.5, 4.0, 20.0, 300.0};
+
+    @Test
+    void testMatchesEigenPath() {
+        Random random = new Random(7);
+        for (int n : new int[]{4, 20}) {
+            MatrixExponential exponential = new MatrixExponential(n);
+            double[] freqs = new double[n];
+            double[] matrix = new double[n * n];
+            for (int repeat = 0; repeat < 5; repeat++) {
+                double[] q = RateMatrices.nonReversible(RateMatrices.randomRates(random, n * (n - 1), 0.0), n);
+                new EquilibriumSolver(n).solve(q, freqs);
+                RateMatrices.normalise(q, freqs, n);
+                assertTrue(exponential.setRateMatrix(q));
+                var decomposition = new ComplexColtEigenSystem(n).decomposeMatrix(RateMatrices.toSquare(q, n));
+                for (double distance : DISTANCES) {
+                    exponential.getTransitionProbabilities(distance, matrix, 0);
+                    assertArrayEquals(RateMatrices.transitionProbabilities(decomposition, n, distance), matrix, 1e-12,
+                            "n = " + n + ", distance " + distance);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testNearlyDefective() {
+        // a chain 0 -> 1 -> 2 -> 3 closed by a tiny rate back to 0 has a nearly triple eigenvalue,
+        // so its eigenvectors are nearly parallel and P(t) from them loses most digits
+        final int n = 4;
+        final double epsilon = 1e-9;
+        double[] rates = {1.0, 0.0, 0.0,
+                0.0, 1.0, 0.0,
+                0.0, 0.0, 1.0,
+                epsilon, 0.0, 0.0};
+        double[] q = RateMatrices.nonReversible(rates, n);
+        MatrixExponential exponential = new MatrixExponential(n);
+        assertTrue(exponential.setRateMatrix(RateMatrices.toSquare(q, n)));
+        double[] matrix = new double[n * n];
+        for (double distance : DISTANCES) {
+            exponential.getTransitionProbabilities(distance, matrix, 0);
+            assertArrayEquals(RateMatrices.expm(q, n, distance), matrix, 1e-12, "distance " + distance);
+            for (int i = 0; i < n; i++) {
+                double sum = 0.0;
+                for (int j = 0; j < n; j++) {
+                    sum += matrix[i * n + j];
+                }
+                assertEquals(1.0, sum, 1e-12);
+            }
+        }
+    }
+
+    @Test
+    void testBatchMatchesSingle() {
+        Random random = new Random(8);
+        final int n = 20;
+        MatrixExponential exponential = new MatrixExponential(n);
+        exponential.setRateMatrix(RateMatrices.nonReversible(RateMatrices.randomRates(random, n * (n - 1), 0.3), n));
+        double[] batch = new double[DISTANCES.length * n * n];
+        exponential.getTransitionProbabilities(DISTANCES, DISTANCES.length, batch);
+        double[] single = new double[batch.length];
+        for (int c = 0; c < DISTANCES.length; c++) {
+            exponential.getTransitionProbabilities(DISTANCES[c], single, c * n * n);
+        }
+        assertArrayEquals(single, batch, 0.0);
+    }
+
+    @Test
+    void testAssign() {
+        Random random = new Random(9);
+        final int n = 4;
+        MatrixExponential exponential = new MatrixExponential(n);
+        MatrixExponential copy = new MatrixExponential(n);
+        exponential.setRateMatrix(RateMatrices.nonReversible(RateMatrices.randomRates(random, n * (n - 1), 0.0), n));
+        copy.assign(exponential);
+        exponential.setRateMatrix(RateMatrices.nonReversible(RateMatrices.randomRates(random, n * (n - 1), 0.0), n));
+        double[] expected = new double[n * n];
+        double[] matrix = new double[n * n];
+        copy.getTransitionProbabilities(0.3, matrix, 0);
+        exponential.getTransitionProbabilities(0.3, expected, 0);
+        assertFalse(RateMatrices.maxDifference(expected, matrix) == 0.0);
+        exponential.assign(copy);
+        exponential.getTransitionProbabilities(0.3, expected, 0);
+        assertArrayEquals(expected, matrix, 0.0);
+    }
+
+    @Test
+    void testNonFiniteRejected() {
+        final int n = 4;
+        double[] rates = new double[n * (n - 1)];
+        rates[3] = Double.POSITIVE_INFINITY;
+        assertFalse(new MatrixExponential(n).setRateMatrix(RateMatrices.nonReversible(rates, n)));
+    }
+
+}
@@ -0,0 +1,201 @@
+package abyss.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+
+import java.util.Random;
+
+/**
+ * Rate matrices and reference transition probabilities shared by the substitution model tests.
+ * Matrices are flat row-major n x n arrays, with rates ordered as in ABySSubstitutionModel.
+ * @author Jasmine Saghafifar
+ */
+final class RateMatrices {
+
+    private RateMatrices() {
+    }
+
+    /**
+     * @return n(n-1) rates drawn log-normally, each set to zero with the given probability
+     */
+    static double[] randomRates(Random random, int count, double zeroProbability) {
+        double[] rates = new double[count];
+        for (int k = 0; k < count; k++) {
+            rates[k] = random.nextDouble() < zeroProbability ? 0.0 : Math.exp(random.nextGaussian());
+        }
+        return rates;
+    }
+
+    static double[] randomFrequencies(Random random, int n) {
+        double[] freqs = new double[n];
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            freqs[i] = 0.1 + random.nextDouble();
+            sum += freqs[i];
+        }
+        for (int i = 0; i < n; i++) {
+            freqs[i] /= sum;
+        }
+        return freqs;
+    }
+
+    /**
+     * Unnormalised nonreversible Q from n(n-1) rates, row by row off the diagonal.
+     */
+    static double[] nonReversible(double[] rates, int n) {
+        double[] q = new double[n * n];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (i != j) q[i * n + j] = rates[k++];
+            }
+        }
+        setDiagonal(q, n);
+        return q;
+    }
+
+    /**
+     * Unnormalised reversible Q, q_ij = r_ij pi_j, from n(n-1)/2 rates of the upper triangle.
+     */
+    static double[] reversible(double[] rates, double[] freqs, int n) {
+        double[] q = new double[n * n];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                q[i * n + j] = rates[k] * freqs[j];
+                q[j * n + i] = rates[k] * freqs[i];
+                k++;
+            }
+        }
+        setDiagonal(q, n);
+        return q;
+    }
+
+    /**
+     * Scales Q to one expected substitution per unit time under freqs.
+     */
+    static void normalise(double[] q, double[] freqs, int n) {
+        double subst = 0.0;
+        for (int i = 0; i < n; i++) {
+            subst -= q[i * n + i] * freqs[i];
+        }
+        for (int k = 0; k < n * n; k++) {
+            q[k] /= subst;
+        }
+    }
+
+    static double[][] toSquare(double[] q, int n) {
+        double[][] square = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(q, i * n, square[i], 0, n);
+        }
+        return square;
+    }
+
+    /**
+     * Reference exp(Qt): Taylor series of Qt / 2^s to convergence, squared s times.
+     */
+    static double[] expm(double[] q, int n, double t) {
+        double norm = 0.0;
+        for (int j = 0; j < n; j++) {
+            double sum = 0.0;
+            for (int i = 0; i < n; i++) {
+                sum += Math.abs(q[i * n + j]);
+            }
+            norm = Math.max(norm, sum);
+        }
+        int s = 0;
+        while (norm * Math.abs(t) / Math.pow(2, s) > 0.125) {
+            s++;
+        }
+        final double h = t / Math.pow(2, s);
+
+        double[] result = identity(n);
+        double[] term = identity(n);
+        for (int m = 1; m <= 30; m++) {
+            term = multiply(term, q, n);
+            for (int k = 0; k < n * n; k++) {
+                term[k] *= h / m;
+                result[k] += term[k];
+            }
+        }
+        for (int i = 0; i < s; i++) {
+            result = multiply(result, result, n);
+        }
+        return result;
+    }
+
+    /**
+     * Transition probabilities from an eigen decomposition, as ComplexSubstitutionModel forms them:
+     * 1x1 blocks for real eigenvalues, 2x2 blocks for conjugate pairs when imaginary parts are present.
+     */
+    static double[] transitionProbabilities(EigenDecomposition decomposition, int n, double t) {
+        final double[] Evec = decomposition.getEigenVectors();
+        final double[] Eval = decomposition.getEigenValues();
+        final double[] Ievc = decomposition.getInverseEigenVectors();
+        final boolean complex = Eval.length >= 2 * n;
+        double[] iexp = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            final double imaginary = complex ? Eval[n + i] : 0.0;
+            if (imaginary == 0.0) {
+                final double e = Math.exp(t * Eval[i]);
+                for (int j = 0; j < n; j++) {
+                    iexp[i * n + j] = Ievc[i * n + j] * e;
+                }
+            } else {
+                final double expat = Math.exp(t * Eval[i]);
+                final double cos = expat * Math.cos(t * imaginary);
+                final double sin = expat * Math.sin(t * imaginary);
+                for (int j = 0; j < n; j++) {
+                    iexp[i * n + j] = cos * Ievc[i * n + j] + sin * Ievc[(i + 1) * n + j];
+                    iexp[(i + 1) * n + j] = cos * Ievc[(i + 1) * n + j] - sin * Ievc[i * n + j];
+                }
+                i++;
+            }
+        }
+        double[] matrix = multiply(Evec, iexp, n);
+        for (int k = 0; k < n * n; k++) {
+            matrix[k] = Math.abs(matrix[k]);
+        }
+        return matrix;
+    }
+
+    static double[] multiply(double[] a, double[] b, int n) {
+        double[] c = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < n; k++) {
+                final double aik = a[i * n + k];
+                for (int j = 0; j < n; j++) {
+                    c[i * n + j] += aik * b[k * n + j];
+                }
+            }
+        }
+        return c;
+    }
+
+    static double maxDifference(double[] a, double[] b) {
+        double max = 0.0;
+        for (int k = 0; k < a.length; k++) {
+            max = Math.max(max, Math.abs(a[k] - b[k]));
+        }
+        return max;
+    }
+
+    private static double[] identity(int n) {
+        double[] identity = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            identity[i * n + i] = 1.0;
+        }
+        return identity;
+    }
+
+    private static void setDiagonal(double[] q, int n) {
+        for (int i = 0; i < n; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < n; j++) {
+                if (i != j) sum += q[i * n + j];
+            }
+            q[i * n + i] = -sum;
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package abyss.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.ComplexColtEigenSystem;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * SymmetricEigenSystem against the Colt decomposition reversible Q went through before.
+ * @author Jasmine Saghafifar
+ */
+class SymmetricEigenSystemTest {
+
+    private static final double[] DISTANCES = {0.0, 0.01, 0.1, 1.0, 10.0};
+
+    @Test
+    void testMatchesColtTransitionProbabilities() {
+        Random random = new Random(31);
+        for (int n : new int[]{4, 20, 61}) {
+            SymmetricEigenSystem eigenSystem = new SymmetricEigenSystem(n);
+            for (int repeat = 0; repeat < 3; repeat++) {
+                double[] freqs = RateMatrices.randomFrequencies(random, n);
+                double[] q = RateMatrices.reversible(RateMatrices.randomRates(random, n * (n - 1) / 2, 0.3), freqs, n);
+                RateMatrices.normalise(q, freqs, n);
+
+                EigenDecomposition decomposition = eigenSystem.decompose(q, freqs);
+                assertEquals(n, decomposition.getEigenValues().length);
+                EigenDecomposition colt = new ComplexColtEigenSystem(n).decomposeMatrix(RateMatrices.toSquare(q, n));
+                for (double distance : DISTANCES) {
+                    assertArrayEquals(RateMatrices.transitionProbabilities(colt, n, distance),
+                            RateMatrices.transitionProbabilities(decomposition, n, distance), 1e-12,
+                            "n = " + n + ", distance " + distance);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testEigenvalues() {
+        Random random = new Random(32);
+        final int n = 20;
+        double[] freqs = RateMatrices.randomFrequencies(random, n);
+        double[] q = RateMatrices.reversible(RateMatrices.randomRates(random, n * (n - 1) / 2, 0.0), freqs, n);
+        RateMatrices.normalise(q, freqs, n);
+
+        double[] eigenvalues = new SymmetricEigenSystem(n).decompose(q, freqs).getEigenValues().clone();
+        double[] colt = Arrays.copyOf(new ComplexColtEigenSystem(n).decomposeMatrix(RateMatrices.toSquare(q, n)).getEigenValues(), n);
+        Arrays.sort(eigenvalues);
+        Arrays.sort(colt);
+        assertArrayEquals(colt, eigenvalues, 1e-12);
+        // one zero eigenvalue, the rest negative
+        assertEquals(0.0, eigenvalues[n - 1], 1e-12);
+        assertTrue(eigenvalues[n - 2] < 0.0);
+    }
+
+    @Test
+    void testInverse() {
+        // the inverse is formed as U^T Pi^1/2 rather than by inversion
+        Random random = new Random(33);
+        final int n = 20;
+        double[] freqs = RateMatrices.randomFrequencies(random, n);
+        double[] q = RateMatrices.reversible(RateMatrices.randomRates(random, n * (n - 1) / 2, 0.0), freqs, n);
+        EigenDecomposition decomposition = new SymmetricEigenSystem(n).decompose(q, freqs);
+        double[] identity = RateMatrices.multiply(decomposition.getEigenVectors(), decomposition.getInverseEigenVectors(), n);
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                assertEquals(i == j ? 1.0 : 0.0, identity[i * n + j], 1e-13);
+            }
+        }
+    }
+
+    @Test
+    void testZeroFrequencyRejected() {
+        final int n = 4;
+        double[] freqs = {0.5, 0.3, 0.2, 0.0};
+        double[] q = RateMatrices.reversible(new double[]{1, 2, 3, 4, 5, 6}, freqs, n);
+        assertNull(new SymmetricEigenSystem(n).decompose(q, freqs));
+    }
+
+}
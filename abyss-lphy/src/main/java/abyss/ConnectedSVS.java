@@ -89,6 +89,7 @@ public class ConnectedSVS extends ParametricDistribution<Boolean[]> implements S
         
         boolean connectedGraph = false;
         int iter = 0;
+        IndicatorGraph graph = new IndicatorGraph(n, sym);
 
         p = new double[r.length];
         for (int i = 0; i < p.length; i++) {
@@ -104,9 +105,9 @@ public class ConnectedSVS extends ParametricDistribution<Boolean[]> implements S
                     b[i] = Boolean.TRUE;
                     successes++;
                 } else b[i] = Boolean.FALSE;
+                graph.setIndicator(i, b[i]);
             }
-            if (successes >= n &&
-                    SVS.Utils.isStronglyConnected(b, n, sym)) {
+            if (successes >= n && graph.isStronglyConnected()) {
                 connectedGraph = true;
             }
             iter++;
@@ -0,0 +1,155 @@
+package abyss;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * IndicatorGraph against the depth first search from every vertex that SVS.Utils used before.
+ * @author Jasmine Saghafifar
+ */
+class IndicatorGraphTest {
+
+    // word boundaries of the bitsets at 64 and 128
+    private static final int[] DIMENSIONS = {1, 2, 4, 20, 63, 64, 65, 130};
+    private static final double[] DENSITIES = {0.02, 0.05, 0.1, 0.3, 0.8};
+
+    @Test
+    void testEntries() {
+        for (boolean reversible : new boolean[]{true, false}) {
+            for (int dim : DIMENSIONS) {
+                IndicatorGraph graph = new IndicatorGraph(dim, reversible);
+                assertEquals(reversible ? dim * (dim - 1) / 2 : dim * (dim - 1), graph.getIndicatorCount());
+                for (int k = 0; k < graph.getIndicatorCount(); k++) {
+                    assertEquals(k, IndicatorGraph.getEntry(graph.getSource(k), graph.getTarget(k), dim, reversible));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testMatchesDepthFirstSearch() {
+        Random random = new Random(51);
+        for (boolean reversible : new boolean[]{true, false}) {
+            for (int dim : DIMENSIONS) {
+                IndicatorGraph graph = new IndicatorGraph(dim, reversible);
+                int[] components = new int[dim];
+                for (double density : DENSITIES) {
+                    for (int repeat = 0; repeat < 10; repeat++) {
+                        boolean[] indicators = randomIndicators(random, graph.getIndicatorCount(), density);
+                        graph.setIndicators(indicators);
+                        String label = (reversible ? "reversible" : "nonreversible") + ", dim " + dim +
+                                ", density " + density;
+
+                        boolean[][] reachable = reachable(indicators, dim, reversible);
+                        boolean connected = true;
+                        for (int i = 0; i < dim; i++) {
+                            for (int j = 0; j < dim; j++) {
+                                connected &= reachable[i][j];
+                                assertEquals(i != j && indicators[IndicatorGraph.getEntry(i, j, dim, reversible)],
+                                        graph.hasEdge(i, j), label);
+                                assertEquals(reachable[i][j], graph.reaches(i, j), label);
+                            }
+                        }
+                        assertEquals(connected, graph.isStronglyConnected(), label);
+
+                        // two vertices share a component iff each reaches the other
+                        final int count = graph.getComponents(components);
+                        for (int i = 0; i < dim; i++) {
+                            assertTrue(components[i] >= 0 && components[i] < count, label);
+                            for (int j = 0; j < dim; j++) {
+                                assertEquals(reachable[i][j] && reachable[j][i], components[i] == components[j], label);
+                            }
+                        }
+                        assertEquals(connected, count == 1, label);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testSetIndicator() {
+        // flipping one indicator at a time gives the same graph as setting all of them
+        Random random = new Random(52);
+        for (boolean reversible : new boolean[]{true, false}) {
+            final int dim = 20;
+            IndicatorGraph graph = new IndicatorGraph(dim, reversible);
+            IndicatorGraph full = new IndicatorGraph(dim, reversible);
+            boolean[] indicators = randomIndicators(random, graph.getIndicatorCount(), 0.2);
+            graph.setIndicators(indicators);
+            for (int repeat = 0; repeat < 500; repeat++) {
+                final int k = random.nextInt(indicators.length);
+                indicators[k] = !indicators[k];
+                graph.setIndicator(k, indicators[k]);
+                full.setIndicators(indicators);
+                for (int i = 0; i < dim; i++) {
+                    for (int j = 0; j < dim; j++) {
+                        assertEquals(full.hasEdge(i, j), graph.hasEdge(i, j));
+                    }
+                }
+                assertEquals(isStronglyConnected(indicators, dim, reversible), graph.isStronglyConnected());
+            }
+        }
+    }
+
+    @Test
+    void testCompleteAndEmpty() {
+        for (boolean reversible : new boolean[]{true, false}) {
+            IndicatorGraph graph = new IndicatorGraph(20, reversible);
+            boolean[] indicators = new boolean[graph.getIndicatorCount()];
+            graph.setIndicators(indicators);
+            assertFalse(graph.isStronglyConnected());
+            assertEquals(20, graph.getComponents().length);
+            assertEquals(19, graph.getComponents()[19]);
+
+            Arrays.fill(indicators, true);
+            graph.setIndicators(indicators);
+            assertTrue(graph.isStronglyConnected());
+        }
+        // a single state is connected to itself
+        assertTrue(new IndicatorGraph(1, false).isStronglyConnected());
+    }
+
+    static boolean[] randomIndicators(Random random, int size, double density) {
+        boolean[] indicators = new boolean[size];
+        for (int k = 0; k < size; k++) {
+            indicators[k] = random.nextDouble() < density;
+        }
+        return indicators;
+    }
+
+    // the check before IndicatorGraph: a depth first search from every vertex
+    static boolean isStronglyConnected(boolean[] indicators, int dim, boolean reversible) {
+        for (int i = 0; i < dim; i++) {
+            boolean[] visited = new boolean[dim];
+            depthFirstSearch(i, visited, indicators, dim, reversible);
+            for (boolean v : visited) {
+                if (!v) return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean[][] reachable(boolean[] indicators, int dim, boolean reversible) {
+        boolean[][] reachable = new boolean[dim][dim];
+        for (int i = 0; i < dim; i++) {
+            depthFirstSearch(i, reachable[i], indicators, dim, reversible);
+        }
+        return reachable;
+    }
+
+    private static void depthFirstSearch(int node, boolean[] visited, boolean[] indicators, int dim, boolean reversible) {
+        visited[node] = true;
+        for (int v = 0; v < dim; v++) {
+            if (v != node && indicators[IndicatorGraph.getEntry(node, v, dim, reversible)] && !visited[v])
+                depthFirstSearch(v, visited, indicators, dim, reversible);
+        }
+    }
+
+}
@@ -7,7 +7,7 @@ import beast.base.spec.inference.parameter.BoolVectorParam;
 import lphybeast.BEASTContext;
 import lphybeast.GeneratorToBEAST;
 
-import static abyss.lphybeast.tobeast.generator.NonReversibleToBEAST.addNonUniformBitFlipOperator;
+import static abyss.lphybeast.tobeast.generator.NonReversibleToBEAST.addConnectedBitFlipOperator;
 
 /**
  * @author Jasmine Saghafifar
@@ -26,7 +26,9 @@ public class ConnectedSVSToBEAST implements GeneratorToBEAST<ConnectedSVS, SVSPr
         }
         svsPrior.setInputValue("indicators", value);
         svsPrior.setInputValue("symmetric", generator.getSymmetric().value());
-        addNonUniformBitFlipOperator(context, (BoolVectorParam) value, 2.0);
+        // only propose indicators inside the support of the prior
+        addConnectedBitFlipOperator(context, (BoolVectorParam) value, generator.getNumStates().value(),
+                generator.getSymmetric().value(), 2.0);
         svsPrior.initAndValidate();
         svsPrior.setID(value.getID());
         return svsPrior;
@@ -3,6 +3,7 @@ package abyss.lphybeast.tobeast.generator;
 import abyss.MixedAlignment;
 import abyss.distributions.MixedTreeLikelihood;
 import abyss.inference.CachedTreeLikelihood;
+import abyss.inference.MultiModelTreeLikelihood;
 import abyss.logger.AlignmentModelLogger;
 import abyss.logger.SiteMixtureLikelihoodLogger;
 import abyss.logger.SiteModelLogger;
@@ -26,6 +27,10 @@ import static lphybeast.tobeast.generators.PhyloCTMCToBEAST.constructTreeAndBran
  */
 public class MixedAlignmentToBEAST implements GeneratorToBEAST<MixedAlignment, MixedTreeLikelihood> {
 
+    // MultiModelTreeLikelihood is opt-in (-Dabyss.multiModelLikelihood=true) until it has been checked against
+    // per component tree likelihoods; by default every component gets its own CachedTreeLikelihood
+    private static final boolean MULTI_MODEL_LIKELIHOOD = Boolean.getBoolean("abyss.multiModelLikelihood");
+
     public MixedTreeLikelihood generatorToBEAST(MixedAlignment mixedAlignment, BEASTInterface value, BEASTContext context) {
         return createMixedTreeLikelihood(mixedAlignment, value, context);
     }
@@ -43,24 +48,41 @@ public class MixedAlignmentToBEAST implements GeneratorToBEAST<MixedAlignment, M
         phyloCTMCList.add((PhyloCTMC) aln1.getGenerator());
         phyloCTMCList.add((PhyloCTMC) aln2.getGenerator());
 
-        List<CachedTreeLikelihood> likelihoods = new ArrayList<>();
-        int i=0;
-        // initialise likelihoods within
+        List<SiteModel> siteModels = new ArrayList<>();
         for (PhyloCTMC phyloCTMC : phyloCTMCList) {
-            CachedTreeLikelihood likelihood = new CachedTreeLikelihood();
-
-            constructTreeAndBranchRate(phyloCTMC, likelihood, context);
-            SiteModel siteModel = constructSiteModel(phyloCTMC, context);
+            siteModels.add(constructSiteModel(phyloCTMC, context));
+        }
 
-            likelihood.setInputValue("siteModel", siteModel);
+        if (MULTI_MODEL_LIKELIHOOD && sharesTreeAndClock(phyloCTMCList) && canShareCategories(siteModels)) {
+            // all components are computed by one likelihood, sharing tree, clock model and tips
+            MultiModelTreeLikelihood likelihood = new MultiModelTreeLikelihood();
+            constructTreeAndBranchRate(phyloCTMCList.getFirst(), likelihood, context);
+            likelihood.setInputValue("componentSiteModel", siteModels);
             likelihood.setInputValue("data", alignment);
             likelihood.initAndValidate();
 
-            likelihood.setID(alignment.getID() + ".treeLikelihood"+i);
+            likelihood.setID(alignment.getID() + ".componentLikelihood");
             context.addExtraLoggable(likelihood);
-            likelihoods.add(likelihood);
-            i++;
+            treeLikelihood.setInputValue("multiModelLikelihood", likelihood);
+        } else {
+            // one tree likelihood per component
+            List<CachedTreeLikelihood> likelihoods = new ArrayList<>();
+            for (int i = 0; i < phyloCTMCList.size(); i++) {
+                CachedTreeLikelihood likelihood = new CachedTreeLikelihood();
+
+                constructTreeAndBranchRate(phyloCTMCList.get(i), likelihood, context);
+                likelihood.setInputValue("siteModel", siteModels.get(i));
+                likelihood.setInputValue("data", alignment);
+                likelihood.initAndValidate();
+
+                likelihood.setID(alignment.getID() + ".treeLikelihood" + i);
+                context.addExtraLoggable(likelihood);
+                likelihoods.add(likelihood);
+            }
+            treeLikelihood.setInputValue("likelihood", likelihoods);
+        }
 
+        for (PhyloCTMC phyloCTMC : phyloCTMCList) {
             context.removeBEASTObject(context.getBEASTObject(phyloCTMC));
         }
 
@@ -70,7 +92,6 @@ public class MixedAlignmentToBEAST implements GeneratorToBEAST<MixedAlignment, M
         context.removeBEASTObject(context.getBEASTObject(mixedAlignment.getAlignment2Sites()));
         context.removeBEASTObject(context.getBEASTObject(mixedAlignment.getAlignment2Sites().getGenerator()));
 
-        treeLikelihood.setInputValue("likelihood", likelihoods);
         treeLikelihood.setInputValue("mode", "both");
 
         addSiteMixtureWeightsPrior(context,mixedAlignment,treeLikelihood);
@@ -86,6 +107,31 @@ public class MixedAlignmentToBEAST implements GeneratorToBEAST<MixedAlignment, M
         return treeLikelihood;
     }
 
+    // components evolve on the same tree under the same clock: the PhyloCTMCs take the same tree, clock rate and branch rates
+    private static boolean sharesTreeAndClock(List<PhyloCTMC> phyloCTMCList) {
+        PhyloCTMC first = phyloCTMCList.getFirst();
+        for (PhyloCTMC phyloCTMC : phyloCTMCList) {
+            if (phyloCTMC.getTree() != first.getTree() || phyloCTMC.getClockRate() != first.getClockRate() ||
+                    phyloCTMC.getBranchRates() != first.getBranchRates())
+                return false;
+        }
+        return true;
+    }
+
+    // MultiModelTreeLikelihood needs the same number of rate categories in every component and no invariant sites
+    private static boolean canShareCategories(List<SiteModel> siteModels) {
+        final int categoryCount = siteModels.getFirst().getCategoryCount();
+        for (SiteModel siteModel : siteModels) {
+            if (siteModel.getCategoryCount() != categoryCount)
+                return false;
+            for (double rate : siteModel.getCategoryRates(null)) {
+                if (rate == 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
     private void addSiteMixtureWeightsPrior(BEASTContext context, MixedAlignment alignment, MixedTreeLikelihood treeLikelihood) {
         Value<Double[]> weights;
 
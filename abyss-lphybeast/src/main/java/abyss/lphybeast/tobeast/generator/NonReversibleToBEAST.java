@@ -8,6 +8,7 @@ import abyss.logger.ABySSFrequencyLogger;
 import abyss.logger.DetailedBalanceLogger;
 import abyss.logger.NetFluxLogger;
 import abyss.logger.RootMeanSquareLogger;
+import abyss.operators.ConnectedBitFlipOperator;
 import beast.base.core.BEASTInterface;
 import beast.base.evolution.operator.kernel.AdaptableVarianceMultivariateNormalOperator;
 import beast.base.spec.domain.PositiveReal;
@@ -168,6 +169,15 @@ public class NonReversibleToBEAST implements GeneratorToBEAST<NonReversible, ABy
         context.addExtraOperator(operator);
     }
 
+    public static void addConnectedBitFlipOperator(BEASTContext context, BoolVectorParam parameter, int numStates,
+                                                   boolean symmetric, double weight) {
+        context.addSkipOperator(parameter);
+        ConnectedBitFlipOperator operator = new ConnectedBitFlipOperator();
+        operator.initByName("weight", weight, "parameter", parameter, "nrOfStates", numStates, "symmetric", symmetric);
+        operator.setID(parameter.getID() + ".bitFlip");
+        context.addExtraOperator(operator);
+    }
+
     // private operator methods
     private void addAVMNOperator(BEASTContext context, List<Transform> transforms, double weight, String id) {
         AdaptableVarianceMultivariateNormalOperator operator = new AdaptableVarianceMultivariateNormalOperator();